@@ -13,6 +13,8 @@
  */
 package name.wramner.httpclient;
 
+import java.util.concurrent.TimeUnit;
+
 import name.wramner.httpclient.HttpClient.Event;
 
 /**
@@ -31,6 +33,15 @@ public class AbsoluteTimeEventRecorder implements EventRecorder {
         _eventTimes[event.ordinal()] = System.currentTimeMillis();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        _eventTimes[event.ordinal()] = System.currentTimeMillis()
+                        - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timeNanos);
+    }
+
     /**
      * Get the time when an event occurred or 0 if it has not happened.
      *
@@ -72,16 +83,33 @@ public class AbsoluteTimeEventRecorder implements EventRecorder {
     }
 
     /**
-     * Get the total time. This should be valid for successful and failed requests alike.
+     * Get the total time from the actual start of the request. This should be valid for successful and failed
+     * requests alike.
      *
      * @return time in milliseconds.
      */
     public long getTotalTime() {
-        int i = _eventTimes.length - 1;
-        while (i > 0 && _eventTimes[i] == 0L) {
-            i--;
+        return getTotalTime(Event.ENTER_SEND_REQUEST);
+    }
+
+    /**
+     * Get the total time from the intended start of the request if it was scheduled, otherwise from the actual start.
+     * Unlike {@link #getTotalTime()} this includes any delay caused by the client or server falling behind.
+     *
+     * @return time in milliseconds.
+     */
+    public long getTotalTimeSinceScheduled() {
+        return _eventTimes[Event.SCHEDULED.ordinal()] != 0L ? getTotalTime(Event.SCHEDULED) : getTotalTime();
+    }
+
+    private long getTotalTime(Event startEvent) {
+        long startTime = _eventTimes[startEvent.ordinal()];
+        long endTime = startTime;
+        for (long time : _eventTimes) {
+            // Events such as hedging are not in chronological order, so use the latest time
+            endTime = Math.max(endTime, time);
         }
-        return i > 0 ? _eventTimes[i] - _eventTimes[0] : 0;
+        return startTime != 0L ? endTime - startTime : 0;
     }
 
     @Override
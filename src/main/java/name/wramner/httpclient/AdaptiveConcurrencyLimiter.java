@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import name.wramner.httpclient.exceptions.ConcurrencyLimitExceededException;
+
+/**
+ * Client-side limit for the number of requests in flight that adapts to the backend. When a backend degrades, a
+ * fixed number of threads or connections keeps piling up requests and makes the queueing worse. This limiter
+ * measures the round-trip time from {@link HttpClient.Event#SENDING_REQUEST} to
+ * {@link HttpClient.Event#READ_RESPONSE} for each request and adjusts the limit to keep throughput near the capacity
+ * of the backend. Requests over the limit wait in a bounded queue and fail with
+ * {@link ConcurrencyLimitExceededException} if the queue is full or if they wait too long.
+ * <p>
+ * Failed requests and responses with status 429 or 503 count as drops. Aborted requests are ignored. The limiter is
+ * thread safe and should be shared by all clients for the same backend.
+ *
+ * @author Erik Wramner
+ * @see HttpClientBuilder#withConcurrencyLimiter(AdaptiveConcurrencyLimiter)
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final int MIN_RTT_RESET_INTERVAL = 1000;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _permitAvailable = _lock.newCondition();
+    private final Algorithm _algorithm;
+    private final int _minLimit;
+    private final int _maxLimit;
+    private final int _maxQueueLength;
+    private final long _maxQueueTimeNanos;
+    private double _limit;
+    private int _inFlight;
+    private int _queueLength;
+    private long _minRoundTripTimeNanos = Long.MAX_VALUE;
+    private int _samplesSinceMinRoundTripTimeReset;
+
+    /**
+     * Constructor.
+     *
+     * @param algorithm The algorithm for adjusting the limit.
+     * @param initialLimit The initial limit.
+     * @param minLimit The minimum limit.
+     * @param maxLimit The maximum limit.
+     * @param maxQueueLength The maximum number of requests waiting, 0 to reject at once when the limit is reached.
+     * @param maxQueueTimeMillis The maximum time to wait in the queue.
+     */
+    public AdaptiveConcurrencyLimiter(Algorithm algorithm, int initialLimit, int minLimit, int maxLimit,
+                    int maxQueueLength, int maxQueueTimeMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits, need 1 <= min <= initial <= max");
+        }
+        _algorithm = algorithm;
+        _limit = initialLimit;
+        _minLimit = minLimit;
+        _maxLimit = maxLimit;
+        _maxQueueLength = maxQueueLength;
+        _maxQueueTimeNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueTimeMillis);
+    }
+
+    /**
+     * Get the current limit.
+     *
+     * @return limit.
+     */
+    public int getLimit() {
+        _lock.lock();
+        try {
+            return (int) _limit;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of requests in flight.
+     *
+     * @return requests in flight.
+     */
+    public int getInFlight() {
+        _lock.lock();
+        try {
+            return _inFlight;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a permit to send a request.
+     *
+     * @throws ConcurrencyLimitExceededException if the queue is full or the wait times out.
+     * @throws InterruptedIOException if interrupted.
+     */
+    void acquire() throws IOException {
+        _lock.lock();
+        try {
+            if (_inFlight < (int) _limit) {
+                _inFlight++;
+                return;
+            }
+            if (_queueLength >= _maxQueueLength) {
+                throw new ConcurrencyLimitExceededException("Concurrency limit " + (int) _limit + " reached");
+            }
+            _queueLength++;
+            try {
+                long remainingNanos = _maxQueueTimeNanos;
+                while (_inFlight >= (int) _limit) {
+                    if (remainingNanos <= 0L) {
+                        throw new ConcurrencyLimitExceededException("Timeout waiting for concurrency limit "
+                                        + (int) _limit);
+                    }
+                    remainingNanos = _permitAvailable.awaitNanos(remainingNanos);
+                }
+                _inFlight++;
+            } finally {
+                _queueLength--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for concurrency limit");
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Return a permit after a successful request.
+     *
+     * @param roundTripTimeNanos The round-trip time.
+     */
+    void releaseSucceeded(long roundTripTimeNanos) {
+        release(roundTripTimeNanos, false);
+    }
+
+    /**
+     * Return a permit after a failed or rejected request.
+     */
+    void releaseDropped() {
+        release(-1L, true);
+    }
+
+    /**
+     * Return a permit without affecting the limit.
+     */
+    void releaseIgnored() {
+        release(-1L, false);
+    }
+
+    private void release(long roundTripTimeNanos, boolean dropped) {
+        _lock.lock();
+        try {
+            // Don't grow the limit unless it is actually being used
+            boolean limited = _inFlight * 2 >= _limit;
+            _inFlight--;
+            if (dropped) {
+                _limit = _limit * BACKOFF_RATIO;
+            } else if (roundTripTimeNanos >= 0L) {
+                _limit = _algorithm == Algorithm.AIMD ? increaseAimd(limited)
+                                : updateGradient(roundTripTimeNanos, limited);
+            }
+            _limit = Math.max(_minLimit, Math.min(_maxLimit, _limit));
+            for (int i = Math.min(_queueLength, (int) _limit - _inFlight); i > 0; i--) {
+                _permitAvailable.signal();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private double increaseAimd(boolean limited) {
+        return limited ? _limit + 1.0 / _limit : _limit;
+    }
+
+    /**
+     * Compare the round-trip time with the minimum seen and scale the limit accordingly, like TCP Vegas. The minimum is
+     * reset now and then in order to follow changes in the backend.
+     *
+     * @param roundTripTimeNanos The round-trip time.
+     * @param limited The flag for requests limited by the current limit.
+     * @return new limit.
+     */
+    private double updateGradient(long roundTripTimeNanos, boolean limited) {
+        if (++_samplesSinceMinRoundTripTimeReset >= MIN_RTT_RESET_INTERVAL) {
+            _samplesSinceMinRoundTripTimeReset = 0;
+            _minRoundTripTimeNanos = roundTripTimeNanos;
+        } else {
+            _minRoundTripTimeNanos = Math.min(_minRoundTripTimeNanos, roundTripTimeNanos);
+        }
+        double gradient = Math.max(MIN_GRADIENT,
+                        Math.min(1.0, RTT_TOLERANCE * _minRoundTripTimeNanos / Math.max(1L, roundTripTimeNanos)));
+        double newLimit = _limit * gradient + Math.sqrt(_limit);
+        if (!limited) {
+            newLimit = Math.min(newLimit, _limit);
+        }
+        return _limit * (1.0 - SMOOTHING) + newLimit * SMOOTHING;
+    }
+
+    /**
+     * Algorithms for adjusting the limit.
+     */
+    public enum Algorithm {
+        /**
+         * Additive increase, multiplicative decrease. The limit grows by one per round of successful requests and
+         * shrinks by 10% for every drop.
+         */
+        AIMD,
+        /**
+         * Vegas-style gradient. The limit shrinks as the round-trip time grows above the minimum, before requests
+         * start to fail, and also shrinks by 10% for every drop.
+         */
+        GRADIENT
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue with a daemon thread that takes the entries one at a time and passes them to a consumer, for output
+ * that is too slow for the threads sending requests. Offering never blocks, entries are rejected when the queue is
+ * full or closed.
+ *
+ * @author Erik Wramner
+ */
+final class BackgroundQueue<T> {
+    private static final Object END_OF_QUEUE = new Object();
+    private final BlockingQueue<Object> _queue;
+    private final Consumer<? super T> _consumer;
+    private final Runnable _idleAction;
+    private final Thread _thread;
+    private volatile boolean _closed;
+
+    /**
+     * Constructor. The thread is started at once.
+     *
+     * @param threadName The name of the thread.
+     * @param capacity The maximum number of entries in the queue.
+     * @param consumer The consumer for the entries, called by the thread only. It must not throw.
+     * @param idleAction The action to run when the queue is empty and when it is closed, such as a flush, or null.
+     */
+    BackgroundQueue(String threadName, int capacity, Consumer<? super T> consumer, Runnable idleAction) {
+        _queue = new ArrayBlockingQueue<Object>(capacity);
+        _consumer = consumer;
+        _idleAction = idleAction;
+        _thread = new Thread(this::run, threadName);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Add an entry to the queue unless it is full or closed.
+     *
+     * @param entry The entry.
+     * @return true if added.
+     */
+    boolean offer(T entry) {
+        return !_closed && _queue.offer(entry);
+    }
+
+    /**
+     * Let the thread consume all entries already in the queue and wait for it to stop. Further calls do nothing.
+     */
+    synchronized void close() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                _queue.put(END_OF_QUEUE);
+                _thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        try {
+            while (true) {
+                Object entry = _queue.poll();
+                if (entry == null) {
+                    runIdleAction();
+                    entry = _queue.take();
+                }
+                if (entry == END_OF_QUEUE) {
+                    runIdleAction();
+                    return;
+                }
+                _consumer.accept((T) entry);
+            }
+        } catch (InterruptedException e) {
+            // Exit
+        }
+    }
+
+    private void runIdleAction() {
+        if (_idleAction != null) {
+            _idleAction.run();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Event recorder that keeps events with their times and counters until the request is over, used for hedged requests
+ * where only the winning copy should be reported. The request, handshake and response details are replayed after
+ * the events they follow and the failure, if any, before the last event. It is thread safe, so the events can be
+ * taken while the request is still running, after which new events are ignored.
+ *
+ * @author Erik Wramner
+ */
+final class BufferingEventRecorder implements EventRecorder {
+    private final List<Event> _events = new ArrayList<Event>();
+    private final List<Long> _times = new ArrayList<Long>();
+    private final List<long[]> _counters = new ArrayList<long[]>();
+    private String _host;
+    private int _port;
+    private HttpRequestMethod _method;
+    private String _url;
+    private int _httpResponseCode = -1;
+    private SslHandshakeInfo _sslHandshakeInfo;
+    private Throwable _failure;
+    private boolean _detached;
+
+    @Override
+    public void recordEvent(Event event) {
+        recordEvent(event, System.nanoTime());
+    }
+
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        addEvent(event, timeNanos, null);
+    }
+
+    @Override
+    public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        addEvent(event, timeNanos, new long[] { bytesWritten, bytesRead, readCalls, largestRead });
+    }
+
+    @Override
+    public synchronized void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+        if (!_detached) {
+            _host = host;
+            _port = port;
+            _method = method;
+            _url = url;
+        }
+    }
+
+    @Override
+    public synchronized void recordResponse(int httpResponseCode) {
+        if (!_detached) {
+            _httpResponseCode = httpResponseCode;
+        }
+    }
+
+    @Override
+    public synchronized void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+        if (!_detached) {
+            _sslHandshakeInfo = sslHandshakeInfo;
+        }
+    }
+
+    @Override
+    public synchronized void recordFailure(Throwable cause) {
+        if (!_detached) {
+            _failure = cause;
+        }
+    }
+
+    private synchronized void addEvent(Event event, long timeNanos, long[] counters) {
+        if (!_detached) {
+            _events.add(event);
+            _times.add(Long.valueOf(timeNanos));
+            _counters.add(counters);
+        }
+    }
+
+    /**
+     * Stop recording.
+     */
+    synchronized void detach() {
+        _detached = true;
+    }
+
+    /**
+     * Get the time for the first occurrence of an event.
+     *
+     * @param event The event.
+     * @return time as given by {@link System#nanoTime()} or null if not recorded.
+     */
+    synchronized Long getTimeNanos(Event event) {
+        int index = _events.indexOf(event);
+        return index >= 0 ? _times.get(index) : null;
+    }
+
+    /**
+     * Pass recorded events to another recorder, keeping their times.
+     *
+     * @param eventRecorder The target recorder.
+     * @param fromTimeNanos The time for the first event to include or null to start with the first event.
+     * @param toTimeNanos The time for the first event to exclude or null to end with the last event.
+     * @param skippedEvent An event to skip or null.
+     */
+    synchronized void replay(EventRecorder eventRecorder, Long fromTimeNanos, Long toTimeNanos, Event skippedEvent) {
+        for (int i = 0; i < _events.size(); i++) {
+            long timeNanos = _times.get(i).longValue();
+            if ((fromTimeNanos == null || timeNanos - fromTimeNanos.longValue() >= 0L)
+                            && (toTimeNanos == null || timeNanos - toTimeNanos.longValue() < 0L)
+                            && _events.get(i) != skippedEvent) {
+                Event event = _events.get(i);
+                if (event == Event.EXIT_SEND_REQUEST && _failure != null) {
+                    eventRecorder.recordFailure(_failure);
+                }
+                long[] counters = _counters.get(i);
+                if (counters != null) {
+                    eventRecorder.recordEvent(event, timeNanos, counters[0], counters[1], (int) counters[2],
+                                    (int) counters[3]);
+                } else {
+                    eventRecorder.recordEvent(event, timeNanos);
+                }
+                if (event == Event.ENTER_SEND_REQUEST && _method != null) {
+                    eventRecorder.recordRequest(_host, _port, _method, _url);
+                } else if (event == Event.SSL_HANDSHAKE_COMPLETE && _sslHandshakeInfo != null) {
+                    eventRecorder.recordSslHandshake(_sslHandshakeInfo);
+                } else if (event == Event.HEADERS_PARSED && _httpResponseCode >= 0) {
+                    eventRecorder.recordResponse(_httpResponseCode);
+                }
+            }
+        }
+    }
+}
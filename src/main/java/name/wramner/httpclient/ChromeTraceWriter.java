@@ -0,0 +1,319 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Writer for request timelines in the Chrome trace event format, which can be opened with chrome://tracing and
+ * Perfetto. Each request becomes an async span named after the method and URL, with nested spans for each
+ * {@link RequestPhase} and markers for 100 continue and hedging. The spans are keyed by a connection number rather
+ * than by thread, as a {@link NioHttpClient} event loop thread handles many requests at once. Connections are never
+ * reused, so the connection number identifies the request. The thread that started the request is in the arguments.
+ * <p>
+ * Use {@link #newRequestRecorder()} to get a recorder for each request, for example as a client-level recorder
+ * factory. Completed requests are put on a bounded queue and written by a background thread, so memory use does not
+ * grow with the number of requests. If the writer falls behind requests are dropped rather than blocking the threads
+ * sending them. The file is a JSON array that is terminated on {@link #close()}, but the viewers also accept files
+ * without the end if the process dies.
+ *
+ * @author Erik Wramner
+ */
+public class ChromeTraceWriter implements Closeable {
+    private static final int PID = 1;
+    private static final Event[] EVENTS = Event.values();
+    private static final RequestPhase[] PHASES = RequestPhase.values();
+    private static final Set<Event> MARKER_EVENTS = EnumSet.of(Event.SENT_HEADERS_WAITING_FOR_100_CONTINUE,
+                    Event.RECEIVED_100_CONTINUE, Event.TIMEOUT_WAITING_FOR_100_CONTINUE, Event.HEDGE_SENT,
+                    Event.HEDGE_WON);
+    private final AtomicLong _connectionCounter = new AtomicLong();
+    private final AtomicLong _droppedRequests = new AtomicLong();
+    private final TraceOutput _output;
+    private final BackgroundQueue<RequestTrace> _queue;
+    private boolean _closed;
+
+    /**
+     * Constructor. The file is created or truncated and the writer thread is started at once.
+     *
+     * @param file The file.
+     * @param queueCapacity The maximum number of completed requests waiting to be written.
+     * @throws IOException if the file can't be opened.
+     */
+    public ChromeTraceWriter(Path file, int queueCapacity) throws IOException {
+        this(Files.newBufferedWriter(file, StandardCharsets.UTF_8), queueCapacity);
+    }
+
+    /**
+     * Constructor. The writer thread is started at once.
+     *
+     * @param out The output, which is closed with the trace writer.
+     * @param queueCapacity The maximum number of completed requests waiting to be written.
+     */
+    public ChromeTraceWriter(Writer out, int queueCapacity) {
+        TraceOutput output = new TraceOutput(out);
+        _output = output;
+        _queue = new BackgroundQueue<RequestTrace>("HttpClient-trace-writer", queueCapacity, output::write,
+                        output::flush);
+    }
+
+    /**
+     * Get a recorder for a single request. Each request needs a new recorder, the recorder ignores events after
+     * {@link Event#EXIT_SEND_REQUEST}.
+     *
+     * @return new recorder.
+     */
+    public EventRecorder newRequestRecorder() {
+        return new RequestTrace(this);
+    }
+
+    /**
+     * Get the number of requests that have been dropped because the queue was full.
+     *
+     * @return dropped requests.
+     */
+    public long getDroppedRequests() {
+        return _droppedRequests.get();
+    }
+
+    /**
+     * Write all queued requests, terminate the JSON array and close the output. Requests that complete later are
+     * dropped.
+     *
+     * @throws IOException if writing failed, now or earlier.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _queue.close();
+        _output.close();
+    }
+
+    private void enqueue(RequestTrace trace) {
+        if (_output._writeException != null || !_queue.offer(trace)) {
+            _droppedRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * The trace file, only used by the writer thread until the queue has been closed.
+     */
+    private static class TraceOutput {
+        private final long _startTimeNanos = System.nanoTime();
+        private final Writer _out;
+        private final Set<Long> _namedThreads = new HashSet<Long>();
+        private volatile IOException _writeException;
+        private boolean _firstEvent = true;
+
+        TraceOutput(Writer out) {
+            _out = out instanceof BufferedWriter ? out : new BufferedWriter(out);
+        }
+
+        void close() throws IOException {
+            try {
+                if (_writeException == null) {
+                    _out.write(_firstEvent ? "[]\n" : "\n]\n");
+                }
+            } finally {
+                _out.close();
+            }
+            if (_writeException != null) {
+                throw _writeException;
+            }
+        }
+
+        private void write(RequestTrace trace) {
+            if (_writeException == null) {
+                try {
+                    writeTrace(trace);
+                } catch (IOException e) {
+                    _writeException = e;
+                }
+            }
+        }
+
+        private void flush() {
+            if (_writeException == null) {
+                try {
+                    _out.flush();
+                } catch (IOException e) {
+                    _writeException = e;
+                }
+            }
+        }
+
+        private void writeTrace(RequestTrace trace) throws IOException {
+            if (_namedThreads.add(Long.valueOf(trace._threadId))) {
+                beginEvent("thread_name", "M", trace._threadId);
+                _out.write(",\"args\":{\"name\":");
+                writeString(trace._threadName);
+                _out.write("}}");
+            }
+            String name = trace._method != null ? trace._method.name() + " " + trace._url : "request";
+            beginAsyncEvent(name, "b", trace, trace.getEventTime(Event.ENTER_SEND_REQUEST));
+            _out.write(",\"args\":{\"connection\":" + trace._connection + ",\"thread\":");
+            writeString(trace._threadName);
+            if (trace._host != null) {
+                _out.write(",\"host\":");
+                writeString(trace._host + ":" + trace._port);
+            }
+            if (trace._httpResponseCode > 0) {
+                _out.write(",\"status\":" + trace._httpResponseCode);
+            }
+            if (trace._failure != null) {
+                _out.write(",\"failure\":");
+                writeString(trace._failure);
+            }
+            _out.write("}}");
+            for (RequestPhase phase : PHASES) {
+                if (trace.hasEvent(phase.getStartEvent())) {
+                    long phaseStartNanos = trace.getEventTime(phase.getStartEvent());
+                    long phaseEndNanos = Long.MIN_VALUE;
+                    for (Event event : EVENTS) {
+                        if (phase.isEndedBy(event) && trace.hasEvent(event)
+                                        && trace.getEventTime(event) - phaseStartNanos >= 0L
+                                        && (phaseEndNanos == Long.MIN_VALUE
+                                                        || trace.getEventTime(event) - phaseEndNanos < 0L)) {
+                            phaseEndNanos = trace.getEventTime(event);
+                        }
+                    }
+                    if (phaseEndNanos != Long.MIN_VALUE) {
+                        beginAsyncEvent(phase.name(), "b", trace, phaseStartNanos);
+                        _out.write("}");
+                        beginAsyncEvent(phase.name(), "e", trace, phaseEndNanos);
+                        _out.write("}");
+                    }
+                }
+            }
+            for (Event event : MARKER_EVENTS) {
+                if (trace.hasEvent(event)) {
+                    beginAsyncEvent(event.name(), "n", trace, trace.getEventTime(event));
+                    _out.write("}");
+                }
+            }
+            beginAsyncEvent(name, "e", trace, trace.getEventTime(Event.EXIT_SEND_REQUEST));
+            _out.write("}");
+        }
+
+        private void beginEvent(String name, String phase, long threadId) throws IOException {
+            _out.write(_firstEvent ? "[\n" : ",\n");
+            _firstEvent = false;
+            _out.write("{\"name\":");
+            writeString(name);
+            _out.write(",\"cat\":\"http\",\"ph\":\"" + phase + "\",\"pid\":" + PID + ",\"tid\":" + threadId);
+        }
+
+        private void beginAsyncEvent(String name, String phase, RequestTrace trace, long timeNanos) throws IOException {
+            beginEvent(name, phase, trace._threadId);
+            _out.write(",\"id\":" + trace._connection + ",\"ts\":" + toMicros(timeNanos));
+        }
+
+        private String toMicros(long timeNanos) {
+            return formatMicros(timeNanos - _startTimeNanos);
+        }
+
+        private static String formatMicros(long nanos) {
+            long fraction = Math.abs(nanos % 1000L);
+            return (nanos < 0L && nanos > -1000L ? "-" : "") + nanos / 1000L + "." + (fraction < 10L ? "00"
+                            : fraction < 100L ? "0" : "") + fraction;
+        }
+
+        private void writeString(String s) throws IOException {
+            _out.write('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    _out.write('\\');
+                    _out.write(c);
+                } else if (c < ' ') {
+                    _out.write(String.format("\\u%04x", Integer.valueOf(c)));
+                } else {
+                    _out.write(c);
+                }
+            }
+            _out.write('"');
+        }
+    }
+
+    /**
+     * Recorder and queue entry for a single request.
+     */
+    private static class RequestTrace extends NanoTimeEventRecorder {
+        private final ChromeTraceWriter _writer;
+        private boolean _done;
+        private long _threadId;
+        private String _threadName;
+        private long _connection;
+        private String _host;
+        private int _port;
+        private HttpRequestMethod _method;
+        private String _url;
+        private int _httpResponseCode;
+        private String _failure;
+
+        RequestTrace(ChromeTraceWriter writer) {
+            _writer = writer;
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos) {
+            if (_done) {
+                return;
+            }
+            if (event == Event.ENTER_SEND_REQUEST && !hasEvent(event)) {
+                Thread thread = Thread.currentThread();
+                _threadId = thread.getId();
+                _threadName = thread.getName();
+                _connection = _writer._connectionCounter.incrementAndGet();
+            }
+            super.recordEvent(event, timeNanos);
+            if (event == Event.EXIT_SEND_REQUEST && hasEvent(Event.ENTER_SEND_REQUEST)) {
+                _done = true;
+                _writer.enqueue(this);
+            }
+        }
+
+        @Override
+        public void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+            _host = host;
+            _port = port;
+            _method = method;
+            _url = url;
+        }
+
+        @Override
+        public void recordResponse(int httpResponseCode) {
+            _httpResponseCode = httpResponseCode;
+        }
+
+        @Override
+        public void recordFailure(Throwable cause) {
+            _failure = cause.toString();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream for chunked transfer encoding. Small writes are collected into one chunk. Call {@link #finish()} to
+ * write the last chunk, closing the stream would close the socket.
+ *
+ * @author Erik Wramner
+ */
+final class ChunkedOutputStream extends FilterOutputStream {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private final byte[] _buffer;
+    private int _count;
+
+    /**
+     * Constructor.
+     *
+     * @param out The output stream.
+     * @param chunkSize The preferred chunk size.
+     */
+    ChunkedOutputStream(OutputStream out, int chunkSize) {
+        super(out);
+        _buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (_count == _buffer.length) {
+            writeBufferedChunk();
+        }
+        _buffer[_count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= _buffer.length) {
+            writeBufferedChunk();
+            writeChunk(b, off, len);
+        } else {
+            if (len > _buffer.length - _count) {
+                writeBufferedChunk();
+            }
+            System.arraycopy(b, off, _buffer, _count, len);
+            _count += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBufferedChunk();
+        out.flush();
+    }
+
+    /**
+     * Write remaining data and the terminating chunk. The underlying stream is not flushed or closed.
+     *
+     * @throws IOException on errors.
+     */
+    void finish() throws IOException {
+        writeBufferedChunk();
+        out.write(LAST_CHUNK);
+    }
+
+    private void writeBufferedChunk() throws IOException {
+        if (_count > 0) {
+            writeChunk(_buffer, 0, _count);
+            _count = 0;
+        }
+    }
+
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        out.write(Integer.toHexString(len).getBytes(HttpClient.HTTP_DEFAULT_CHARSET));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+}
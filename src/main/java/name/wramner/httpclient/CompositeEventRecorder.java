@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Event recorder that passes everything on to two other recorders, used for adding the client-level recorder to the
+ * recorder for a request.
+ *
+ * @author Erik Wramner
+ */
+final class CompositeEventRecorder implements EventRecorder {
+    private final EventRecorder _first;
+    private final EventRecorder _second;
+
+    /**
+     * Constructor.
+     *
+     * @param first The first recorder.
+     * @param second The second recorder.
+     */
+    CompositeEventRecorder(EventRecorder first, EventRecorder second) {
+        _first = first;
+        _second = second;
+    }
+
+    @Override
+    public void recordEvent(Event event) {
+        recordEvent(event, System.nanoTime());
+    }
+
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        _first.recordEvent(event, timeNanos);
+        _second.recordEvent(event, timeNanos);
+    }
+
+    @Override
+    public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        _first.recordEvent(event, timeNanos, bytesWritten, bytesRead, readCalls, largestRead);
+        _second.recordEvent(event, timeNanos, bytesWritten, bytesRead, readCalls, largestRead);
+    }
+
+    @Override
+    public void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+        _first.recordRequest(host, port, method, url);
+        _second.recordRequest(host, port, method, url);
+    }
+
+    @Override
+    public void recordResponse(int httpResponseCode) {
+        _first.recordResponse(httpResponseCode);
+        _second.recordResponse(httpResponseCode);
+    }
+
+    @Override
+    public void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+        _first.recordSslHandshake(sslHandshakeInfo);
+        _second.recordSslHandshake(sslHandshakeInfo);
+    }
+
+    @Override
+    public void recordFailure(Throwable cause) {
+        _first.recordFailure(cause);
+        _second.recordFailure(cause);
+    }
+}
@@ -28,9 +28,13 @@ public class ElapsedTimeEventRecorder implements EventRecorder {
 
     @Override
     public void recordEvent(HttpClient.Event event) {
-        long now = System.nanoTime();
-        _events.add(new TimedEvent(event, now - _prevEventTimeNanos));
-        _prevEventTimeNanos = now;
+        recordEvent(event, System.nanoTime());
+    }
+
+    @Override
+    public void recordEvent(HttpClient.Event event, long timeNanos) {
+        _events.add(new TimedEvent(event, timeNanos - _prevEventTimeNanos));
+        _prevEventTimeNanos = timeNanos;
     }
 
     public List<ElapsedTimeEventRecorder.TimedEvent> getEvents() {
@@ -34,4 +34,75 @@ public interface EventRecorder {
      * @param event The event.
      */
     void recordEvent(HttpClient.Event event);
+
+    /**
+     * Record an event that happened at a given time rather than now, for example the time when a request was intended
+     * to start. Hedged requests pass all events to the caller's recorder this way when the request is over, with the
+     * times when they happened. The default implementation ignores the time, so recorders that measure time must
+     * implement this method for hedging to work.
+     *
+     * @param event The event.
+     * @param timeNanos The time as given by {@link System#nanoTime()}.
+     */
+    default void recordEvent(HttpClient.Event event, long timeNanos) {
+        recordEvent(event);
+    }
+
+    /**
+     * Record an event with counters for the request so far. {@link HttpClient} uses this for the events that end a
+     * stage of the request: {@link HttpClient.Event#SENT_REQUEST}, {@link HttpClient.Event#READ_RESPONSE} and
+     * {@link HttpClient.Event#EXIT_SEND_REQUEST}. The counters are for the socket streams, so with SSL they count
+     * plain text. The default implementation ignores the counters.
+     *
+     * @param event The event.
+     * @param timeNanos The time as given by {@link System#nanoTime()}.
+     * @param bytesWritten The number of bytes written.
+     * @param bytesRead The number of bytes read.
+     * @param readCalls The number of read calls, including any that returned no data.
+     * @param largestRead The largest number of bytes returned by a single read call.
+     */
+    default void recordEvent(HttpClient.Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        recordEvent(event, timeNanos);
+    }
+
+    /**
+     * Record what the request is for. It is called once per request, right after
+     * {@link HttpClient.Event#ENTER_SEND_REQUEST}. The default implementation does nothing.
+     *
+     * @param host The host.
+     * @param port The port.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     */
+    default void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+    }
+
+    /**
+     * Record the status code of the response. It is called right after {@link HttpClient.Event#HEADERS_PARSED}. The
+     * default implementation does nothing.
+     *
+     * @param httpResponseCode The HTTP response code.
+     */
+    default void recordResponse(int httpResponseCode) {
+    }
+
+    /**
+     * Record details about the SSL handshake. It is called right after
+     * {@link HttpClient.Event#SSL_HANDSHAKE_COMPLETE}. The default implementation does nothing.
+     *
+     * @param sslHandshakeInfo The handshake details.
+     */
+    default void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+    }
+
+    /**
+     * Record the exception that made the request fail. It is called right before
+     * {@link HttpClient.Event#EXIT_SEND_REQUEST}, with the exception thrown to the caller. The default implementation
+     * does nothing.
+     *
+     * @param cause The exception.
+     */
+    default void recordFailure(Throwable cause) {
+    }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that periodically drains completed requests from a set of {@link RingBufferEventRecorder}
+ * instances into a target recorder, typically a {@link HistogramEventRecorder}. The target receives one complete
+ * request at a time and is never called concurrently, so it need not be thread safe and it can be slower than a
+ * recorder used directly by the request threads. Create it with {@link #start(EventRecorder, long)}.
+ * <p>
+ * The usual setup is one ring buffer recorder per worker thread, created with {@link #newRecorder(int)} and used for
+ * all requests sent by that thread.
+ *
+ * @author Erik Wramner
+ */
+public class EventRecorderDrainer implements Closeable {
+    private final EventRecorder _target;
+    private final List<RingBufferEventRecorder> _recorders = new CopyOnWriteArrayList<RingBufferEventRecorder>();
+    private final ScheduledExecutorService _executor;
+
+    private EventRecorderDrainer(EventRecorder target) {
+        _target = target;
+        _executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "HttpClient-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a drainer and start its thread. This is done in a factory method, so that the thread can't see a drainer
+     * that is still being constructed.
+     *
+     * @param target The recorder that receives the drained events.
+     * @param intervalMillis The time between drains.
+     * @return drainer.
+     */
+    public static EventRecorderDrainer start(EventRecorder target, long intervalMillis) {
+        EventRecorderDrainer drainer = new EventRecorderDrainer(target);
+        drainer._executor.scheduleWithFixedDelay(drainer::drain, intervalMillis, intervalMillis,
+                        TimeUnit.MILLISECONDS);
+        return drainer;
+    }
+
+    /**
+     * Create a new ring buffer recorder and add it to the recorders drained by this drainer.
+     *
+     * @param capacity The number of events the buffer can hold.
+     * @return new recorder.
+     */
+    public RingBufferEventRecorder newRecorder(int capacity) {
+        RingBufferEventRecorder recorder = new RingBufferEventRecorder(capacity);
+        _recorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Add a recorder to the recorders drained by this drainer.
+     *
+     * @param recorder The recorder.
+     */
+    public void add(RingBufferEventRecorder recorder) {
+        _recorders.add(recorder);
+    }
+
+    /**
+     * Remove a recorder, for example when the worker thread using it terminates. Completed requests that have not been
+     * drained yet are drained first.
+     *
+     * @param recorder The recorder.
+     */
+    public void remove(RingBufferEventRecorder recorder) {
+        if (_recorders.remove(recorder)) {
+            synchronized (this) {
+                recorder.drainTo(_target);
+            }
+        }
+    }
+
+    /**
+     * Drain all recorders now rather than waiting for the next scheduled drain.
+     *
+     * @return number of events drained.
+     */
+    public synchronized int drain() {
+        int events = 0;
+        for (RingBufferEventRecorder recorder : _recorders) {
+            events += recorder.drainTo(_target);
+        }
+        return events;
+    }
+
+    /**
+     * Stop the drainer thread after a final drain.
+     */
+    @Override
+    public void close() {
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(1L, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+    }
+}
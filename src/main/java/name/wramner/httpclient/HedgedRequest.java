@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * A request that may be sent twice according to a {@link HedgingPolicy}. Both copies record events in buffers. When
+ * the request is over the events for the winning copy are passed on to the caller's recorder with their original
+ * times, so the caller sees a single timeline from the start of the first copy. If a hedge was sent the timeline
+ * contains {@link Event#HEDGE_SENT}, and if the hedge won it ends with {@link Event#HEDGE_WON}. The losing copy is
+ * cancelled, which closes its connection.
+ * <p>
+ * The latency of the winner is added to the policy's samples. If the hedge won the time the primary copy had been
+ * running is added too, as the samples would otherwise only contain the fast requests and the hedge delay would
+ * shrink with every hedge that wins.
+ *
+ * @author Erik Wramner
+ */
+final class HedgedRequest {
+    private final HedgingPolicy _policy;
+    private final EventRecorder _eventRecorder;
+    private final Function<EventRecorder, CompletableFuture<HttpResponse>> _sender;
+    private final CompletableFuture<HttpResponse> _result = new CompletableFuture<HttpResponse>();
+    private final BufferingEventRecorder _primaryEventRecorder = new BufferingEventRecorder();
+    private CompletableFuture<HttpResponse> _primary;
+    private BufferingEventRecorder _hedgeEventRecorder;
+    private CompletableFuture<HttpResponse> _hedge;
+    private long _hedgeTimeNanos;
+    private Future<?> _hedgeTimer;
+    private Throwable _firstFailure;
+    private boolean _done;
+
+    private HedgedRequest(HedgingPolicy policy, EventRecorder eventRecorder,
+                    Function<EventRecorder, CompletableFuture<HttpResponse>> sender) {
+        _policy = policy;
+        _eventRecorder = eventRecorder;
+        _sender = sender;
+    }
+
+    /**
+     * Send a request, hedging it if the policy says so.
+     *
+     * @param policy The hedging policy.
+     * @param eventRecorder The caller's event recorder.
+     * @param sender The function that sends a single copy asynchronously with a given event recorder.
+     * @return future response.
+     */
+    static CompletableFuture<HttpResponse> send(HedgingPolicy policy, EventRecorder eventRecorder,
+                    Function<EventRecorder, CompletableFuture<HttpResponse>> sender) {
+        HedgedRequest request = new HedgedRequest(policy, eventRecorder, sender);
+        request.start();
+        return request._result;
+    }
+
+    private void start() {
+        long delayNanos = _policy.startRequest();
+        CompletableFuture<HttpResponse> primary = _sender.apply(_primaryEventRecorder);
+        synchronized (this) {
+            _primary = primary;
+            if (delayNanos >= 0L && !_done) {
+                _hedgeTimer = SharedScheduler.get().schedule(this::sendHedge, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        primary.whenComplete((response, t) -> onComplete(false, response, t));
+        _result.whenComplete((response, t) -> {
+            if (t instanceof CancellationException) {
+                cancelAll();
+            }
+        });
+    }
+
+    private void sendHedge() {
+        synchronized (this) {
+            if (_done || !_policy.tryAcquireHedge()) {
+                return;
+            }
+            _hedgeTimeNanos = System.nanoTime();
+            _hedgeEventRecorder = new BufferingEventRecorder();
+        }
+        CompletableFuture<HttpResponse> hedge = _sender.apply(_hedgeEventRecorder);
+        synchronized (this) {
+            _hedge = hedge;
+            if (_done) {
+                hedge.cancel(true);
+                return;
+            }
+        }
+        hedge.whenComplete((response, t) -> onComplete(true, response, t));
+    }
+
+    private void onComplete(boolean isHedge, HttpResponse response, Throwable t) {
+        CompletableFuture<HttpResponse> loser;
+        boolean hedged;
+        synchronized (this) {
+            if (_done) {
+                return;
+            }
+            hedged = _hedgeEventRecorder != null;
+            if (t != null) {
+                if (_firstFailure == null) {
+                    _firstFailure = t;
+                }
+                if (hedged && (isHedge ? !_primary.isDone() : _hedge == null || !_hedge.isDone())) {
+                    // Wait for the other copy
+                    return;
+                }
+            }
+            _done = true;
+            loser = isHedge ? _primary : _hedge;
+            if (_hedgeTimer != null) {
+                _hedgeTimer.cancel(false);
+            }
+        }
+        if (loser != null) {
+            loser.cancel(true);
+        }
+        BufferingEventRecorder winnerEventRecorder = isHedge ? _hedgeEventRecorder : _primaryEventRecorder;
+        _primaryEventRecorder.detach();
+        if (hedged) {
+            _hedgeEventRecorder.detach();
+        }
+        if (t == null) {
+            Long startTime = winnerEventRecorder.getTimeNanos(Event.ENTER_SEND_REQUEST);
+            Long endTime = winnerEventRecorder.getTimeNanos(Event.READ_RESPONSE);
+            if (startTime != null && endTime != null) {
+                _policy.recordLatency(endTime.longValue() - startTime.longValue());
+                Long primaryStartTime = _primaryEventRecorder.getTimeNanos(Event.ENTER_SEND_REQUEST);
+                if (isHedge && primaryStartTime != null) {
+                    _policy.recordLatency(endTime.longValue() - primaryStartTime.longValue());
+                }
+            }
+        }
+        try {
+            replayEvents(isHedge && t == null);
+        } finally {
+            if (t == null) {
+                _result.complete(response);
+            } else {
+                _result.completeExceptionally(_firstFailure);
+            }
+        }
+    }
+
+    /**
+     * Pass the events for the winner on to the caller. If the hedge won the events for the primary copy are included
+     * up to the point where the hedge was sent.
+     *
+     * @param hedgeWon The flag for a winning hedge.
+     */
+    private void replayEvents(boolean hedgeWon) {
+        if (_hedgeEventRecorder == null) {
+            _primaryEventRecorder.replay(_eventRecorder, null, null, null);
+        } else {
+            Long hedgeTimeNanos = Long.valueOf(_hedgeTimeNanos);
+            _primaryEventRecorder.replay(_eventRecorder, null, hedgeTimeNanos, null);
+            _eventRecorder.recordEvent(Event.HEDGE_SENT, _hedgeTimeNanos);
+            if (hedgeWon) {
+                _hedgeEventRecorder.replay(_eventRecorder, null, null, Event.ENTER_SEND_REQUEST);
+                _eventRecorder.recordEvent(Event.HEDGE_WON);
+            } else {
+                _primaryEventRecorder.replay(_eventRecorder, hedgeTimeNanos, null, null);
+            }
+        }
+    }
+
+    private void cancelAll() {
+        CompletableFuture<HttpResponse> primary;
+        CompletableFuture<HttpResponse> hedge;
+        synchronized (this) {
+            primary = _primary;
+            hedge = _hedge;
+            if (_hedgeTimer != null) {
+                _hedgeTimer.cancel(false);
+            }
+        }
+        if (primary != null) {
+            primary.cancel(true);
+        }
+        if (hedge != null) {
+            hedge.cancel(true);
+        }
+    }
+}
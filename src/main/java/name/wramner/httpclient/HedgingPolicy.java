@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy for hedged requests. If an idempotent request has not completed when a given percentile of recent latencies
+ * has passed, a second copy is sent and the first response wins. This cuts the tail latency caused by a slow replica
+ * or a lost packet at the cost of some extra load, which is capped by a budget. No requests are hedged until enough
+ * latencies have been measured.
+ * <p>
+ * A policy is thread safe and keeps state, so it should be shared by all requests to the same backend.
+ *
+ * @author Erik Wramner
+ * @see HttpClientBuilder#withHedging(HedgingPolicy)
+ */
+public class HedgingPolicy {
+    private static final int SAMPLE_WINDOW = 1024;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECALCULATION_INTERVAL = 32;
+    private static final double MAX_SAVED_HEDGES = 10.0;
+    private final double _percentile;
+    private final long _minDelayNanos;
+    private final double _maxHedgeRatio;
+    private final long[] _samples = new long[SAMPLE_WINDOW];
+    private int _sampleCount;
+    private int _samplesSinceRecalculation;
+    private long _delayNanos = -1L;
+    private double _hedgeBudget;
+
+    /**
+     * Constructor.
+     *
+     * @param percentile The latency percentile for sending the hedge, for example 95.0.
+     * @param minDelayMillis The minimum delay before sending the hedge.
+     * @param maxHedgeRatio The maximum fraction of requests to hedge, for example 0.05 for 5%.
+     */
+    public HedgingPolicy(double percentile, int minDelayMillis, double maxHedgeRatio) {
+        if (!(percentile > 0.0 && percentile < 100.0)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, got " + percentile);
+        }
+        if (!(maxHedgeRatio > 0.0 && maxHedgeRatio <= 1.0)) {
+            throw new IllegalArgumentException("Hedge ratio must be between 0 and 1, got " + maxHedgeRatio);
+        }
+        _percentile = percentile;
+        _minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        _maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * Get the current hedge delay.
+     *
+     * @return delay in milliseconds or -1 if there are not enough samples yet.
+     */
+    public synchronized long getHedgeDelayMillis() {
+        return _delayNanos >= 0L ? TimeUnit.NANOSECONDS.toMillis(_delayNanos) : -1L;
+    }
+
+    /**
+     * Register a new request, adding to the budget, and get the delay before hedging it.
+     *
+     * @return delay in nanoseconds or -1 for no hedging.
+     */
+    synchronized long startRequest() {
+        _hedgeBudget = Math.min(MAX_SAVED_HEDGES, _hedgeBudget + _maxHedgeRatio);
+        return _delayNanos;
+    }
+
+    /**
+     * Take a hedge from the budget.
+     *
+     * @return true if there was room for a hedge.
+     */
+    synchronized boolean tryAcquireHedge() {
+        if (_hedgeBudget >= 1.0) {
+            _hedgeBudget -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add the latency for a successful request to the samples. For a copy that lost it is the time until the other
+     * copy won, a lower bound.
+     *
+     * @param latencyNanos The time from starting the request until the response was read.
+     */
+    synchronized void recordLatency(long latencyNanos) {
+        _samples[_sampleCount++ % SAMPLE_WINDOW] = latencyNanos;
+        if (_sampleCount == 2 * SAMPLE_WINDOW) {
+            // Keep the position in the ring without overflowing
+            _sampleCount = SAMPLE_WINDOW;
+        }
+        if (_sampleCount >= MIN_SAMPLES && ++_samplesSinceRecalculation >= RECALCULATION_INTERVAL
+                        || _delayNanos < 0L && _sampleCount == MIN_SAMPLES) {
+            _samplesSinceRecalculation = 0;
+            long[] sorted = Arrays.copyOf(_samples, Math.min(_sampleCount, SAMPLE_WINDOW));
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(_percentile / 100.0 * sorted.length) - 1;
+            _delayNanos = Math.max(_minDelayNanos, sorted[Math.max(0, index)]);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Event recorder that aggregates the time spent in each {@link RequestPhase} over any number of requests in
+ * {@link LatencyHistogram} instances, one per phase plus one for the total time. Unlike the other recorders it is
+ * meant to be shared: a single instance can be used for all requests from all threads and records events without
+ * allocating memory or taking locks.
+ * <p>
+ * The events for a request are tracked per thread, which works as long as each request is sent by one thread from
+ * start to end. That is true for {@link HttpClient}, synchronous and asynchronous alike. It is not true for
+ * {@link NioHttpClient}, where an event loop thread handles many requests at once. Use
+ * {@link #newRequestRecorder()} to get a cheap recorder per request in that case.
+ *
+ * @author Erik Wramner
+ */
+public class HistogramEventRecorder implements EventRecorder {
+    private static final RequestPhase[] PHASES = RequestPhase.values();
+    private static final RequestPhase[][] PHASES_ENDED_BY_EVENT = new RequestPhase[Event.values().length][];
+    private final LatencyHistogram[] _phaseHistograms = new LatencyHistogram[PHASES.length];
+    private final LatencyHistogram _totalHistogram = new LatencyHistogram();
+    private final ThreadLocal<Timeline> _timelines;
+
+    static {
+        for (Event event : Event.values()) {
+            List<RequestPhase> phases = new ArrayList<RequestPhase>();
+            for (RequestPhase phase : PHASES) {
+                if (phase.isEndedBy(event)) {
+                    phases.add(phase);
+                }
+            }
+            PHASES_ENDED_BY_EVENT[event.ordinal()] = phases.toArray(new RequestPhase[phases.size()]);
+        }
+    }
+
+    /**
+     * Constructor.
+     */
+    public HistogramEventRecorder() {
+        for (int i = 0; i < _phaseHistograms.length; i++) {
+            _phaseHistograms[i] = new LatencyHistogram();
+        }
+        LatencyHistogram[] phaseHistograms = _phaseHistograms;
+        LatencyHistogram totalHistogram = _totalHistogram;
+        _timelines = ThreadLocal.withInitial(() -> new Timeline(phaseHistograms, totalHistogram));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event) {
+        _timelines.get().recordEvent(event, System.nanoTime());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        _timelines.get().recordEvent(event, timeNanos);
+    }
+
+    /**
+     * Get a recorder for a single request that adds to the histograms of this recorder. It is not thread safe, but
+     * the events may be recorded by any thread as long as they are not recorded concurrently.
+     *
+     * @return new recorder.
+     */
+    public EventRecorder newRequestRecorder() {
+        return new Timeline(_phaseHistograms, _totalHistogram);
+    }
+
+    /**
+     * Get the histogram for a phase.
+     *
+     * @param phase The phase.
+     * @return histogram with times in nanoseconds.
+     */
+    public LatencyHistogram getHistogram(RequestPhase phase) {
+        return _phaseHistograms[phase.ordinal()];
+    }
+
+    /**
+     * Get the histogram for the total time from {@link Event#ENTER_SEND_REQUEST} to {@link Event#EXIT_SEND_REQUEST}.
+     *
+     * @return histogram with times in nanoseconds.
+     */
+    public LatencyHistogram getTotalHistogram() {
+        return _totalHistogram;
+    }
+
+    /**
+     * Add all values from another recorder, for example one from another process.
+     *
+     * @param other The other recorder.
+     */
+    public void add(HistogramEventRecorder other) {
+        for (int i = 0; i < _phaseHistograms.length; i++) {
+            _phaseHistograms[i].add(other._phaseHistograms[i]);
+        }
+        _totalHistogram.add(other._totalHistogram);
+    }
+
+    /**
+     * Remove all values.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : _phaseHistograms) {
+            histogram.reset();
+        }
+        _totalHistogram.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (RequestPhase phase : PHASES) {
+            appendHistogram(sb, phase.name(), _phaseHistograms[phase.ordinal()]);
+            sb.append(", ");
+        }
+        appendHistogram(sb, "TOTAL", _totalHistogram);
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, LatencyHistogram histogram) {
+        sb.append(name).append(": count=").append(histogram.getCount()).append(" p50=")
+                        .append(histogram.getValueAtPercentile(50.0) / 1000L).append("us p99=")
+                        .append(histogram.getValueAtPercentile(99.0) / 1000L).append("us max=")
+                        .append(histogram.getMax() / 1000L).append("us");
+    }
+
+    /**
+     * The event times for the current request. A phase is recorded when it ends, at most once per request.
+     */
+    private static class Timeline extends NanoTimeEventRecorder {
+        private final LatencyHistogram[] _phaseHistograms;
+        private final LatencyHistogram _totalHistogram;
+        private int _recordedPhases;
+
+        Timeline(LatencyHistogram[] phaseHistograms, LatencyHistogram totalHistogram) {
+            _phaseHistograms = phaseHistograms;
+            _totalHistogram = totalHistogram;
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos) {
+            if (event == Event.ENTER_SEND_REQUEST) {
+                // New request
+                clear();
+                _recordedPhases = 0;
+            }
+            super.recordEvent(event, timeNanos);
+            for (RequestPhase phase : PHASES_ENDED_BY_EVENT[event.ordinal()]) {
+                int phaseBit = 1 << phase.ordinal();
+                if ((_recordedPhases & phaseBit) == 0 && hasEvent(phase.getStartEvent())) {
+                    _recordedPhases |= phaseBit;
+                    _phaseHistograms[phase.ordinal()].record(timeNanos - getEventTime(phase.getStartEvent()));
+                }
+            }
+            if (event == Event.EXIT_SEND_REQUEST && hasEvent(Event.ENTER_SEND_REQUEST)) {
+                _totalHistogram.record(timeNanos - getEventTime(Event.ENTER_SEND_REQUEST));
+            }
+        }
+    }
+}
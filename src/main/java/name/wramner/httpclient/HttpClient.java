@@ -17,6 +17,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
@@ -31,6 +32,13 @@ import java.util.Base64;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -38,6 +46,7 @@ import javax.net.ssl.SSLSocketFactory;
 import name.wramner.httpclient.exceptions.ProxyAuthenticationFailedException;
 import name.wramner.httpclient.exceptions.ProxyAuthenticationRequiredException;
 import name.wramner.httpclient.exceptions.ProxyProtocolException;
+import name.wramner.httpclient.exceptions.RequestPhaseTimeoutException;
 import name.wramner.httpclient.ntlm.NTLMEngine;
 import name.wramner.httpclient.ntlm.NTLMEngineException;
 
@@ -49,7 +58,8 @@ import name.wramner.httpclient.ntlm.NTLMEngineException;
  * @author Erik Wramner
  */
 public class HttpClient {
-    private static final int RECEIVE_BUFFER_SIZE = 1024;
+    static final int RECEIVE_BUFFER_SIZE = 1024;
+    private static final int CHUNK_SIZE = 8192;
     private static final String CRLF = "\r\n";
 
     /**
@@ -69,18 +79,33 @@ public class HttpClient {
      */
     private static final Set<HttpHeader> RESERVED_HEADERS = new HashSet<HttpHeader>(
                     Arrays.asList(new HttpHeader[] { HttpHeaders.CONTENT_LENGTH, HttpHeaders.ACCEPT_ENCODING,
-                                    HttpHeaders.CONNECTION, HttpHeaders.EXPECT, HttpHeaders.HOST }));
+                                    HttpHeaders.CONNECTION, HttpHeaders.EXPECT, HttpHeaders.HOST,
+                                    HttpHeaders.TRANSFER_ENCODING }));
 
     private final String _host;
     private final int _port;
+    private final String _hostHeaderValue;
     private final SSLSocketFactory _sslSocketFactory;
     private final int _connectTimeoutMillis;
     private final int _requestTimeoutMillis;
+    private final int _proxyTunnelTimeoutMillis;
+    private final int _sslHandshakeTimeoutMillis;
+    private final int _firstByteTimeoutMillis;
+    private final int _bodyIdleTimeoutMillis;
     private final boolean _use100Continue;
+    private final int _expect100ContinueTimeoutMillis;
+    private final int _expect100ContinueThreshold;
     private final String _proxyHost;
     private final int _proxyPort;
     private final PasswordAuthentication _proxyAuthentication;
     private final AuthenticationScheme _preemptiveProxyAuthenticationScheme;
+    private final Executor _executor;
+    private final HedgingPolicy _hedgingPolicy;
+    private final AdaptiveConcurrencyLimiter _concurrencyLimiter;
+    private final PriorityRequestScheduler _priorityScheduler;
+    private final Supplier<? extends EventRecorder> _eventRecorderFactory;
+    private final HttpClientMetrics _metrics;
+    private volatile ExpectContinueSupport _expectContinueSupport = ExpectContinueSupport.UNKNOWN;
 
     /**
      * Constructor.
@@ -91,25 +116,55 @@ public class HttpClient {
      * @param connectTimeoutMillis The connection timeout.
      * @param requestTimeoutMillis The read (or request) timeout.
      * @param use100Continue The flag to expect 100-continue before sending request body or not.
+     * @param expect100ContinueTimeoutMillis The maximum time to wait for 100-continue before sending the body anyway.
+     * @param expect100ContinueThreshold The minimum request body size in bytes for using 100-continue.
      * @param proxyHost The proxy host or null for no proxy.
      * @param proxyPort The proxy port.
      * @param proxyAuthentication The optional proxy user and password.
      * @param preemptiveProxyAuthenticationScheme The scheme for preemptive proxy authentication.
+     * @param executor The executor for asynchronous requests.
+     * @param hedgingPolicy The policy for hedging GET requests or null for no hedging.
+     * @param concurrencyLimiter The limiter for requests in flight or null for no limit.
+     * @param priorityScheduler The scheduler for asynchronous requests or null for no scheduling.
+     * @param proxyTunnelTimeoutMillis The timeout for the proxy tunnel or 0 for none.
+     * @param sslHandshakeTimeoutMillis The timeout for the SSL handshake or 0 for none.
+     * @param firstByteTimeoutMillis The timeout for the first response byte or 0 for none.
+     * @param bodyIdleTimeoutMillis The maximum gap between reads of the response or 0 for none.
+     * @param eventRecorderFactory The factory for a client-level event recorder per request or null for none.
+     * @param metrics The metrics registered as an MBean for the client or null for none.
      */
     HttpClient(String host, int port, SSLSocketFactory sslSocketFactory, int connectTimeoutMillis,
-                    int requestTimeoutMillis, boolean use100Continue, String proxyHost, int proxyPort,
+                    int requestTimeoutMillis, boolean use100Continue, int expect100ContinueTimeoutMillis,
+                    int expect100ContinueThreshold, String proxyHost, int proxyPort,
                     PasswordAuthentication proxyAuthentication,
-                    AuthenticationScheme preemptiveProxyAuthenticationScheme) {
+                    AuthenticationScheme preemptiveProxyAuthenticationScheme, Executor executor,
+                    HedgingPolicy hedgingPolicy, AdaptiveConcurrencyLimiter concurrencyLimiter,
+                    PriorityRequestScheduler priorityScheduler, int proxyTunnelTimeoutMillis,
+                    int sslHandshakeTimeoutMillis, int firstByteTimeoutMillis, int bodyIdleTimeoutMillis,
+                    Supplier<? extends EventRecorder> eventRecorderFactory, HttpClientMetrics metrics) {
         _host = host;
         _port = port;
+        _hostHeaderValue = host + ":" + port;
         _sslSocketFactory = sslSocketFactory;
         _connectTimeoutMillis = connectTimeoutMillis;
         _requestTimeoutMillis = requestTimeoutMillis;
         _use100Continue = use100Continue;
+        _expect100ContinueTimeoutMillis = expect100ContinueTimeoutMillis;
+        _expect100ContinueThreshold = expect100ContinueThreshold;
         _proxyHost = proxyHost;
         _proxyPort = proxyPort;
         _proxyAuthentication = proxyAuthentication;
         _preemptiveProxyAuthenticationScheme = preemptiveProxyAuthenticationScheme;
+        _executor = executor;
+        _hedgingPolicy = hedgingPolicy;
+        _concurrencyLimiter = concurrencyLimiter;
+        _priorityScheduler = priorityScheduler;
+        _proxyTunnelTimeoutMillis = proxyTunnelTimeoutMillis;
+        _sslHandshakeTimeoutMillis = sslHandshakeTimeoutMillis;
+        _firstByteTimeoutMillis = firstByteTimeoutMillis;
+        _bodyIdleTimeoutMillis = bodyIdleTimeoutMillis;
+        _eventRecorderFactory = eventRecorderFactory;
+        _metrics = metrics;
     }
 
     /**
@@ -140,20 +195,279 @@ public class HttpClient {
      */
     public HttpResponse sendRequest(EventRecorder eventRecorder, HttpRequestMethod method, String url,
                     HttpRequestBody body, HttpHeaderWithValue... requestHeaders) throws IOException {
-        eventRecorder.recordEvent(Event.ENTER_SEND_REQUEST);
+        if (shouldHedge(method)) {
+            return awaitResponse(sendUnscheduledRequestAsync(eventRecorder, method, url, body, requestHeaders));
+        }
+        return sendRequest(new RequestContext(eventRecorder), null, method, url, body, requestHeaders);
+    }
+
+    /**
+     * Send a request and stream the response body to a handler rather than keeping it in memory. The handler is
+     * called when the status line and headers have been read and returns the stream for the body, which is closed
+     * when the body is complete. The body in the returned response is empty.
+     *
+     * @param eventRecorder The event recorder for logging.
+     * @param bodyHandler The handler for the response body.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return response without body.
+     * @throws IOException on network errors or if the handler fails.
+     */
+    public HttpResponse sendRequest(EventRecorder eventRecorder, ResponseBodyHandler bodyHandler,
+                    HttpRequestMethod method, String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders)
+                    throws IOException {
+        return sendRequest(new RequestContext(eventRecorder), bodyHandler, method, url, body, requestHeaders);
+    }
+
+    /**
+     * Send a request asynchronously using the configured executor.
+     *
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param headers The custom HTTP headers if any.
+     * @return future response.
+     * @see #sendRequestAsync(EventRecorder, HttpRequestMethod, String, HttpRequestBody, HttpHeaderWithValue...)
+     */
+    public CompletableFuture<HttpResponse> sendRequestAsync(HttpRequestMethod method, String url,
+                    HttpRequestBody body, HttpHeaderWithValue... headers) {
+        return sendRequestAsync(EventRecorder.NULL_RECORDER, method, url, body, headers);
+    }
+
+    /**
+     * Send a request asynchronously using the configured executor and the provided {@link EventRecorder} for
+     * instrumentation. All events are recorded by the executing thread and the future completes after the last event,
+     * so the recorder can be read safely once the future has completed normally or exceptionally. Cancelling the
+     * future closes the socket at once, the executing thread may still record events for a short while.
+     *
+     * @param eventRecorder The event recorder for logging.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return future response.
+     */
+    public CompletableFuture<HttpResponse> sendRequestAsync(EventRecorder eventRecorder, HttpRequestMethod method,
+                    String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        return sendRequestAsync(RequestPriority.NORMAL, eventRecorder, method, url, body, requestHeaders);
+    }
+
+    /**
+     * Send a request asynchronously with a given priority. If the client has a {@link PriorityRequestScheduler} the
+     * request waits for a free slot, otherwise the priority is ignored.
+     *
+     * @param priority The priority.
+     * @param eventRecorder The event recorder for logging.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return future response.
+     * @see #sendRequestAsync(EventRecorder, HttpRequestMethod, String, HttpRequestBody, HttpHeaderWithValue...)
+     */
+    public CompletableFuture<HttpResponse> sendRequestAsync(RequestPriority priority, EventRecorder eventRecorder,
+                    HttpRequestMethod method, String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        if (_priorityScheduler != null) {
+            return _priorityScheduler.schedule(priority,
+                            () -> sendUnscheduledRequestAsync(eventRecorder, method, url, body, requestHeaders));
+        }
+        return sendUnscheduledRequestAsync(eventRecorder, method, url, body, requestHeaders);
+    }
+
+    private CompletableFuture<HttpResponse> sendUnscheduledRequestAsync(EventRecorder eventRecorder,
+                    HttpRequestMethod method, String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        if (shouldHedge(method)) {
+            return HedgedRequest.send(_hedgingPolicy, eventRecorder,
+                            r -> sendRequestAsync(new RequestContext(r), null, method, url, body, requestHeaders));
+        }
+        return sendRequestAsync(new RequestContext(eventRecorder), null, method, url, body, requestHeaders);
+    }
+
+    /**
+     * Send a request asynchronously and stream the response body to a handler. The handler is called by the executing
+     * thread before the future completes.
+     *
+     * @param eventRecorder The event recorder for logging.
+     * @param bodyHandler The handler for the response body.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return future response without body.
+     * @see #sendRequest(EventRecorder, ResponseBodyHandler, HttpRequestMethod, String, HttpRequestBody,
+     *      HttpHeaderWithValue...)
+     */
+    public CompletableFuture<HttpResponse> sendRequestAsync(EventRecorder eventRecorder,
+                    ResponseBodyHandler bodyHandler, HttpRequestMethod method, String url, HttpRequestBody body,
+                    HttpHeaderWithValue... requestHeaders) {
+        if (_priorityScheduler != null) {
+            return _priorityScheduler.schedule(RequestPriority.NORMAL, () -> sendRequestAsync(
+                            new RequestContext(eventRecorder), bodyHandler, method, url, body, requestHeaders));
+        }
+        return sendRequestAsync(new RequestContext(eventRecorder), bodyHandler, method, url, body, requestHeaders);
+    }
+
+    private CompletableFuture<HttpResponse> sendRequestAsync(RequestContext context, ResponseBodyHandler bodyHandler,
+                    HttpRequestMethod method, String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+        future.whenComplete((response, t) -> {
+            if (t instanceof CancellationException) {
+                context.abort();
+            }
+        });
+        try {
+            _executor.execute(() -> {
+                if (!future.isDone()) {
+                    try {
+                        future.complete(sendRequest(context, bodyHandler, method, url, body, requestHeaders));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Send requests with bounded concurrency and wait for all of them to complete.
+     *
+     * @param requests The requests.
+     * @param maxConcurrency The maximum number of requests in flight.
+     * @param listener The listener for responses.
+     * @throws InterruptedException if interrupted while waiting.
+     * @see #sendAll(Iterable, int, Supplier, ResponseListener)
+     */
+    public void sendAll(Iterable<HttpRequest> requests, int maxConcurrency, ResponseListener<EventRecorder> listener)
+                    throws InterruptedException {
+        sendAll(requests, maxConcurrency, () -> EventRecorder.NULL_RECORDER, listener);
+    }
+
+    /**
+     * Send requests with bounded concurrency and wait for all of them to complete. The requests are taken from the
+     * iterable only when there is room for them, so it can generate requests lazily. Each request gets a new event
+     * recorder from the factory, which is passed to the listener together with the response. The listener is called
+     * by the threads completing the requests, possibly concurrently. If the thread is interrupted no more requests
+     * are sent, but the listener is still called for requests in flight.
+     *
+     * @param requests The requests.
+     * @param maxConcurrency The maximum number of requests in flight.
+     * @param eventRecorderFactory The factory for a new event recorder per request.
+     * @param listener The listener for responses.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <R extends EventRecorder> void sendAll(Iterable<HttpRequest> requests, int maxConcurrency,
+                    Supplier<R> eventRecorderFactory, ResponseListener<? super R> listener)
+                    throws InterruptedException {
+        RequestBatch.sendAll(requests, maxConcurrency, eventRecorderFactory, listener,
+                        (eventRecorder, request) -> sendRequestAsync(request.getPriority(), eventRecorder,
+                                        request.getMethod(), request.getUrl(), request.getBody(),
+                                        request.getHeaders()));
+    }
+
+    /**
+     * Get the metrics registered as an MBean with {@link HttpClientBuilder#withMBean(String)}. The MBean stays
+     * registered until {@link HttpClientMetrics#unregisterMBean()} is called, so call it when the client is discarded.
+     *
+     * @return metrics or null if there is no MBean.
+     */
+    public HttpClientMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * Check if a request should be hedged. Only GET requests are safe to send twice.
+     *
+     * @param method The request method.
+     * @return true to hedge.
+     */
+    private boolean shouldHedge(HttpRequestMethod method) {
+        return _hedgingPolicy != null && method == HttpRequestMethod.GET;
+    }
+
+    /**
+     * Wait for an asynchronous request, translating failures to exceptions like those for synchronous requests.
+     *
+     * @param future The future response.
+     * @return response.
+     * @throws IOException on network errors.
+     */
+    static HttpResponse awaitResponse(CompletableFuture<HttpResponse> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private HttpResponse sendRequest(RequestContext context, ResponseBodyHandler bodyHandler, HttpRequestMethod method,
+                    String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) throws IOException {
+        if (_eventRecorderFactory != null) {
+            context.setEventRecorder(
+                            new CompositeEventRecorder(context.getEventRecorder(), _eventRecorderFactory.get()));
+        }
+        context.recordEvent(Event.ENTER_SEND_REQUEST);
+        context.recordRequest(_host, _port, method, url);
         Socket socket = null;
+        RoundTripTimeEventRecorder roundTripTimer = null;
+        HttpResponse response = null;
         try {
-            long deadlineMillis = System.currentTimeMillis() + _requestTimeoutMillis;
-            socket = connectToHost(eventRecorder);
-
-            StringBuilder sb = new StringBuilder();
-            sb.append(method.name()).append(' ').append(url).append(" HTTP/1.1");
-            sb.append(CRLF);
-            byte[] requestBodyBytes = body.getBytes();
-            appendRequestHeaders(sb, requestBodyBytes.length, requestHeaders);
-            sendRequest(eventRecorder, socket, sb.toString().getBytes(HTTP_HEADER_CHARSET), requestBodyBytes);
-            return readResponse(eventRecorder, socket, deadlineMillis);
+            if (_concurrencyLimiter != null) {
+                _concurrencyLimiter.acquire();
+                roundTripTimer = new RoundTripTimeEventRecorder(context.getEventRecorder());
+                context.setEventRecorder(roundTripTimer);
+            }
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_requestTimeoutMillis);
+            context.startWatchdog(deadlineNanos);
+            socket = connectToHost(context);
+
+            long contentLength = body.getContentLength();
+            boolean expectContinue = shouldExpect100Continue(contentLength);
+            ReceiveBuffer receiveBuffer = new ReceiveBuffer(RECEIVE_BUFFER_SIZE);
+            sendRequest(context, socket, receiveBuffer, method, url, requestHeaders, body, contentLength,
+                            expectContinue, deadlineNanos);
+            response = readResponse(context, socket, receiveBuffer, bodyHandler);
+            return response;
+        } catch (IOException e) {
+            if (context.isTimedOut()) {
+                RequestPhase phase = context.getTimedOutPhase();
+                SocketTimeoutException timeoutException = phase != null
+                                ? new RequestPhaseTimeoutException(phase, "Request timed out in phase " + phase)
+                                : new SocketTimeoutException("Request timed out");
+                timeoutException.initCause(e);
+                context.recordFailure(timeoutException);
+                throw timeoutException;
+            }
+            if (context.isAborted()) {
+                // Cancelled, for example a hedge that lost, report it the same way as the NIO client
+                CancellationException cancellationException = new CancellationException("Request cancelled");
+                cancellationException.initCause(e);
+                context.recordFailure(cancellationException);
+                throw cancellationException;
+            }
+            context.recordFailure(e);
+            throw e;
+        } catch (RuntimeException e) {
+            context.recordFailure(e);
+            throw e;
         } finally {
+            context.stopWatchdog();
             if (socket != null) {
                 try {
                     socket.close();
@@ -161,27 +475,102 @@ public class HttpClient {
                     // Ignore
                 }
             }
-            eventRecorder.recordEvent(Event.EXIT_SEND_REQUEST);
+            if (roundTripTimer != null) {
+                releaseConcurrencyLimit(context, roundTripTimer, response);
+            }
+            context.recordEventWithCounters(Event.EXIT_SEND_REQUEST);
         }
     }
 
-    private HttpResponse readResponse(EventRecorder eventRecorder, Socket socket, long deadlineMillis)
-                    throws IOException {
-        eventRecorder.recordEvent(Event.READING_RESPONSE);
-        HttpResponse response = readResponse(socket, deadlineMillis, true);
-        eventRecorder.recordEvent(Event.READ_RESPONSE);
+    /**
+     * Return the permit for a request to the concurrency limiter. Aborted requests, such as hedges that lost, are
+     * ignored as they say nothing about the backend. Requests that time out count as failed.
+     *
+     * @param context The request context.
+     * @param roundTripTimer The round-trip timer for the request.
+     * @param response The response or null if the request failed.
+     */
+    private void releaseConcurrencyLimit(RequestContext context, RoundTripTimeEventRecorder roundTripTimer,
+                    HttpResponse response) {
+        if (context.isAborted() && !context.isTimedOut()) {
+            _concurrencyLimiter.releaseIgnored();
+        } else if (response == null || response.getHttpResponseCode() == 429
+                        || response.getHttpResponseCode() == 503) {
+            _concurrencyLimiter.releaseDropped();
+        } else {
+            _concurrencyLimiter.releaseSucceeded(roundTripTimer.getRoundTripTimeNanos());
+        }
+    }
+
+    private HttpResponse readResponse(RequestContext context, Socket socket, ReceiveBuffer receiveBuffer,
+                    ResponseBodyHandler bodyHandler) throws IOException {
+        context.recordEvent(Event.READING_RESPONSE);
+        if (receiveBuffer.getLength() == 0) {
+            waitForFirstByte(context, socket, receiveBuffer);
+        }
+        context.recordEvent(Event.FIRST_RESPONSE_BYTE);
+        // Skip interim responses, including a 100 continue that arrived after the body was sent anyway
+        while (readInterimResponses(context, socket, receiveBuffer)) {
+            _expectContinueSupport = ExpectContinueSupport.SUPPORTED;
+        }
+        HttpResponse response;
+        if (_bodyIdleTimeoutMillis > 0) {
+            socket.setSoTimeout(_bodyIdleTimeoutMillis);
+            try {
+                response = readResponse(context, socket, receiveBuffer, true, bodyHandler);
+            } catch (SocketTimeoutException e) {
+                throw RequestPhaseTimeoutException.withCause(RequestPhase.BODY,
+                                "No data for " + _bodyIdleTimeoutMillis + " ms reading response", e);
+            }
+        } else {
+            response = readResponse(context, socket, receiveBuffer, true, bodyHandler);
+        }
+        context.recordEventWithCounters(Event.READ_RESPONSE);
         return response;
     }
 
-    private HttpResponse readResponse(Socket socket, long deadlineMillis, boolean readBodyWithoutContentLength)
+    /**
+     * Wait for the first byte of the response, with the first byte timeout rather than the request timeout if set.
+     *
+     * @param context The request context.
+     * @param socket The socket.
+     * @param receiveBuffer The empty receive buffer.
+     * @throws RequestPhaseTimeoutException on timeout.
+     * @throws IOException on other errors.
+     */
+    private void waitForFirstByte(RequestContext context, Socket socket, ReceiveBuffer receiveBuffer)
+                    throws IOException {
+        if (_firstByteTimeoutMillis > 0) {
+            socket.setSoTimeout(_firstByteTimeoutMillis);
+        }
+        try {
+            int read = receiveBuffer.fill(socket.getInputStream());
+            context.countRead(read);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of response after 0 bytes");
+            }
+        } catch (SocketTimeoutException e) {
+            if (_firstByteTimeoutMillis > 0) {
+                throw RequestPhaseTimeoutException.withCause(RequestPhase.FIRST_BYTE,
+                                "No response in " + _firstByteTimeoutMillis + " ms", e);
+            }
+            throw e;
+        }
+        if (_firstByteTimeoutMillis > 0) {
+            socket.setSoTimeout(_requestTimeoutMillis);
+        }
+    }
+
+    private HttpResponse readResponse(RequestContext context, Socket socket, ReceiveBuffer receiveBuffer,
+                    boolean readBodyWithoutContentLength, ResponseBodyHandler bodyHandler)
                     throws IOException, SocketTimeoutException, SocketException, EOFException {
-        byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+        byte[] buffer = receiveBuffer.getBytes();
         InputStream in = socket.getInputStream();
-        int totalRead = 0;
-        int bodyPosition = 0;
+        int totalRead = receiveBuffer.getLength();
+        int bodyPosition = findBodyPosition(buffer, totalRead);
         while (totalRead < buffer.length && bodyPosition == 0) {
-            updateSocketTimeout(socket, deadlineMillis);
             int read = in.read(buffer, totalRead, buffer.length - totalRead);
+            context.countRead(read);
             if (read == -1) {
                 throw new EOFException("Unexpected end of response after " + totalRead + " bytes");
             } else if (read > 0) {
@@ -202,10 +591,19 @@ public class HttpClient {
         int httpResponseCode = parseHttpStatusCode(buffer, endOfStatusLine);
         List<HttpHeaderWithValue> responseHeaders = parseHeaders(buffer, endOfStatusLine + 2, bodyPosition);
         Integer contentLength = findContentLength(responseHeaders);
+        context.recordEvent(Event.HEADERS_PARSED);
+        context.recordResponse(httpResponseCode);
 
-        byte[] body;
+        ByteArrayOutputStream bodyBuffer = null;
+        OutputStream bodyOutputStream;
+        if (bodyHandler != null) {
+            bodyOutputStream = bodyHandler.onResponse(httpResponseCode, responseHeaders);
+            context.setAbortListener(bodyHandler::onAbort);
+        } else {
+            bodyBuffer = new ByteArrayOutputStream();
+            bodyOutputStream = bodyBuffer;
+        }
         if ((contentLength != null && contentLength.intValue() > 0) || readBodyWithoutContentLength) {
-            ByteArrayOutputStream bodyOutputStream = new ByteArrayOutputStream();
             if (bodyPosition < totalRead) {
                 bodyOutputStream.write(buffer, bodyPosition, totalRead - bodyPosition);
             }
@@ -213,8 +611,8 @@ public class HttpClient {
                 // Read until content-length body bytes have been read
                 int remainingContentLength = contentLength.intValue() - (totalRead - bodyPosition);
                 while (remainingContentLength > 0) {
-                    updateSocketTimeout(socket, deadlineMillis);
                     int read = in.read(buffer, 0, Math.min(buffer.length, remainingContentLength));
+                    context.countRead(read);
                     if (read == -1) {
                         throw new EOFException("Partial response, " + remainingContentLength + " bytes missing");
                     } else if (read == 0) {
@@ -226,8 +624,8 @@ public class HttpClient {
             } else {
                 // Read until end of file
                 for (;;) {
-                    updateSocketTimeout(socket, deadlineMillis);
                     int read = in.read(buffer, 0, buffer.length);
+                    context.countRead(read);
                     if (read == -1) {
                         // Done!
                         break;
@@ -237,16 +635,17 @@ public class HttpClient {
                     bodyOutputStream.write(buffer, 0, read);
                 }
             }
-            body = bodyOutputStream.toByteArray();
-        } else {
-            body = new byte[0];
         }
+        context.recordEvent(Event.BODY_COMPLETE);
+        bodyOutputStream.close();
+        byte[] body = bodyBuffer != null ? bodyBuffer.toByteArray() : new byte[0];
 
-        HttpResponse response = new HttpResponse(httpResponseCode, responseHeaders, body);
+        HttpResponse response = new HttpResponse(httpResponseCode, responseHeaders, body,
+                        context.getSslHandshakeInfo());
         return response;
     }
 
-    private Integer findContentLength(List<HttpHeaderWithValue> responseHeaders) {
+    static Integer findContentLength(List<HttpHeaderWithValue> responseHeaders) {
         for (HttpHeaderWithValue headerWithValue : responseHeaders) {
             if (HttpHeaders.CONTENT_LENGTH.equals(headerWithValue.getHeader())) {
                 return Integer.valueOf(headerWithValue.getValue());
@@ -255,34 +654,56 @@ public class HttpClient {
         return null;
     }
 
-    private void appendRequestHeaders(StringBuilder sb, int contentLength, HttpHeaderWithValue... requestHeaders) {
-        List<HttpHeaderWithValue> requestHeaderList = new ArrayList<HttpHeaderWithValue>();
+    /**
+     * Write the request line and headers.
+     *
+     * @param out The request writer.
+     * @param hostHeaderValue The value for the host header, host and port.
+     * @param method The request method.
+     * @param url The URL.
+     * @param contentLength The request body size or -1 for chunked transfer encoding.
+     * @param contentType The content type for the body or null.
+     * @param expectContinue The flag to expect 100-continue.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @throws IOException on errors.
+     */
+    static void writeRequestHead(RequestWriter out, String hostHeaderValue, HttpRequestMethod method, String url,
+                    long contentLength, String contentType, boolean expectContinue,
+                    HttpHeaderWithValue... requestHeaders) throws IOException {
+        out.writeRequestLine(method, url);
         for (HttpHeaderWithValue headerWithValue : requestHeaders) {
             if (!RESERVED_HEADERS.contains(headerWithValue.getHeader())) {
-                requestHeaderList.add(headerWithValue);
+                out.writeHeader(headerWithValue.getHeader(), headerWithValue.getValue());
+                if (HttpHeaders.CONTENT_TYPE.equals(headerWithValue.getHeader())) {
+                    // The caller knows best
+                    contentType = null;
+                }
             }
         }
-        requestHeaderList.add(HttpHeaders.CONTENT_LENGTH.withValue(String.valueOf(contentLength)));
+        if (contentType != null) {
+            out.writeHeader(HttpHeaders.CONTENT_TYPE, contentType);
+        }
+        if (contentLength >= 0L) {
+            out.writeHeader(HttpHeaders.CONTENT_LENGTH, contentLength);
+        } else {
+            out.writeHeader(HttpHeaders.TRANSFER_ENCODING, "chunked");
+        }
         // We don't want to handle compressed data for now
-        requestHeaderList.add(HttpHeaders.ACCEPT_ENCODING.withValue("identity"));
+        out.writeHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
         // No persistent connections
-        requestHeaderList.add(HttpHeaders.CONNECTION.withValue("close"));
-        requestHeaderList.add(HttpHeaders.HOST.withValue(_host + ":" + _port));
-        if (_use100Continue) {
-            requestHeaderList.add(HttpHeaders.EXPECT.withValue("100-continue"));
-        }
-        for (HttpHeaderWithValue headerWithValue : requestHeaderList) {
-            sb.append(headerWithValue.getHeader().getName()).append(": ");
-            sb.append(headerWithValue.getValue());
-            sb.append(CRLF);
+        out.writeHeader(HttpHeaders.CONNECTION, "close");
+        out.writeHeader(HttpHeaders.HOST, hostHeaderValue);
+        if (expectContinue) {
+            out.writeHeader(HttpHeaders.EXPECT, "100-continue");
         }
-        sb.append(CRLF);
+        out.writeEndOfHead();
     }
 
-    private int parseHttpStatusCode(byte[] buffer, int endOfStatusLine) throws IOException {
+    static int parseHttpStatusCode(byte[] buffer, int endOfStatusLine) throws IOException {
         String statusLine = new String(buffer, 0, endOfStatusLine, HTTP_HEADER_CHARSET);
         String[] statusFields = statusLine.split(" ");
-        if (statusFields.length >= 3 && statusFields[0].startsWith("HTTP/")) {
+        // The reason phrase may be empty, in which case split drops it
+        if (statusFields.length >= 2 && statusFields[0].startsWith("HTTP/")) {
             return Integer.parseInt(statusFields[1]);
         } else {
             throw new IOException("Invalid HTTP response status line: " + statusLine);
@@ -292,93 +713,159 @@ public class HttpClient {
     /**
      * Send request to remote server.
      *
-     * @param eventRecorder The event recorder for statistics.
+     * @param context The request context.
      * @param socket The connected socket.
-     * @param requestHeader The request headers as bytes.
-     * @param requestBody The request body as bytes.
+     * @param receiveBuffer The buffer for the response.
+     * @param method The request method.
+     * @param url The URL.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @param requestBody The request body.
+     * @param contentLength The request body size or -1 for chunked transfer encoding.
+     * @param expectContinue The flag to wait for 100-continue before sending the body.
+     * @param deadlineNanos The deadline for the request as given by {@link System#nanoTime()}.
      *
      * @throws IOException on I/O errors.
      */
-    private void sendRequest(EventRecorder eventRecorder, Socket socket, byte[] requestHeader, byte[] requestBody)
+    private void sendRequest(RequestContext context, Socket socket, ReceiveBuffer receiveBuffer,
+                    HttpRequestMethod method, String url, HttpHeaderWithValue[] requestHeaders,
+                    HttpRequestBody requestBody, long contentLength, boolean expectContinue, long deadlineNanos)
                     throws IOException {
-        eventRecorder.recordEvent(Event.SENDING_REQUEST);
-        OutputStream out = socket.getOutputStream();
-        out.write(requestHeader);
-        if (_use100Continue) {
+        context.recordEvent(Event.SENDING_REQUEST);
+        RequestWriter out = RequestWriter.open(socket.getOutputStream());
+        try {
+            sendRequest(context, socket, out, receiveBuffer, method, url, requestHeaders, requestBody,
+                            contentLength, expectContinue, deadlineNanos);
+        } finally {
+            context.setBytesWritten(out.getBytesWritten());
+            out.release();
+        }
+    }
+
+    private void sendRequest(RequestContext context, Socket socket, RequestWriter out,
+                    ReceiveBuffer receiveBuffer, HttpRequestMethod method, String url,
+                    HttpHeaderWithValue[] requestHeaders, HttpRequestBody requestBody, long contentLength,
+                    boolean expectContinue, long deadlineNanos) throws IOException {
+        writeRequestHead(out, _hostHeaderValue, method, url, contentLength, requestBody.getContentType(),
+                        expectContinue, requestHeaders);
+        if (expectContinue) {
             out.flush();
-            eventRecorder.recordEvent(Event.SENT_HEADERS_WAITING_FOR_100_CONTINUE);
-            Thread.yield();
-            waitFor100Continue(socket);
-            eventRecorder.recordEvent(Event.RECEIVED_100_CONTINUE);
+            context.recordEvent(Event.SENT_HEADERS_WAITING_FOR_100_CONTINUE);
+            try {
+                if (waitFor100Continue(context, socket, receiveBuffer, deadlineNanos)) {
+                    _expectContinueSupport = ExpectContinueSupport.SUPPORTED;
+                    context.recordEvent(Event.RECEIVED_100_CONTINUE);
+                } else {
+                    // The server has sent a final response, so the body must not be sent
+                    return;
+                }
+            } catch (SocketTimeoutException e) {
+                if (System.nanoTime() - deadlineNanos >= 0L) {
+                    throw e;
+                }
+                // RFC 9110 allows sending the body anyway if the server does not respond in time
+                if (_expectContinueSupport == ExpectContinueSupport.UNKNOWN) {
+                    _expectContinueSupport = ExpectContinueSupport.UNSUPPORTED;
+                }
+                context.recordEvent(Event.TIMEOUT_WAITING_FOR_100_CONTINUE);
+            }
+        }
+        if (contentLength >= 0L) {
+            requestBody.writeTo(out);
+        } else {
+            ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out, CHUNK_SIZE);
+            requestBody.writeTo(chunkedOut);
+            chunkedOut.finish();
         }
-        out.write(requestBody);
         out.flush();
-        eventRecorder.recordEvent(Event.SENT_REQUEST);
+        context.setBytesWritten(out.getBytesWritten());
+        context.recordEventWithCounters(Event.SENT_REQUEST);
     }
 
     /**
-     * Wait for the server to send 100 continue. The implementation is inefficient, but keeps the rest of the code
-     * simple and this part is not performance-critical.
+     * Check if a request with a given body size should use 100-continue. Empty and small bodies are sent directly, as
+     * are bodies for hosts known to ignore the expectation. Bodies of unknown size are assumed to be large.
      *
+     * @param contentLength The request body size or -1 if unknown.
+     * @return true to use 100-continue.
+     */
+    private boolean shouldExpect100Continue(long contentLength) {
+        return _use100Continue && contentLength != 0L
+                        && (contentLength < 0L || contentLength >= _expect100ContinueThreshold)
+                        && _expectContinueSupport != ExpectContinueSupport.UNSUPPORTED;
+    }
+
+    /**
+     * Wait for the server to send 100 continue. Bytes are read into the receive buffer used for the response, so if
+     * the server sends a final response instead it can be parsed as usual.
+     *
+     * @param context The request context.
      * @param socket The socket.
+     * @param receiveBuffer The receive buffer.
+     * @param deadlineNanos The deadline for the request as given by {@link System#nanoTime()}.
+     * @return true if the server sent 100 continue, false if it sent a final response.
+     * @throws SocketTimeoutException if the server does not respond in time.
      * @throws IOException on IO errors.
      */
-    private void waitFor100Continue(Socket socket) throws IOException {
-        InputStream in = socket.getInputStream();
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        boolean foundCr = false;
-        boolean found100Continue = false;
-        for (int c = in.read();; c = in.read()) {
-            if (c == -1) {
-                throw new EOFException("End of file waiting for 100-continue!");
-            } else if (c == '\r') {
-                foundCr = true;
-            } else if (c == '\n') {
-                if (foundCr) {
-                    foundCr = false;
-                    byte[] lineAsBytes = byteStream.toByteArray();
-                    if (lineAsBytes.length == 0) {
-                        if (found100Continue) {
-                            break;
-                        } else {
-                            throw new IOException("Unexpected blank line before 100 continue!");
-                        }
-                    } else {
-                        String line = new String(lineAsBytes, HTTP_HEADER_CHARSET);
-                        if (line.startsWith("HTTP/1.1 100")) {
-                            byteStream = new ByteArrayOutputStream();
-                            found100Continue = true;
-                        } else {
-                            throw new IOException("Unexpected response waiting for 100 continue: " + line);
-                        }
-                    }
-                }
-            } else {
-                foundCr = false;
-                byteStream.write(c);
-            }
+    private boolean waitFor100Continue(RequestContext context, Socket socket, ReceiveBuffer receiveBuffer,
+                    long deadlineNanos) throws IOException {
+        long remainingTimeMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (remainingTimeMillis <= 0) {
+            throw new SocketTimeoutException("Request timed out");
+        }
+        // The request deadline is enforced by the watchdog, this is only the shorter wait for 100 continue
+        socket.setSoTimeout((int) Math.min(_expect100ContinueTimeoutMillis, remainingTimeMillis));
+        try {
+            return readInterimResponses(context, socket, receiveBuffer);
+        } finally {
+            socket.setSoTimeout(_requestTimeoutMillis);
         }
     }
 
     /**
-     * Update the socket timeout with a new value, fail on timeout.
+     * Read interim responses until 100 continue or a final response. The final response is left in the buffer.
      *
+     * @param context The request context.
      * @param socket The socket.
-     * @param deadlineMillis The deadline in milliseconds.
-     * @throws SocketTimeoutException on timeout.
-     * @throws SocketException on errors.
+     * @param receiveBuffer The receive buffer.
+     * @return true if the server sent 100 continue, false if it sent a final response.
+     * @throws IOException on IO errors, including timeouts.
      */
-    private void updateSocketTimeout(Socket socket, long deadlineMillis)
-                    throws SocketTimeoutException, SocketException {
-        long remainingTimeMillis = deadlineMillis - System.currentTimeMillis();
-        if (remainingTimeMillis <= 0) {
-            throw new SocketTimeoutException("Request timed out");
-        } else {
-            socket.setSoTimeout((int) remainingTimeMillis);
+    private boolean readInterimResponses(RequestContext context, Socket socket, ReceiveBuffer receiveBuffer)
+                    throws IOException {
+        InputStream in = socket.getInputStream();
+        for (;;) {
+            byte[] buffer = receiveBuffer.getBytes();
+            int headerEndPosition = findBodyPosition(buffer, receiveBuffer.getLength());
+            if (headerEndPosition == 0) {
+                if (receiveBuffer.isFull()) {
+                    throw new IOException("More than " + buffer.length + " bytes read before body!");
+                }
+                int read = receiveBuffer.fill(in);
+                context.countRead(read);
+                if (read == -1) {
+                    throw new EOFException(
+                                    "Unexpected end of response after " + receiveBuffer.getLength() + " bytes");
+                }
+            } else {
+                int httpResponseCode = parseHttpStatusCode(buffer, findEndOfLine(buffer, 0, headerEndPosition));
+                if (httpResponseCode == 100) {
+                    receiveBuffer.discard(headerEndPosition);
+                    return true;
+                } else if (httpResponseCode > 100 && httpResponseCode < 200) {
+                    // Ignore other interim responses
+                    receiveBuffer.discard(headerEndPosition);
+                } else {
+                    if (httpResponseCode == 417) {
+                        // Expectation failed, don't try again
+                        _expectContinueSupport = ExpectContinueSupport.UNSUPPORTED;
+                    }
+                    return false;
+                }
+            }
         }
     }
 
-    private List<HttpHeaderWithValue> parseHeaders(byte[] buffer, int startPos, int endPos) {
+    static List<HttpHeaderWithValue> parseHeaders(byte[] buffer, int startPos, int endPos) {
         List<HttpHeaderWithValue> responseHeaders = new ArrayList<HttpHeaderWithValue>();
         int lineStartPos = startPos;
         for (int lineEndPos = 1; lineEndPos < endPos; lineEndPos++) {
@@ -402,7 +889,7 @@ public class HttpClient {
         return responseHeaders;
     }
 
-    private static int findEndOfLine(byte[] buffer, int startPos, int endPos) {
+    static int findEndOfLine(byte[] buffer, int startPos, int endPos) {
         for (int pos = startPos; pos < endPos - 1; pos++) {
             if (buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
                 return pos;
@@ -411,7 +898,7 @@ public class HttpClient {
         return -1;
     }
 
-    private static int findBodyPosition(byte[] buffer, int endPos) {
+    static int findBodyPosition(byte[] buffer, int endPos) {
         int bodyPos = 0;
         while (bodyPos + 3 < endPos) {
             if (buffer[bodyPos] == '\r' && buffer[bodyPos + 1] == '\n' && buffer[bodyPos + 2] == '\r'
@@ -455,25 +942,42 @@ public class HttpClient {
     /**
      * Connect to target host directly or through proxy and complete the SSL handshake if using SSL.
      *
-     * @param recorder The event recorder.
+     * @param context The request context.
      * @return connected socket.
      * @throws IOException on errors.
      */
-    private Socket connectToHost(EventRecorder recorder) throws IOException {
-        recorder.recordEvent(Event.CONNECTING);
-        Socket nonSslSocket = (_proxyHost == null) ? connect(_host, _port) : connectThroughProxy(recorder);
-        recorder.recordEvent(Event.CONNECTED);
+    private Socket connectToHost(RequestContext context) throws IOException {
+        context.recordEvent(Event.CONNECTING);
+        Socket nonSslSocket;
+        if (_proxyHost == null) {
+            nonSslSocket = connect(context, _host, _port);
+        } else {
+            context.startPhaseWatchdog(RequestPhase.PROXY_TUNNEL, _proxyTunnelTimeoutMillis);
+            try {
+                nonSslSocket = connectThroughProxy(context);
+            } finally {
+                context.stopPhaseWatchdog();
+            }
+        }
+        context.recordEvent(Event.CONNECTED);
 
         if (_sslSocketFactory != null) {
             Socket socketToClose = nonSslSocket;
+            context.startPhaseWatchdog(RequestPhase.SSL_HANDSHAKE, _sslHandshakeTimeoutMillis);
             try {
                 SSLSocket sslSocket = (SSLSocket) _sslSocketFactory.createSocket(nonSslSocket, _host, _port, true);
                 sslSocket.setUseClientMode(true);
+                long handshakeStartTimeMillis = System.currentTimeMillis();
+                long handshakeStartTimeNanos = System.nanoTime();
                 sslSocket.startHandshake();
-                recorder.recordEvent(Event.SSL_HANDSHAKE_COMPLETE);
+                long handshakeTimeNanos = System.nanoTime() - handshakeStartTimeNanos;
+                context.recordEvent(Event.SSL_HANDSHAKE_COMPLETE);
+                context.recordSslHandshake(SslHandshakeInfo.from(sslSocket.getSession(), handshakeStartTimeMillis,
+                                handshakeTimeNanos));
                 socketToClose = null;
                 return sslSocket;
             } finally {
+                context.stopPhaseWatchdog();
                 if (socketToClose != null) {
                     socketToClose.close();
                 }
@@ -486,17 +990,24 @@ public class HttpClient {
     /**
      * Connect to the given host and port and configure the socket.
      *
+     * @param context The request context.
      * @param host The host.
      * @param port The port.
      * @return connected socket.
      * @throws IOException on errors.
      */
-    private Socket connect(String host, int port) throws IOException {
+    private Socket connect(RequestContext context, String host, int port) throws IOException {
         Socket socketToClose = null;
         try {
             Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port), _connectTimeoutMillis);
+            context.setSocket(socket);
             socketToClose = socket;
+            try {
+                socket.connect(new InetSocketAddress(host, port), _connectTimeoutMillis);
+            } catch (SocketTimeoutException e) {
+                throw RequestPhaseTimeoutException.withCause(RequestPhase.CONNECT,
+                                "Timeout connecting to " + host + ":" + port, e);
+            }
             socket.setTcpNoDelay(true);
             socket.setKeepAlive(false);
             socket.setSoTimeout(_requestTimeoutMillis);
@@ -512,25 +1023,25 @@ public class HttpClient {
     /**
      * Connect to the target host with a tunnel through the configured proxy server.
      * 
-     * @param recorder The event recorder.
+     * @param context The request context.
      * @return socket tunneling to the target host.
      * @throws IOException on errors.
      */
-    private Socket connectThroughProxy(EventRecorder recorder) throws IOException {
+    private Socket connectThroughProxy(RequestContext context) throws IOException {
         Socket socketToClose = null;
         try {
             if (_preemptiveProxyAuthenticationScheme == AuthenticationScheme.BASIC) {
-                return connectThroughProxyWithBasicAuthentication(recorder, true);
+                return connectThroughProxyWithBasicAuthentication(context, true);
             } else if (_preemptiveProxyAuthenticationScheme == AuthenticationScheme.NTLM) {
-                return connectThroughProxyWithNtlmAuthentication(recorder, true);
+                return connectThroughProxyWithNtlmAuthentication(context, true);
             }
 
-            Socket socket = connect(_proxyHost, _proxyPort);
+            Socket socket = connect(context, _proxyHost, _proxyPort);
             socketToClose = socket;
-            recorder.recordEvent(Event.CONNECTED_PROXY);
+            context.recordEvent(Event.CONNECTED_PROXY);
 
             socket.getOutputStream().write(createProxyConnectRequest().getBytes(HTTP_HEADER_CHARSET));
-            HttpResponse resp = readResponse(socket, _requestTimeoutMillis + System.currentTimeMillis(), false);
+            HttpResponse resp = readProxyResponse(socket);
 
             if (resp.isSuccess()) {
                 socketToClose = null;
@@ -542,9 +1053,9 @@ public class HttpClient {
                 List<String> proxyAuthHeaders = resp.getHeaders(HttpHeaders.PROXY_AUTHENTICATE);
                 if (_proxyAuthentication != null) {
                     if (proxyAuthHeaders.stream().anyMatch(s -> s.startsWith("Basic"))) {
-                        return connectThroughProxyWithBasicAuthentication(recorder, false);
+                        return connectThroughProxyWithBasicAuthentication(context, false);
                     } else if (proxyAuthHeaders.contains("NTLM")) {
-                        return connectThroughProxyWithNtlmAuthentication(recorder, false);
+                        return connectThroughProxyWithNtlmAuthentication(context, false);
                     }
                 }
 
@@ -564,19 +1075,19 @@ public class HttpClient {
     /**
      * Connect to the specified proxy server and send a CONNECT command along with base64-coded basic authentication.
      * 
-     * @param recorder The event recorder.
+     * @param context The request context.
      * @param recordConnected The flag to record when connected or not.
      * @return connected socket tunneling to the target host.
      * @throws IOException on errors.
      */
-    private Socket connectThroughProxyWithBasicAuthentication(EventRecorder recorder, boolean recordConnected)
+    private Socket connectThroughProxyWithBasicAuthentication(RequestContext context, boolean recordConnected)
                     throws IOException {
         Socket socketToClose = null;
         try {
-            Socket socket = connect(_proxyHost, _proxyPort);
+            Socket socket = connect(context, _proxyHost, _proxyPort);
             socketToClose = socket;
             if (recordConnected) {
-                recorder.recordEvent(Event.CONNECTED_PROXY);
+                context.recordEvent(Event.CONNECTED_PROXY);
             }
 
             socket.getOutputStream()
@@ -585,9 +1096,9 @@ public class HttpClient {
                                                             + new String(_proxyAuthentication.getPassword()))
                                                                             .getBytes(HTTP_HEADER_CHARSET))).getBytes(
                                                                                             HTTP_HEADER_CHARSET));
-            HttpResponse resp = readResponse(socket, _requestTimeoutMillis + System.currentTimeMillis(), false);
+            HttpResponse resp = readProxyResponse(socket);
             if (resp.isSuccess()) {
-                recorder.recordEvent(Event.AUTHENTICATED_PROXY);
+                context.recordEvent(Event.AUTHENTICATED_PROXY);
                 socketToClose = null;
                 return socket;
             } else if (resp.getHttpResponseCode() == 407) {
@@ -606,19 +1117,19 @@ public class HttpClient {
     /**
      * Connect to the specified proxy server, authenticate using NTLM and send a CONNECT message.
      * 
-     * @param recorder The event recorder.
+     * @param context The request context.
      * @param recordConnected The flag to record when connected or not.
      * @return connected socket tunneling to the target host.
      * @throws IOException on errors.
      */
-    private Socket connectThroughProxyWithNtlmAuthentication(EventRecorder recorder, boolean recordConnected)
+    private Socket connectThroughProxyWithNtlmAuthentication(RequestContext context, boolean recordConnected)
                     throws IOException {
         Socket socketToClose = null;
         try {
-            Socket socket = connect(_proxyHost, _proxyPort);
+            Socket socket = connect(context, _proxyHost, _proxyPort);
             socketToClose = socket;
             if (recordConnected) {
-                recorder.recordEvent(Event.CONNECTED_PROXY);
+                context.recordEvent(Event.CONNECTED_PROXY);
             }
             NTLMEngine ntlmEngine = new NTLMEngine();
             String domain = null;
@@ -628,7 +1139,7 @@ public class HttpClient {
                             .write(createProxyConnectRequest("Proxy-Authorization: NTLM "
                                             + ntlmEngine.generateType1Msg(domain, workstation))
                                                             .getBytes(HTTP_HEADER_CHARSET));
-            HttpResponse resp = readResponse(socket, _requestTimeoutMillis + System.currentTimeMillis(), false);
+            HttpResponse resp = readProxyResponse(socket);
 
             if (resp.getHttpResponseCode() == 407) {
                 String encodedChallenge = resp.getHeaders(HttpHeaders.PROXY_AUTHENTICATE).stream()
@@ -641,12 +1152,12 @@ public class HttpClient {
                                                                     new String(_proxyAuthentication.getPassword()),
                                                                     domain, workstation, encodedChallenge))
                                                                                     .getBytes(HTTP_HEADER_CHARSET));
-                    resp = readResponse(socket, _requestTimeoutMillis + System.currentTimeMillis(), false);
+                    resp = readProxyResponse(socket);
                 }
             }
 
             if (resp.isSuccess()) {
-                recorder.recordEvent(Event.AUTHENTICATED_PROXY);
+                context.recordEvent(Event.AUTHENTICATED_PROXY);
                 socketToClose = null;
                 return socket;
             } else if (resp.getHttpResponseCode() == 407) {
@@ -664,6 +1175,20 @@ public class HttpClient {
         }
     }
 
+    /**
+     * Read the response for a CONNECT request sent to the proxy server. There is no body unless the proxy specifies
+     * a content length.
+     *
+     * @param socket The socket connected to the proxy.
+     * @return response.
+     * @throws IOException on errors.
+     */
+    private HttpResponse readProxyResponse(Socket socket) throws IOException {
+        // The events are for the request, not for the tunnel
+        return readResponse(new RequestContext(EventRecorder.NULL_RECORDER), socket,
+                        new ReceiveBuffer(RECEIVE_BUFFER_SIZE), false, null);
+    }
+
     private String createProxyConnectRequest(String... headers) {
         StringBuilder sb = new StringBuilder();
         sb.append("CONNECT ").append(_host).append(':').append(_port).append(" HTTP/1.1").append(CRLF);
@@ -678,7 +1203,9 @@ public class HttpClient {
     }
 
     /**
-     * Events logged to the event recorder for a request.
+     * Events logged to the event recorder for a request. New events are added at the end, so the ordinals of existing
+     * events never change and the order is not always chronological. Recorders use the ordinals as bit positions in a
+     * long, so there can be at most 64 events.
      */
     public enum Event {
         ENTER_SEND_REQUEST, //
@@ -693,6 +1220,20 @@ public class HttpClient {
         SENT_REQUEST, //
         READING_RESPONSE, //
         READ_RESPONSE, //
-        EXIT_SEND_REQUEST
+        EXIT_SEND_REQUEST, //
+        TIMEOUT_WAITING_FOR_100_CONTINUE, //
+        HEDGE_SENT, //
+        HEDGE_WON, //
+        SCHEDULED, //
+        FIRST_RESPONSE_BYTE, //
+        HEADERS_PARSED, //
+        BODY_COMPLETE
+    }
+
+    /**
+     * What is known about the host's support for 100-continue.
+     */
+    private enum ExpectContinueSupport {
+        UNKNOWN, SUPPORTED, UNSUPPORTED
     }
 }
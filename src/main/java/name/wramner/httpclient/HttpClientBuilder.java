@@ -13,8 +13,17 @@
  */
 package name.wramner.httpclient;
 
+import java.io.IOException;
 import java.net.PasswordAuthentication;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import javax.management.JMException;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -25,17 +34,35 @@ import javax.net.ssl.SSLSocketFactory;
 public class HttpClientBuilder {
     private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
     private static final int DEFAULT_REQUEST_TIMEOUT_MS = 120000;
+    private static final int DEFAULT_100_CONTINUE_TIMEOUT_MS = 1000;
+    private static final int DEFAULT_MAX_ASYNC_THREADS = 256;
+    private static final long ASYNC_THREAD_KEEP_ALIVE_SECONDS = 60L;
     private final String _host;
     private int _port;
     private SSLSocketFactory _sslSocketFactory;
+    private SSLContext _sslContext;
     private int _connectTimeoutMillis;
     private int _requestTimeoutMillis;
+    private int _proxyTunnelTimeoutMillis;
+    private int _sslHandshakeTimeoutMillis;
+    private int _firstByteTimeoutMillis;
+    private int _bodyIdleTimeoutMillis;
     private boolean _use100Continue;
+    private int _expect100ContinueTimeoutMillis;
+    private int _expect100ContinueThreshold;
     private boolean _useSsl;
     private String _proxyHost;
     private int _proxyPort;
     private PasswordAuthentication _proxyAuthentication;
     private AuthenticationScheme _preemptiveProxyAuthenticationScheme;
+    private Executor _executor;
+    private boolean _useVirtualThreads;
+    private int _eventLoopThreads;
+    private HedgingPolicy _hedgingPolicy;
+    private AdaptiveConcurrencyLimiter _concurrencyLimiter;
+    private PriorityRequestScheduler _priorityScheduler;
+    private Supplier<? extends EventRecorder> _eventRecorderFactory;
+    private String _mbeanName;
 
     /**
      * Constructor.
@@ -46,6 +73,7 @@ public class HttpClientBuilder {
         _host = host;
         _connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MS;
         _requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MS;
+        _expect100ContinueTimeoutMillis = DEFAULT_100_CONTINUE_TIMEOUT_MS;
     }
 
     /**
@@ -73,7 +101,21 @@ public class HttpClientBuilder {
     }
 
     /**
-     * Wait for the server to send 100 continue before sending the request.
+     * Set the SSL context to use. This is needed for {@link NioHttpClient}, which can't use a socket factory. The
+     * context is also used for {@link HttpClient} unless a socket factory has been set.
+     *
+     * @param sslContext The SSL context.
+     * @return builder.
+     * @see TrustingSSLSocketFactoryProvider#getTrustingSSLContext()
+     */
+    public HttpClientBuilder withSSLContext(SSLContext sslContext) {
+        _sslContext = sslContext;
+        return this;
+    }
+
+    /**
+     * Wait for the server to send 100 continue before sending the request body. The client remembers if the server
+     * ignores the expectation and stops asking for it.
      *
      * @param use100Continue The flag to enable/disable 100 continue.
      * @return builder.
@@ -83,6 +125,29 @@ public class HttpClientBuilder {
         return this;
     }
 
+    /**
+     * Set the maximum time in milliseconds to wait for 100 continue. If the server has not responded by then the
+     * request body is sent anyway.
+     *
+     * @param timeout The 100 continue timeout.
+     * @return builder.
+     */
+    public HttpClientBuilder with100ContinueTimeout(int timeout) {
+        _expect100ContinueTimeoutMillis = timeout;
+        return this;
+    }
+
+    /**
+     * Set the minimum request body size in bytes for using 100 continue. Smaller bodies are sent directly.
+     *
+     * @param minBodySize The minimum body size.
+     * @return builder.
+     */
+    public HttpClientBuilder with100ContinueThreshold(int minBodySize) {
+        _expect100ContinueThreshold = minBodySize;
+        return this;
+    }
+
     /**
      * Set the connection timeout in milliseconds.
      *
@@ -105,6 +170,54 @@ public class HttpClientBuilder {
         return this;
     }
 
+    /**
+     * Set the timeout in milliseconds for connecting through the proxy, including the tunnel and authentication. The
+     * request timeout still applies. The default is 0, no separate timeout. Ignored by {@link NioHttpClient}.
+     *
+     * @param timeout The proxy tunnel timeout.
+     * @return builder.
+     */
+    public HttpClientBuilder withProxyTunnelTimeout(int timeout) {
+        _proxyTunnelTimeoutMillis = timeout;
+        return this;
+    }
+
+    /**
+     * Set the timeout in milliseconds for the SSL handshake. The request timeout still applies. The default is 0, no
+     * separate timeout. Ignored by {@link NioHttpClient}.
+     *
+     * @param timeout The SSL handshake timeout.
+     * @return builder.
+     */
+    public HttpClientBuilder withSslHandshakeTimeout(int timeout) {
+        _sslHandshakeTimeoutMillis = timeout;
+        return this;
+    }
+
+    /**
+     * Set the timeout in milliseconds for the first byte of the response once the request has been sent. The request
+     * timeout still applies. The default is 0, no separate timeout. Ignored by {@link NioHttpClient}.
+     *
+     * @param timeout The first byte timeout.
+     * @return builder.
+     */
+    public HttpClientBuilder withFirstByteTimeout(int timeout) {
+        _firstByteTimeoutMillis = timeout;
+        return this;
+    }
+
+    /**
+     * Set the longest time in milliseconds to wait for more data once the response has started. The request timeout
+     * still applies. The default is 0, no separate timeout. Ignored by {@link NioHttpClient}.
+     *
+     * @param timeout The body idle timeout.
+     * @return builder.
+     */
+    public HttpClientBuilder withBodyIdleTimeout(int timeout) {
+        _bodyIdleTimeoutMillis = timeout;
+        return this;
+    }
+
     /**
      * Set the TCP port to connect to. Not needed if using the default port (80 or 443).
      *
@@ -153,15 +266,195 @@ public class HttpClientBuilder {
         return this;
     }
 
+    /**
+     * Set the executor for asynchronous requests. By default the requests share a pool of at most
+     * {@value #DEFAULT_MAX_ASYNC_THREADS} daemon threads with all other clients that use the default, and requests
+     * wait in a queue when all threads are busy. Idle threads stop after a minute.
+     *
+     * @param executor The executor.
+     * @return builder.
+     * @see HttpClient#sendRequestAsync(EventRecorder, HttpRequestMethod, String, HttpRequestBody,
+     *      HttpHeaderWithValue...)
+     */
+    public HttpClientBuilder withExecutor(Executor executor) {
+        _executor = executor;
+        return this;
+    }
+
+    /**
+     * Run asynchronous requests on virtual threads, one per request. This requires Java 21 or later and makes it
+     * possible to have tens of thousands of requests in flight. An executor set with {@link #withExecutor(Executor)}
+     * takes precedence.
+     *
+     * @param useVirtualThreads The flag to use virtual threads.
+     * @return builder.
+     * @throws UnsupportedOperationException if virtual threads are not supported by the JVM.
+     */
+    public HttpClientBuilder withVirtualThreads(boolean useVirtualThreads) {
+        if (useVirtualThreads && !VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+        _useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
+    /**
+     * Set the number of event loop threads for {@link NioHttpClient}. The default is one per processor.
+     *
+     * @param threads The number of threads.
+     * @return builder.
+     */
+    public HttpClientBuilder withEventLoopThreads(int threads) {
+        _eventLoopThreads = threads;
+        return this;
+    }
+
+    /**
+     * Hedge GET requests, sending a second copy if the first is slow. The policy should be shared by all clients for
+     * the same backend. The events are passed on to the caller's recorder when the request is over, see
+     * {@link EventRecorder#recordEvent(HttpClient.Event, long)}.
+     *
+     * @param hedgingPolicy The hedging policy or null for no hedging.
+     * @return builder.
+     */
+    public HttpClientBuilder withHedging(HedgingPolicy hedgingPolicy) {
+        _hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * Limit the number of requests in flight with a limit that adapts to the backend. The limiter should be shared by
+     * all clients for the same backend. It is not used by {@link NioHttpClient}.
+     *
+     * @param concurrencyLimiter The limiter or null for no limit.
+     * @return builder.
+     */
+    public HttpClientBuilder withConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        _concurrencyLimiter = concurrencyLimiter;
+        return this;
+    }
+
+    /**
+     * Schedule asynchronous and batch requests by priority. Synchronous requests are not affected. The scheduler may
+     * be shared by several clients.
+     *
+     * @param priorityScheduler The scheduler or null for no scheduling.
+     * @return builder.
+     */
+    public HttpClientBuilder withPriorityScheduler(PriorityRequestScheduler priorityScheduler) {
+        _priorityScheduler = priorityScheduler;
+        return this;
+    }
+
+    /**
+     * Record events for all requests sent by the client, for example for metrics, in addition to the recorder given
+     * for each request. The factory is called for every request that is actually sent, including hedges, so it sees
+     * the real traffic. A copy that loses fails with a {@link java.util.concurrent.CancellationException}. It must be
+     * thread safe and the recorders it returns must be fast, as they are called by the threads sending requests. A
+     * shared recorder can be returned if it handles concurrent requests, such as {@link HistogramEventRecorder} with
+     * {@link HttpClient}, otherwise return a new recorder for each request.
+     *
+     * @param eventRecorderFactory The factory or null for no client-level recording.
+     * @return builder.
+     * @see HttpClientMetrics#newRequestRecorder()
+     */
+    public HttpClientBuilder withEventRecorderFactory(Supplier<? extends EventRecorder> eventRecorderFactory) {
+        _eventRecorderFactory = eventRecorderFactory;
+        return this;
+    }
+
+    /**
+     * Register {@link HttpClientMetrics} for the client as an MBean, so that it can be watched with JMX tools. The
+     * metrics are recorded in addition to any client-level recorder. Each client that is built gets its own metrics
+     * and the name must be unique, so building fails if the name is taken. The MBean stays registered until
+     * {@link HttpClientMetrics#unregisterMBean()} is called on the {@link HttpClient#getMetrics() client metrics} or
+     * until the {@link NioHttpClient} is closed.
+     *
+     * @param name The name for the MBean or null for no MBean.
+     * @return builder.
+     * @see HttpClientMetrics#registerMBean(String)
+     */
+    public HttpClientBuilder withMBean(String name) {
+        _mbeanName = name;
+        return this;
+    }
+
     /**
      * Get {@link HttpClient}.
      *
      * @return client.
+     * @throws IllegalStateException if the MBean can't be registered, for example because the name is taken.
      */
     public HttpClient build() {
+        HttpClientMetrics metrics = registerMBean();
+        return build(getClientEventRecorderFactory(metrics), metrics);
+    }
+
+    private HttpClient build(Supplier<? extends EventRecorder> eventRecorderFactory, HttpClientMetrics metrics) {
         return new HttpClient(_host, getPort(), getSSLSocketFactory(), _connectTimeoutMillis, _requestTimeoutMillis,
-                        _use100Continue, _proxyHost, _proxyPort, _proxyAuthentication,
-                        _preemptiveProxyAuthenticationScheme);
+                        _use100Continue, _expect100ContinueTimeoutMillis, _expect100ContinueThreshold, _proxyHost,
+                        _proxyPort, _proxyAuthentication, _preemptiveProxyAuthenticationScheme, getExecutor(),
+                        _hedgingPolicy, _concurrencyLimiter, _priorityScheduler, _proxyTunnelTimeoutMillis,
+                        _sslHandshakeTimeoutMillis, _firstByteTimeoutMillis, _bodyIdleTimeoutMillis,
+                        eventRecorderFactory, metrics);
+    }
+
+    private HttpClientMetrics registerMBean() {
+        if (_mbeanName == null) {
+            return null;
+        }
+        HttpClientMetrics metrics = new HttpClientMetrics();
+        try {
+            metrics.registerMBean(_mbeanName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register MBean " + _mbeanName, e);
+        }
+        return metrics;
+    }
+
+    private Supplier<? extends EventRecorder> getClientEventRecorderFactory(HttpClientMetrics metrics) {
+        if (metrics == null) {
+            return _eventRecorderFactory;
+        }
+        Supplier<? extends EventRecorder> eventRecorderFactory = _eventRecorderFactory;
+        if (eventRecorderFactory == null) {
+            return metrics::newRequestRecorder;
+        }
+        return () -> new CompositeEventRecorder(eventRecorderFactory.get(), metrics.newRequestRecorder());
+    }
+
+    /**
+     * Get {@link NioHttpClient}. The client starts event loop threads and must be closed when done.
+     *
+     * @return client.
+     * @throws IOException if the host can't be resolved or if the event loops can't be started.
+     * @throws UnsupportedOperationException if a proxy has been configured.
+     * @throws IllegalStateException if a SSL socket factory has been configured without a SSL context or if the MBean
+     *             can't be registered, for example because the name is taken.
+     */
+    public NioHttpClient buildNioClient() throws IOException {
+        if (_proxyHost != null) {
+            throw new UnsupportedOperationException("Proxies are not supported by the NIO client");
+        }
+        if (_sslSocketFactory != null && _sslContext == null) {
+            throw new IllegalStateException("The NIO client needs a SSL context rather than a SSL socket factory");
+        }
+        SSLContext sslContext = getSSLContext();
+        HttpClientMetrics metrics = registerMBean();
+        try {
+            return new NioHttpClient(_host, getPort(), sslContext, _connectTimeoutMillis, _requestTimeoutMillis,
+                            _eventLoopThreads > 0 ? _eventLoopThreads : Runtime.getRuntime().availableProcessors(),
+                            _hedgingPolicy, _priorityScheduler, getClientEventRecorderFactory(metrics), metrics);
+        } catch (IOException | RuntimeException e) {
+            if (metrics != null) {
+                try {
+                    metrics.unregisterMBean();
+                } catch (JMException e2) {
+                    e.addSuppressed(e2);
+                }
+            }
+            throw e;
+        }
     }
 
     /**
@@ -170,16 +463,70 @@ public class HttpClientBuilder {
      * @return SSL socket factory or null.
      */
     private SSLSocketFactory getSSLSocketFactory() {
-        return _sslSocketFactory != null ? _sslSocketFactory
-                        : (_useSsl ? (SSLSocketFactory) SSLSocketFactory.getDefault() : null);
+        if (_sslSocketFactory != null) {
+            return _sslSocketFactory;
+        } else if (_sslContext != null) {
+            return _sslContext.getSocketFactory();
+        }
+        return _useSsl ? (SSLSocketFactory) SSLSocketFactory.getDefault() : null;
     }
 
     /**
-     * Get port using the configured value or the default value for the scheme.
+     * Get SSL context or null if not using SSL.
+     *
+     * @return SSL context or null.
+     */
+    private SSLContext getSSLContext() {
+        if (_sslContext != null) {
+            return _sslContext;
+        } else if (_useSsl) {
+            try {
+                return SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No default SSL context", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the executor for asynchronous requests.
+     *
+     * @return executor.
+     */
+    private Executor getExecutor() {
+        if (_executor != null) {
+            return _executor;
+        }
+        return _useVirtualThreads ? VirtualThreads.newVirtualThreadPerTaskExecutor() : AsyncExecutorHolder.INSTANCE;
+    }
+
+    private static Executor createAsyncExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_MAX_ASYNC_THREADS, DEFAULT_MAX_ASYNC_THREADS,
+                        ASYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+                            Thread thread = new Thread(r, "HttpClient-async");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        // The pool only grows to the maximum when the core size is the maximum, let idle threads go anyway
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Get port using the configured value or the default value for the scheme. A SSL socket factory or context means
+     * SSL even if it has not been enabled explicitly, as it is used for the connections.
      *
      * @return port.
      */
     private int getPort() {
-        return _port != 0 ? _port : (_useSsl ? 443 : 80);
+        return _port != 0 ? _port : (_useSsl || _sslSocketFactory != null || _sslContext != null ? 443 : 80);
+    }
+
+    /**
+     * Singleton holder for the default executor for asynchronous requests, created on first use.
+     */
+    private static interface AsyncExecutorHolder {
+        public static final Executor INSTANCE = createAsyncExecutor();
     }
 }
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Metrics for one or more clients: requests by status class, failed requests by exception type, cancelled requests,
+ * requests in flight, connections, SSL handshakes and resumed sessions, bytes sent and received, and latency
+ * histograms for each {@link RequestPhase} and for the whole request. Attach it to clients with
+ * {@link HttpClientBuilder#withEventRecorderFactory(java.util.function.Supplier)} and {@link #newRequestRecorder()},
+ * then publish it for Prometheus with {@link MetricsHttpServer} or {@link #writeTo(Writer)} or for JMX tools with
+ * {@link #registerMBean(String)}. {@link HttpClientBuilder#withMBean} does all that for a single client.
+ * <p>
+ * The metrics are thread safe. The counters are striped, so concurrent requests don't contend when updating them.
+ * Connections are never reused, so every request opens a new connection.
+ *
+ * @author Erik Wramner
+ */
+public class HttpClientMetrics implements HttpClientMetricsMXBean {
+    private static final String MBEAN_DOMAIN = "name.wramner.httpclient";
+    private static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+    private static final long[] BUCKET_BOUNDS_MICROS = { 500L, 1000L, 2500L, 5000L, 10000L, 25000L, 50000L, 100000L,
+                    250000L, 500000L, 1000000L, 2500000L, 5000000L, 10000000L };
+    // The histogram is only exact at its own bucket boundaries, so use the boundaries just below the round values
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_MICROS.length];
+    private static final String[] BUCKET_BOUND_LABELS = new String[BUCKET_BOUNDS_MICROS.length];
+    private static final String BUCKET_HELP = " The bucket bounds are latency histogram boundaries just below round"
+                    + " values, such as 0.000499711 for 0.5 ms, as the counts are only exact at the boundaries.";
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = LatencyHistogram
+                            .getBucketBoundAtOrBelow(TimeUnit.MICROSECONDS.toNanos(BUCKET_BOUNDS_MICROS[i]));
+            BUCKET_BOUND_LABELS[i] = BigDecimal.valueOf(BUCKET_BOUNDS_NANOS[i], 9).stripTrailingZeros()
+                            .toPlainString();
+        }
+    }
+
+    private final HistogramEventRecorder _histograms = new HistogramEventRecorder();
+    private final LongAdder[] _responses = new LongAdder[STATUS_CLASSES.length];
+    private final LongAdder _failedRequests = new LongAdder();
+    private final LongAdder _cancelledRequests = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> _failuresByType = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder _requestsInFlight = new LongAdder();
+    private final LongAdder _connections = new LongAdder();
+    private final LongAdder _sslHandshakes = new LongAdder();
+    private final LongAdder _sslSessionsResumed = new LongAdder();
+    private final LongAdder _bytesWritten = new LongAdder();
+    private final LongAdder _bytesRead = new LongAdder();
+    private ObjectName _objectName;
+
+    /**
+     * Constructor.
+     */
+    public HttpClientMetrics() {
+        for (int i = 0; i < _responses.length; i++) {
+            _responses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Get a recorder for a single request that adds to these metrics. It works with all clients and it is meant to be
+     * used as a client-level recorder factory, <code>metrics::newRequestRecorder</code>.
+     *
+     * @return new recorder.
+     */
+    public EventRecorder newRequestRecorder() {
+        return new RequestRecorder();
+    }
+
+    /**
+     * Get the latency histograms.
+     *
+     * @return histograms.
+     */
+    public HistogramEventRecorder getHistograms() {
+        return _histograms;
+    }
+
+    /**
+     * Get the number of requests with a response in a given status class.
+     *
+     * @param statusClass The status class, 1 for 1xx up to 5 for 5xx.
+     * @return count.
+     */
+    public long getResponses(int statusClass) {
+        return _responses[statusClass - 1].sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCompletedRequests() {
+        long count = 0L;
+        for (LongAdder responses : _responses) {
+            count += responses.sum();
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFailedRequests() {
+        return _failedRequests.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCancelledRequests() {
+        return _cancelledRequests.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getFailuresByType() {
+        Map<String, Long> failures = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : _failuresByType.entrySet()) {
+            failures.put(entry.getKey(), Long.valueOf(entry.getValue().sum()));
+        }
+        return failures;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRequestsInFlight() {
+        return _requestsInFlight.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getConnections() {
+        return _connections.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSslHandshakes() {
+        return _sslHandshakes.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSslSessionsResumed() {
+        return _sslSessionsResumed.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesSent() {
+        return _bytesWritten.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesReceived() {
+        return _bytesRead.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, LatencyStatistics> getPhaseLatencies() {
+        Map<String, LatencyStatistics> latencies = new TreeMap<String, LatencyStatistics>();
+        for (RequestPhase phase : RequestPhase.values()) {
+            latencies.put(phase.name(), LatencyStatistics.of(_histograms.getHistogram(phase)));
+        }
+        return latencies;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LatencyStatistics getTotalLatency() {
+        return LatencyStatistics.of(_histograms.getTotalHistogram());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        for (LongAdder responses : _responses) {
+            responses.reset();
+        }
+        _failedRequests.reset();
+        _cancelledRequests.reset();
+        _failuresByType.clear();
+        _connections.reset();
+        _sslHandshakes.reset();
+        _sslSessionsResumed.reset();
+        _bytesWritten.reset();
+        _bytesRead.reset();
+        _histograms.reset();
+    }
+
+    /**
+     * Register the metrics as an MBean in the platform MBean server with the object name
+     * <code>name.wramner.httpclient:type=HttpClient,name=&lt;name&gt;</code>. The metrics can only be registered
+     * once, call {@link #unregisterMBean()} when done with them.
+     *
+     * @param name The name, typically the host of the client.
+     * @return object name.
+     * @throws InstanceAlreadyExistsException if there is already an MBean with the same name.
+     * @throws JMException if the MBean can't be registered.
+     * @throws IllegalStateException if the metrics are already registered.
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        if (_objectName != null) {
+            throw new IllegalStateException("Already registered as " + _objectName);
+        }
+        ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=HttpClient,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        _objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Unregister the MBean registered with {@link #registerMBean(String)}. Nothing happens if it is not registered.
+     *
+     * @throws JMException if the MBean can't be unregistered.
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (_objectName != null) {
+            ObjectName objectName = _objectName;
+            _objectName = null;
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+    }
+
+    /**
+     * Write the metrics in the Prometheus text exposition format, version 0.0.4.
+     *
+     * @param out The output.
+     * @throws IOException on errors.
+     */
+    public void writeTo(Writer out) throws IOException {
+        writeHeader(out, "httpclient_responses_total", "counter", "Requests with a response by HTTP status class.");
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            out.write("httpclient_responses_total{status=\"" + STATUS_CLASSES[i] + "\"} " + _responses[i].sum()
+                            + "\n");
+        }
+        writeValue(out, "httpclient_failed_requests_total", "counter", "Requests that failed.", _failedRequests.sum());
+        writeValue(out, "httpclient_cancelled_requests_total", "counter",
+                        "Requests cancelled, such as hedges that lost, not counted as failed.",
+                        _cancelledRequests.sum());
+        writeHeader(out, "httpclient_failures_total", "counter", "Failed requests by exception type.");
+        for (Map.Entry<String, Long> entry : getFailuresByType().entrySet()) {
+            out.write("httpclient_failures_total{type=\"" + entry.getKey() + "\"} " + entry.getValue() + "\n");
+        }
+        writeValue(out, "httpclient_requests_in_flight", "gauge", "Requests in progress.", _requestsInFlight.sum());
+        writeValue(out, "httpclient_connections_total", "counter", "Connections opened, one per request.",
+                        _connections.sum());
+        writeValue(out, "httpclient_ssl_handshakes_total", "counter", "SSL handshakes.", _sslHandshakes.sum());
+        writeValue(out, "httpclient_ssl_sessions_resumed_total", "counter", "SSL handshakes that resumed a session.",
+                        _sslSessionsResumed.sum());
+        writeValue(out, "httpclient_sent_bytes_total", "counter", "Bytes sent, excluding SSL overhead.",
+                        _bytesWritten.sum());
+        writeValue(out, "httpclient_received_bytes_total", "counter", "Bytes received, excluding SSL overhead.",
+                        _bytesRead.sum());
+        writeHeader(out, "httpclient_phase_duration_seconds", "histogram",
+                        "Time spent in each phase of a request." + BUCKET_HELP);
+        for (RequestPhase phase : RequestPhase.values()) {
+            String labels = "phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\",";
+            writeHistogram(out, "httpclient_phase_duration_seconds", labels, _histograms.getHistogram(phase));
+        }
+        writeHeader(out, "httpclient_request_duration_seconds", "histogram", "Total time for a request." + BUCKET_HELP);
+        writeHistogram(out, "httpclient_request_duration_seconds", "", _histograms.getTotalHistogram());
+    }
+
+    /**
+     * Get the metrics in the Prometheus text exposition format.
+     *
+     * @return metrics.
+     */
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        try {
+            writeTo(sw);
+        } catch (IOException e) {
+            // Not thrown by StringWriter
+        }
+        return sw.toString();
+    }
+
+    private void countFailure(String type) {
+        LongAdder count = _failuresByType.get(type);
+        if (count == null) {
+            count = _failuresByType.computeIfAbsent(type, t -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    private static void writeHeader(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void writeValue(Writer out, String name, String type, String help, long value) throws IOException {
+        writeHeader(out, name, type, help);
+        out.write(name + " " + value + "\n");
+    }
+
+    private static void writeHistogram(Writer out, String name, String labels, LatencyHistogram histogram)
+                    throws IOException {
+        // Take the count first, the buckets may include values recorded later but must not be above the total
+        long count = histogram.getCount();
+        for (int i = 0; i < BUCKET_BOUNDS_NANOS.length; i++) {
+            long bucketCount = Math.min(count, histogram.getCountAtOrBelow(BUCKET_BOUNDS_NANOS[i]));
+            out.write(name + "_bucket{" + labels + "le=\"" + BUCKET_BOUND_LABELS[i] + "\"} " + bucketCount + "\n");
+        }
+        out.write(name + "_bucket{" + labels + "le=\"+Inf\"} " + count + "\n");
+        String sumLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.write(name + "_sum" + sumLabels + " " + BigDecimal.valueOf(histogram.getSum(), 9).toPlainString() + "\n");
+        out.write(name + "_count" + sumLabels + " " + count + "\n");
+    }
+
+    /**
+     * Recorder for a single request.
+     */
+    private class RequestRecorder implements EventRecorder {
+        private final EventRecorder _timeline = _histograms.newRequestRecorder();
+        private int _httpResponseCode;
+        private Throwable _failure;
+        private boolean _inFlight;
+
+        @Override
+        public void recordEvent(Event event) {
+            recordEvent(event, System.nanoTime());
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos) {
+            recordEvent(event, timeNanos, 0L, 0L, 0, 0);
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                        int largestRead) {
+            _timeline.recordEvent(event, timeNanos);
+            if (event == Event.ENTER_SEND_REQUEST) {
+                _httpResponseCode = 0;
+                _failure = null;
+                _inFlight = true;
+                _requestsInFlight.increment();
+            } else if (event == Event.CONNECTING) {
+                _connections.increment();
+            } else if (event == Event.EXIT_SEND_REQUEST && _inFlight) {
+                _inFlight = false;
+                _requestsInFlight.decrement();
+                _bytesWritten.add(bytesWritten);
+                _bytesRead.add(bytesRead);
+                int statusClass = _httpResponseCode / 100;
+                if (_failure instanceof CancellationException) {
+                    _cancelledRequests.increment();
+                } else if (_failure != null || statusClass < 1 || statusClass > STATUS_CLASSES.length) {
+                    _failedRequests.increment();
+                    if (_failure != null) {
+                        countFailure(_failure.getClass().getName());
+                    }
+                } else {
+                    _responses[statusClass - 1].increment();
+                }
+            }
+        }
+
+        @Override
+        public void recordResponse(int httpResponseCode) {
+            _httpResponseCode = httpResponseCode;
+        }
+
+        @Override
+        public void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+            _sslHandshakes.increment();
+            if (sslHandshakeInfo.isSessionResumed()) {
+                _sslSessionsResumed.increment();
+            }
+        }
+
+        @Override
+        public void recordFailure(Throwable cause) {
+            _failure = cause;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.Map;
+
+/**
+ * Management interface for {@link HttpClientMetrics}, for watching clients with JConsole, VisualVM and other JMX
+ * tools.
+ *
+ * @author Erik Wramner
+ * @see HttpClientMetrics#registerMBean(String)
+ */
+public interface HttpClientMetricsMXBean {
+
+    /**
+     * Get the number of requests in progress.
+     *
+     * @return count.
+     */
+    long getRequestsInFlight();
+
+    /**
+     * Get the number of requests that completed with a response.
+     *
+     * @return count.
+     */
+    long getCompletedRequests();
+
+    /**
+     * Get the number of requests that failed.
+     *
+     * @return count.
+     */
+    long getFailedRequests();
+
+    /**
+     * Get the number of requests that were cancelled, such as hedges that lost. They are not counted as failed.
+     *
+     * @return count.
+     */
+    long getCancelledRequests();
+
+    /**
+     * Get the number of failed requests by exception class name.
+     *
+     * @return map with counts.
+     */
+    Map<String, Long> getFailuresByType();
+
+    /**
+     * Get the number of connections opened.
+     *
+     * @return count.
+     */
+    long getConnections();
+
+    /**
+     * Get the number of SSL handshakes.
+     *
+     * @return count.
+     */
+    long getSslHandshakes();
+
+    /**
+     * Get the number of SSL handshakes that resumed an earlier session.
+     *
+     * @return count.
+     */
+    long getSslSessionsResumed();
+
+    /**
+     * Get the number of bytes sent, excluding SSL overhead.
+     *
+     * @return count.
+     */
+    long getBytesSent();
+
+    /**
+     * Get the number of bytes received, excluding SSL overhead.
+     *
+     * @return count.
+     */
+    long getBytesReceived();
+
+    /**
+     * Get latency statistics for each {@link RequestPhase}.
+     *
+     * @return map with statistics by phase name.
+     */
+    Map<String, LatencyStatistics> getPhaseLatencies();
+
+    /**
+     * Get latency statistics for the whole request.
+     *
+     * @return statistics.
+     */
+    LatencyStatistics getTotalLatency();
+
+    /**
+     * Reset all counters and histograms except requests in flight.
+     */
+    void reset();
+}
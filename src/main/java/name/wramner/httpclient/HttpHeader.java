@@ -13,6 +13,7 @@
  */
 package name.wramner.httpclient;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Locale;
 
 /**
@@ -24,6 +25,7 @@ import java.util.Locale;
 public class HttpHeader implements Comparable<HttpHeader> {
     private final String _name;
     private final String _nameLowerCase;
+    private volatile byte[] _nameBytes;
 
     /**
      * Constructor.
@@ -54,6 +56,21 @@ public class HttpHeader implements Comparable<HttpHeader> {
         return _name;
     }
 
+    /**
+     * Get the header name encoded for sending. The bytes are computed once, so constants such as the ones in
+     * {@link HttpHeaders} are only encoded once.
+     *
+     * @return name as ISO-8859-1 bytes.
+     */
+    byte[] getNameBytes() {
+        byte[] nameBytes = _nameBytes;
+        if (nameBytes == null) {
+            nameBytes = _name.getBytes(StandardCharsets.ISO_8859_1);
+            _nameBytes = nameBytes;
+        }
+        return nameBytes;
+    }
+
     /**
      * {@inheritDoc}
      */
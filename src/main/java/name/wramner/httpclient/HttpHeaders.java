@@ -28,4 +28,5 @@ public interface HttpHeaders {
     public static final HttpHeader EXPECT = new HttpHeader("Expect");
     public static final HttpHeader HOST = new HttpHeader("Host");
     public static final HttpHeader PROXY_AUTHENTICATE = new HttpHeader("Proxy-Authenticate");
+    public static final HttpHeader TRANSFER_ENCODING = new HttpHeader("Transfer-Encoding");
 }
\ No newline at end of file
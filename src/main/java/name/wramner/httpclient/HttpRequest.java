@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+/**
+ * A request that can be sent later, for example as part of a batch with
+ * {@link HttpClient#sendAll(Iterable, int, java.util.function.Supplier, ResponseListener)}.
+ *
+ * @author Erik Wramner
+ */
+public class HttpRequest {
+    private static final HttpHeaderWithValue[] NO_HEADERS = new HttpHeaderWithValue[0];
+    private final HttpRequestMethod _method;
+    private final String _url;
+    private final HttpRequestBody _body;
+    private final HttpHeaderWithValue[] _headers;
+    private final RequestPriority _priority;
+
+    /**
+     * Constructor for request without body.
+     *
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     */
+    public HttpRequest(HttpRequestMethod method, String url) {
+        this(method, url, HttpRequestBody.EMPTY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param headers The custom HTTP headers if any.
+     */
+    public HttpRequest(HttpRequestMethod method, String url, HttpRequestBody body, HttpHeaderWithValue... headers) {
+        this(RequestPriority.NORMAL, method, url, body, headers);
+    }
+
+    /**
+     * Constructor with priority.
+     *
+     * @param priority The priority, used if the client has a {@link PriorityRequestScheduler}.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param headers The custom HTTP headers if any.
+     */
+    public HttpRequest(RequestPriority priority, HttpRequestMethod method, String url, HttpRequestBody body,
+                    HttpHeaderWithValue... headers) {
+        _priority = priority;
+        _method = method;
+        _url = url;
+        _body = body;
+        _headers = headers != null ? headers.clone() : NO_HEADERS;
+    }
+
+    /**
+     * Get method.
+     *
+     * @return method.
+     */
+    public HttpRequestMethod getMethod() {
+        return _method;
+    }
+
+    /**
+     * Get URL.
+     *
+     * @return URL.
+     */
+    public String getUrl() {
+        return _url;
+    }
+
+    /**
+     * Get body.
+     *
+     * @return body.
+     */
+    public HttpRequestBody getBody() {
+        return _body;
+    }
+
+    /**
+     * Get custom headers.
+     *
+     * @return headers, possibly empty.
+     */
+    public HttpHeaderWithValue[] getHeaders() {
+        return _headers.clone();
+    }
+
+    /**
+     * Get priority.
+     *
+     * @return priority.
+     */
+    public RequestPriority getPriority() {
+        return _priority;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return _method + " " + _url;
+    }
+}
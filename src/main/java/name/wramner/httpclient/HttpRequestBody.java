@@ -13,8 +13,13 @@
  */
 package name.wramner.httpclient;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
- * Interface for a HTTP request body, allowing for different implementations.
+ * Interface for a HTTP request body, allowing for different implementations. Simple bodies only need to implement
+ * {@link #getBytes()}, streaming bodies override {@link #getContentLength()} and {@link #writeTo(OutputStream)} as
+ * well.
  *
  * @author Erik Wramner
  */
@@ -35,4 +40,33 @@ public interface HttpRequestBody {
      * @return bytes.
      */
     public byte[] getBytes();
+
+    /**
+     * Get the size of the request body in bytes or -1 if it is not known in advance, in which case the body is sent
+     * with chunked transfer encoding.
+     *
+     * @return content length or -1.
+     */
+    public default long getContentLength() {
+        return getBytes().length;
+    }
+
+    /**
+     * Write the request body to a stream.
+     *
+     * @param out The output stream.
+     * @throws IOException on errors.
+     */
+    public default void writeTo(OutputStream out) throws IOException {
+        out.write(getBytes());
+    }
+
+    /**
+     * Get the content type for the body, used unless the caller specifies a content type header.
+     *
+     * @return content type or null.
+     */
+    public default String getContentType() {
+        return null;
+    }
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ public class HttpResponse {
     private final int _httpResponseCode;
     private final Map<HttpHeader, List<String>> _headerMap;
     private final byte[] _body;
+    private final SslHandshakeInfo _sslHandshakeInfo;
 
     /**
      * Constructor.
@@ -34,6 +35,19 @@ public class HttpResponse {
      * @param body The response body as bytes.
      */
     public HttpResponse(int httpResponseCode, List<HttpHeaderWithValue> headers, byte[] body) {
+        this(httpResponseCode, headers, body, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param httpResponseCode The HTTP response code.
+     * @param headers The response headers.
+     * @param body The response body as bytes.
+     * @param sslHandshakeInfo The SSL handshake details or null if not using SSL.
+     */
+    public HttpResponse(int httpResponseCode, List<HttpHeaderWithValue> headers, byte[] body,
+                    SslHandshakeInfo sslHandshakeInfo) {
         _httpResponseCode = httpResponseCode;
         _headerMap = new HashMap<HttpHeader, List<String>>();
         for (HttpHeaderWithValue headerWithValue : headers) {
@@ -45,6 +59,7 @@ public class HttpResponse {
             values.add(headerWithValue.getValue());
         }
         _body = body;
+        _sslHandshakeInfo = sslHandshakeInfo;
     }
 
     /**
@@ -102,6 +117,15 @@ public class HttpResponse {
         return _httpResponseCode;
     }
 
+    /**
+     * Get details about the SSL handshake for the connection.
+     *
+     * @return handshake details or null if not using SSL.
+     */
+    public SslHandshakeInfo getSslHandshakeInfo() {
+        return _sslHandshakeInfo;
+    }
+
     /**
      * Check if the request was successful. Requests with responses between 200 and 299 are considered successful.
      *
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram for latencies in nanoseconds with log-linear buckets, like HdrHistogram. Values below 32 have a bucket
+ * each, above that every power of two is split into 32 buckets, so the relative error is at most about 3% for any
+ * value. Recording is lock-free and does not allocate, so a histogram can be shared by any number of threads and
+ * hold any number of values in fixed memory.
+ * <p>
+ * Queries are not atomic with respect to concurrent recording, a value recorded during a query may or may not be
+ * included.
+ *
+ * @author Erik Wramner
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    private static final int SERIAL_FORMAT_VERSION = 1;
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _max = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param valueNanos The value, negative values are recorded as 0.
+     */
+    public void record(long valueNanos) {
+        long value = Math.max(0L, valueNanos);
+        _counts.incrementAndGet(getBucketIndex(value));
+        _sum.addAndGet(value);
+        for (long max = _max.get(); value > max && !_max.compareAndSet(max, value); max = _max.get()) {
+            // Retry
+        }
+    }
+
+    /**
+     * Add all values from another histogram to this one.
+     *
+     * @param other The other histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other._counts.get(i);
+            if (count != 0L) {
+                _counts.addAndGet(i, count);
+            }
+        }
+        _sum.addAndGet(other._sum.get());
+        long otherMax = other._max.get();
+        for (long max = _max.get(); otherMax > max && !_max.compareAndSet(max, otherMax); max = _max.get()) {
+            // Retry
+        }
+    }
+
+    /**
+     * Get the number of values.
+     *
+     * @return count.
+     */
+    public long getCount() {
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += _counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of values at or below a limit. The count is exact at bucket boundaries, otherwise it may include
+     * values up to about 3% above the limit.
+     *
+     * @param valueNanos The limit.
+     * @return count.
+     */
+    public long getCountAtOrBelow(long valueNanos) {
+        if (valueNanos < 0L) {
+            return 0L;
+        }
+        int lastIndex = getBucketIndex(valueNanos);
+        long count = 0L;
+        for (int i = 0; i <= lastIndex; i++) {
+            count += _counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the sum of all values.
+     *
+     * @return sum in nanoseconds.
+     */
+    public long getSum() {
+        return _sum.get();
+    }
+
+    /**
+     * Get the largest value.
+     *
+     * @return max in nanoseconds or 0 if empty.
+     */
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * Get the mean value.
+     *
+     * @return mean in nanoseconds or 0 if empty.
+     */
+    public double getMean() {
+        long count = getCount();
+        return count > 0L ? (double) _sum.get() / count : 0.0;
+    }
+
+    /**
+     * Get the value at a given percentile. The value is the highest value in the bucket, but never more than the
+     * largest value recorded.
+     *
+     * @param percentile The percentile, for example 99.9.
+     * @return value in nanoseconds or 0 if empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(percentile >= 0.0 && percentile <= 100.0)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, got " + percentile);
+        }
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = _counts.get(i);
+            total += counts[i];
+        }
+        long target = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(getBucketUpperBound(i), _max.get());
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Remove all values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            _counts.set(i, 0L);
+        }
+        _sum.set(0L);
+        _max.set(0L);
+    }
+
+    /**
+     * Write the histogram in a compact binary format, with only the buckets that are in use.
+     *
+     * @param out The output.
+     * @throws IOException on errors.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        long[] counts = new long[BUCKET_COUNT];
+        int used = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = _counts.get(i);
+            if (counts[i] != 0L) {
+                used++;
+            }
+        }
+        out.writeByte(SERIAL_FORMAT_VERSION);
+        out.writeByte(SUB_BUCKET_BITS);
+        out.writeLong(_max.get());
+        out.writeLong(_sum.get());
+        out.writeInt(used);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] != 0L) {
+                out.writeShort(i);
+                out.writeLong(counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Read a histogram written with {@link #writeTo(DataOutput)}.
+     *
+     * @param in The input.
+     * @return histogram.
+     * @throws IOException on errors or if the format is not supported.
+     */
+    public static LatencyHistogram readFrom(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        int subBucketBits = in.readUnsignedByte();
+        if (version != SERIAL_FORMAT_VERSION || subBucketBits != SUB_BUCKET_BITS) {
+            throw new IOException("Unsupported histogram format " + version + "/" + subBucketBits);
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram._max.set(in.readLong());
+        histogram._sum.set(in.readLong());
+        int used = in.readInt();
+        for (int i = 0; i < used; i++) {
+            int index = in.readUnsignedShort();
+            if (index >= BUCKET_COUNT) {
+                throw new IOException("Invalid histogram bucket " + index);
+            }
+            histogram._counts.set(index, in.readLong());
+        }
+        return histogram;
+    }
+
+    /**
+     * Get the bucket for a value. Small values map directly to buckets, larger values use the top bits.
+     *
+     * @param value The value, not negative.
+     * @return bucket index.
+     */
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * Get the highest bucket boundary at or below a value, where counts are exact.
+     *
+     * @param value The value.
+     * @return the inclusive upper bound of a bucket.
+     */
+    static long getBucketBoundAtOrBelow(long value) {
+        int index = getBucketIndex(value);
+        return index > 0 && getBucketUpperBound(index) != value ? getBucketUpperBound(index - 1)
+                        : getBucketUpperBound(index);
+    }
+
+    /**
+     * Get the highest value that maps to a bucket.
+     *
+     * @param index The bucket index.
+     * @return upper bound, inclusive.
+     */
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+        return lowerBound + (1L << shift) - 1L;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a {@link LatencyHistogram} in milliseconds, used for presenting latencies through JMX.
+ *
+ * @author Erik Wramner
+ */
+public class LatencyStatistics {
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    private final long _count;
+    private final double _meanMillis;
+    private final double _p50Millis;
+    private final double _p90Millis;
+    private final double _p99Millis;
+    private final double _maxMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param count The number of values.
+     * @param meanMillis The mean value.
+     * @param p50Millis The median.
+     * @param p90Millis The 90th percentile.
+     * @param p99Millis The 99th percentile.
+     * @param maxMillis The largest value.
+     */
+    @ConstructorProperties({ "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis" })
+    public LatencyStatistics(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis,
+                    double maxMillis) {
+        _count = count;
+        _meanMillis = meanMillis;
+        _p50Millis = p50Millis;
+        _p90Millis = p90Millis;
+        _p99Millis = p99Millis;
+        _maxMillis = maxMillis;
+    }
+
+    /**
+     * Create statistics for a histogram.
+     *
+     * @param histogram The histogram with values in nanoseconds.
+     * @return statistics.
+     */
+    public static LatencyStatistics of(LatencyHistogram histogram) {
+        return new LatencyStatistics(histogram.getCount(), histogram.getMean() / NANOS_PER_MILLI,
+                        histogram.getValueAtPercentile(50.0) / NANOS_PER_MILLI,
+                        histogram.getValueAtPercentile(90.0) / NANOS_PER_MILLI,
+                        histogram.getValueAtPercentile(99.0) / NANOS_PER_MILLI, histogram.getMax() / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Get the number of values.
+     *
+     * @return count.
+     */
+    public long getCount() {
+        return _count;
+    }
+
+    /**
+     * Get the mean value.
+     *
+     * @return mean in milliseconds.
+     */
+    public double getMeanMillis() {
+        return _meanMillis;
+    }
+
+    /**
+     * Get the median.
+     *
+     * @return median in milliseconds.
+     */
+    public double getP50Millis() {
+        return _p50Millis;
+    }
+
+    /**
+     * Get the 90th percentile.
+     *
+     * @return percentile in milliseconds.
+     */
+    public double getP90Millis() {
+        return _p90Millis;
+    }
+
+    /**
+     * Get the 99th percentile.
+     *
+     * @return percentile in milliseconds.
+     */
+    public double getP99Millis() {
+        return _p99Millis;
+    }
+
+    /**
+     * Get the largest value.
+     *
+     * @return max in milliseconds.
+     */
+    public double getMaxMillis() {
+        return _maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + _count + " mean=" + _meanMillis + "ms p50=" + _p50Millis + "ms p90=" + _p90Millis
+                        + "ms p99=" + _p99Millis + "ms max=" + _maxMillis + "ms";
+    }
+}
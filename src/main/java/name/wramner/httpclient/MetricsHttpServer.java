@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP server that publishes {@link HttpClientMetrics} for Prometheus on the path /metrics. It uses the HTTP
+ * server that comes with the JDK, so there are no external dependencies. The server runs on a single thread, which
+ * is enough for scraping. Close it when done.
+ *
+ * @author Erik Wramner
+ */
+public class MetricsHttpServer implements Closeable {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private final HttpServer _server;
+
+    /**
+     * Constructor. The server is started at once.
+     *
+     * @param metrics The metrics.
+     * @param address The address to listen on, use port 0 for any free port.
+     * @throws IOException if the server can't be started.
+     */
+    public MetricsHttpServer(HttpClientMetrics metrics, InetSocketAddress address) throws IOException {
+        _server = HttpServer.create(address, 0);
+        _server.createContext("/metrics", exchange -> handle(metrics, exchange));
+        _server.start();
+    }
+
+    /**
+     * Get the port, useful if the server was started on any free port.
+     *
+     * @return port.
+     */
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the server.
+     */
+    @Override
+    public void close() {
+        _server.stop(0);
+    }
+
+    private static void handle(HttpClientMetrics metrics, HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1L);
+                return;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(bos, StandardCharsets.UTF_8);
+            metrics.writeTo(writer);
+            writer.flush();
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1L);
+            } else {
+                exchange.sendResponseHeaders(200, bos.size());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    bos.writeTo(out);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
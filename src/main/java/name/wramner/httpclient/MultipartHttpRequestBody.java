@@ -0,0 +1,335 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HTTP request body for multipart/form-data, typically used to upload files to form endpoints. The parts are streamed
+ * one by one when the request is sent, files are not opened until then. If the size of every part is known the body
+ * is sent with a content length, otherwise with chunked transfer encoding. This class is not thread safe.
+ * <p>
+ * Parts with input streams can only be sent once, the stream is consumed and closed.
+ *
+ * @author Erik Wramner
+ */
+public class MultipartHttpRequestBody implements HttpRequestBody {
+    private static final int COPY_BUFFER_SIZE = 8192;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] DASHES = { '-', '-' };
+    private final String _boundary;
+    private final byte[] _boundaryBytes;
+    private final List<Part> _parts = new ArrayList<Part>();
+
+    /**
+     * Constructor with random boundary.
+     */
+    public MultipartHttpRequestBody() {
+        this(generateBoundary());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param boundary The boundary, which must not occur in any part.
+     */
+    public MultipartHttpRequestBody(String boundary) {
+        _boundary = boundary;
+        _boundaryBytes = boundary.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Add a text field encoded with UTF-8.
+     *
+     * @param name The field name.
+     * @param value The value.
+     * @return this body.
+     */
+    public MultipartHttpRequestBody addField(String name, String value) {
+        return addField(name, value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add a text field.
+     *
+     * @param name The field name.
+     * @param value The value.
+     * @param charset The character set for the value.
+     * @return this body.
+     */
+    public MultipartHttpRequestBody addField(String name, String value, Charset charset) {
+        return addPart(name, null, null, new ByteArrayContent(value.getBytes(charset)));
+    }
+
+    /**
+     * Add a part with bytes, for example an in-memory file.
+     *
+     * @param name The field name.
+     * @param fileName The file name or null.
+     * @param contentType The content type or null.
+     * @param content The content.
+     * @return this body.
+     */
+    public MultipartHttpRequestBody addBytes(String name, String fileName, String contentType, byte[] content) {
+        return addPart(name, fileName, contentType, new ByteArrayContent(content));
+    }
+
+    /**
+     * Add a file. The size is taken now and the file is read when the request is sent, so sending fails if the size
+     * has changed.
+     *
+     * @param name The field name.
+     * @param file The file.
+     * @param contentType The content type or null for application/octet-stream.
+     * @return this body.
+     */
+    public MultipartHttpRequestBody addFile(String name, File file, String contentType) {
+        return addPart(name, file.getName(), contentType != null ? contentType : "application/octet-stream",
+                        new FileContent(file));
+    }
+
+    /**
+     * Add a part read from an input stream. The stream is consumed and closed when the request is sent.
+     *
+     * @param name The field name.
+     * @param fileName The file name or null.
+     * @param contentType The content type or null.
+     * @param in The input stream.
+     * @param length The number of bytes in the stream or -1 if unknown.
+     * @return this body.
+     */
+    public MultipartHttpRequestBody addStream(String name, String fileName, String contentType, InputStream in,
+                    long length) {
+        return addPart(name, fileName, contentType, new InputStreamContent(in, length));
+    }
+
+    /**
+     * Get the boundary.
+     *
+     * @return boundary.
+     */
+    public String getBoundary() {
+        return _boundary;
+    }
+
+    /**
+     * Get the complete body in memory. Prefer {@link #writeTo(OutputStream)} for large bodies.
+     *
+     * @return bytes.
+     */
+    @Override
+    public byte[] getBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the total size of all parts including headers and boundaries.
+     *
+     * @return content length or -1 if the size of any part is unknown.
+     */
+    @Override
+    public long getContentLength() {
+        long contentLength = 0L;
+        for (Part part : _parts) {
+            long partContentLength = part._content.getLength();
+            if (partContentLength < 0L) {
+                return -1L;
+            }
+            contentLength += DASHES.length + _boundaryBytes.length + CRLF.length + part._headers.length
+                            + partContentLength + CRLF.length;
+        }
+        return contentLength + DASHES.length + _boundaryBytes.length + DASHES.length + CRLF.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (Part part : _parts) {
+            out.write(DASHES);
+            out.write(_boundaryBytes);
+            out.write(CRLF);
+            out.write(part._headers);
+            part._content.writeTo(out);
+            out.write(CRLF);
+        }
+        out.write(DASHES);
+        out.write(_boundaryBytes);
+        out.write(DASHES);
+        out.write(CRLF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + _boundary;
+    }
+
+    private MultipartHttpRequestBody addPart(String name, String fileName, String contentType, Content content) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+        if (fileName != null) {
+            sb.append("; filename=\"").append(escape(fileName)).append('"');
+        }
+        sb.append("\r\n");
+        if (contentType != null) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        sb.append("\r\n");
+        _parts.add(new Part(sb.toString().getBytes(StandardCharsets.UTF_8), content));
+        return this;
+    }
+
+    /**
+     * Escape a field or file name for use in a quoted string the same way browsers do.
+     *
+     * @param s The name.
+     * @return escaped name.
+     */
+    private static String escape(String s) {
+        return s.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private static String generateBoundary() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return "----HttpClientBoundary" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+    }
+
+    /**
+     * Copy a part. If the length is known it must match exactly, as it has been sent as part of the content length.
+     *
+     * @param in The input stream.
+     * @param out The output stream.
+     * @param length The expected number of bytes or -1 if unknown.
+     * @throws IOException on errors or if the length does not match.
+     */
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long totalRead = 0L;
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            totalRead += read;
+            if (length >= 0L && totalRead > length) {
+                throw new IOException("Part has more than " + length + " bytes");
+            }
+            out.write(buffer, 0, read);
+        }
+        if (length >= 0L && totalRead != length) {
+            throw new IOException("Part has " + totalRead + " bytes, expected " + length);
+        }
+    }
+
+    /**
+     * A part with pre-encoded headers and content.
+     */
+    private static class Part {
+        private final byte[] _headers;
+        private final Content _content;
+
+        Part(byte[] headers, Content content) {
+            _headers = headers;
+            _content = content;
+        }
+    }
+
+    /**
+     * Content for a part.
+     */
+    private static interface Content {
+        long getLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class ByteArrayContent implements Content {
+        private final byte[] _bytes;
+
+        ByteArrayContent(byte[] bytes) {
+            _bytes = bytes;
+        }
+
+        @Override
+        public long getLength() {
+            return _bytes.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(_bytes);
+        }
+    }
+
+    private static class FileContent implements Content {
+        private final File _file;
+        private final long _length;
+
+        FileContent(File file) {
+            _file = file;
+            _length = file.length();
+        }
+
+        @Override
+        public long getLength() {
+            return _length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = new FileInputStream(_file)) {
+                copy(in, out, _length);
+            }
+        }
+    }
+
+    private static class InputStreamContent implements Content {
+        private final InputStream _in;
+        private final long _length;
+
+        InputStreamContent(InputStream in, long length) {
+            _in = in;
+            _length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return _length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = _in) {
+                copy(in, out, _length);
+            }
+        }
+    }
+}
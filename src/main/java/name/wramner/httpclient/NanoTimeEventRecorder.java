@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Event recorder that records the time for each event in nanoseconds with the monotonic {@link System#nanoTime()}
+ * clock. Unlike {@link AbsoluteTimeEventRecorder} it can measure short phases such as SSL handshakes on a fast
+ * network, and it is not affected if the wall clock is adjusted. The times are only meaningful relative to each other.
+ * The counters for bytes and read calls are kept as well. It is not thread safe.
+ *
+ * @author Erik Wramner
+ */
+public class NanoTimeEventRecorder implements EventRecorder {
+    private final long[] _eventTimes = new long[Event.values().length];
+    private long _recordedEvents;
+    private long _bytesWritten;
+    private long _bytesRead;
+    private int _readCalls;
+    private int _largestRead;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event) {
+        recordEvent(event, System.nanoTime());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        _eventTimes[event.ordinal()] = timeNanos;
+        _recordedEvents |= 1L << event.ordinal();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        recordEvent(event, timeNanos);
+        _bytesWritten = bytesWritten;
+        _bytesRead = bytesRead;
+        _readCalls = readCalls;
+        _largestRead = largestRead;
+    }
+
+    /**
+     * Get the number of bytes written as of the last event with counters.
+     *
+     * @return bytes written.
+     */
+    public long getBytesWritten() {
+        return _bytesWritten;
+    }
+
+    /**
+     * Get the number of bytes read as of the last event with counters.
+     *
+     * @return bytes read.
+     */
+    public long getBytesRead() {
+        return _bytesRead;
+    }
+
+    /**
+     * Get the number of read calls as of the last event with counters.
+     *
+     * @return read calls.
+     */
+    public int getReadCalls() {
+        return _readCalls;
+    }
+
+    /**
+     * Get the largest number of bytes returned by a single read call as of the last event with counters.
+     *
+     * @return largest read.
+     */
+    public int getLargestRead() {
+        return _largestRead;
+    }
+
+    /**
+     * Check if an event has been recorded.
+     *
+     * @param event The event.
+     * @return true if recorded.
+     */
+    public boolean hasEvent(Event event) {
+        return (_recordedEvents & (1L << event.ordinal())) != 0L;
+    }
+
+    /**
+     * Get the time when an event occurred.
+     *
+     * @param event The event.
+     * @return time as reported by {@link System#nanoTime()} or null if the event has not happened.
+     */
+    public Long getEventTimeNanos(Event event) {
+        return hasEvent(event) ? Long.valueOf(_eventTimes[event.ordinal()]) : null;
+    }
+
+    /**
+     * Get the time when an event occurred without boxing it. Only meaningful if the event has been recorded.
+     *
+     * @param event The event.
+     * @return time as reported by {@link System#nanoTime()}.
+     */
+    long getEventTime(Event event) {
+        return _eventTimes[event.ordinal()];
+    }
+
+    /**
+     * Forget all recorded events and counters, so that the recorder can be reused for a new request.
+     */
+    void clear() {
+        _recordedEvents = 0L;
+        _bytesWritten = 0L;
+        _bytesRead = 0L;
+        _readCalls = 0;
+        _largestRead = 0;
+    }
+
+    /**
+     * Get the time in nanoseconds between two events.
+     *
+     * @param startEvent The first event.
+     * @param endEvent The second event.
+     * @return time or null if either event has not happened.
+     */
+    public Long getTimeBetween(Event startEvent, Event endEvent) {
+        return hasEvent(startEvent) && hasEvent(endEvent)
+                        ? Long.valueOf(_eventTimes[endEvent.ordinal()] - _eventTimes[startEvent.ordinal()]) : null;
+    }
+
+    /**
+     * Get the time in nanoseconds for establishing TCP connection, including any proxy tunnel.
+     *
+     * @return connection time or null.
+     */
+    public Long getConnectionTime() {
+        return getTimeBetween(Event.CONNECTING, Event.CONNECTED);
+    }
+
+    /**
+     * Get the time in nanoseconds for the SSL handshake if using SSL.
+     *
+     * @return SSL handshake time or null.
+     */
+    public Long getSslHandshakeTime() {
+        return getTimeBetween(Event.CONNECTED, Event.SSL_HANDSHAKE_COMPLETE);
+    }
+
+    /**
+     * Get the time in nanoseconds for sending the request.
+     *
+     * @return time for sending request or null.
+     */
+    public Long getSendRequestTime() {
+        return getTimeBetween(Event.SENDING_REQUEST, Event.SENT_REQUEST);
+    }
+
+    /**
+     * Get the time in nanoseconds from sending the request to receiving the first byte of the response. This is
+     * mostly the time the server spends processing the request.
+     *
+     * @return time to first byte or null.
+     */
+    public Long getTimeToFirstByte() {
+        return getTimeBetween(Event.SENT_REQUEST, Event.FIRST_RESPONSE_BYTE);
+    }
+
+    /**
+     * Get the time in nanoseconds from the first byte of the response until the headers have been parsed.
+     *
+     * @return time for headers or null.
+     */
+    public Long getHeaderTime() {
+        return getTimeBetween(Event.FIRST_RESPONSE_BYTE, Event.HEADERS_PARSED);
+    }
+
+    /**
+     * Get the time in nanoseconds for transferring the response body after the headers.
+     *
+     * @return body transfer time or null.
+     */
+    public Long getBodyTransferTime() {
+        return getTimeBetween(Event.HEADERS_PARSED, Event.BODY_COMPLETE);
+    }
+
+    /**
+     * Get the total time in nanoseconds from the actual start of the request. This should be valid for successful and
+     * failed requests alike.
+     *
+     * @return time or 0 if the request has not started.
+     */
+    public long getTotalTime() {
+        if (!hasEvent(Event.ENTER_SEND_REQUEST)) {
+            return 0L;
+        }
+        long startTime = _eventTimes[Event.ENTER_SEND_REQUEST.ordinal()];
+        long elapsed = 0L;
+        for (Event event : Event.values()) {
+            if (event != Event.SCHEDULED && hasEvent(event)) {
+                // Events such as hedging are not in chronological order, so use the latest time
+                elapsed = Math.max(elapsed, _eventTimes[event.ordinal()] - startTime);
+            }
+        }
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        Long startTime = getEventTimeNanos(Event.ENTER_SEND_REQUEST);
+        for (Event e : Event.values()) {
+            if (hasEvent(e)) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(e.name()).append(": ");
+                if (startTime != null) {
+                    sb.append(_eventTimes[e.ordinal()] - startTime.longValue()).append(" ns");
+                } else {
+                    sb.append(_eventTimes[e.ordinal()]);
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
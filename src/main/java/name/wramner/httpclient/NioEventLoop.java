@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Event loop for {@link NioHttpClient}. A single thread drives all requests assigned to the loop with a
+ * {@link Selector}. Other threads hand over work with {@link #execute(Runnable)}.
+ *
+ * @author Erik Wramner
+ */
+final class NioEventLoop implements Executor, Runnable {
+    private static final int READ_BUFFER_SIZE = 32768;
+    private static final int TIMEOUT_PURGE_THRESHOLD = 1024;
+    private final Selector _selector;
+    private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timeout> _timeouts = new PriorityQueue<Timeout>();
+    private final ByteBuffer _readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Thread _thread;
+    private volatile boolean _closed;
+    private boolean _terminated;
+
+    /**
+     * Constructor. The thread is started at once.
+     *
+     * @param name The thread name.
+     * @throws IOException if the selector can't be opened.
+     */
+    NioEventLoop(String name) throws IOException {
+        _selector = Selector.open();
+        _thread = new Thread(this, name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Run a task in the event loop thread. Tasks that are accepted always run, also if the loop is closed while they
+     * are waiting.
+     *
+     * @param task The task.
+     * @throws RejectedExecutionException if the loop has terminated.
+     */
+    @Override
+    public void execute(Runnable task) {
+        synchronized (_tasks) {
+            if (_terminated) {
+                throw new RejectedExecutionException("Client closed");
+            }
+            _tasks.add(task);
+        }
+        _selector.wakeup();
+    }
+
+    /**
+     * Stop the loop. Requests in progress fail.
+     */
+    void close() {
+        _closed = true;
+        _selector.wakeup();
+    }
+
+    /**
+     * Check if the loop has been closed.
+     *
+     * @return true if closed.
+     */
+    boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Get the selector. Must only be used by the loop thread.
+     *
+     * @return selector.
+     */
+    Selector getSelector() {
+        return _selector;
+    }
+
+    /**
+     * Get the buffer for reading from channels. It is shared by all requests in the loop, so the data must be
+     * consumed at once. Must only be used by the loop thread.
+     *
+     * @return empty buffer.
+     */
+    ByteBuffer getReadBuffer() {
+        _readBuffer.clear();
+        return _readBuffer;
+    }
+
+    /**
+     * Fail a request when a deadline expires unless it has completed by then. Must only be used by the loop thread.
+     *
+     * @param exchange The request.
+     * @param deadlineNanos The deadline as given by {@link System#nanoTime()}.
+     * @param connectTimeout The flag to report a connect timeout rather than a request timeout.
+     */
+    void addTimeout(NioExchange exchange, long deadlineNanos, boolean connectTimeout) {
+        if (_timeouts.size() > 2 * _selector.keys().size() + TIMEOUT_PURGE_THRESHOLD) {
+            // Completed requests are not removed one by one as that is costly, purge them all now and then
+            _timeouts.removeIf(t -> t._exchange.isDone());
+        }
+        _timeouts.add(new Timeout(exchange, deadlineNanos, connectTimeout));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!_closed) {
+                runTasks();
+                long selectTimeoutMillis = expireTimeouts();
+                _selector.select(selectTimeoutMillis);
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioExchange exchange = (NioExchange) key.attachment();
+                    try {
+                        exchange.onReady();
+                    } catch (RuntimeException e) {
+                        fail(exchange, e);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            _closed = true;
+            Logger.getLogger(NioEventLoop.class.getName()).log(Level.SEVERE, "Event loop failed", e);
+        } finally {
+            synchronized (_tasks) {
+                _terminated = true;
+            }
+            runTasks();
+            for (SelectionKey key : _selector.keys()) {
+                fail((NioExchange) key.attachment(), new IOException("Client closed"));
+            }
+            try {
+                _selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void runTasks() {
+        for (Runnable task = _tasks.poll(); task != null; task = _tasks.poll()) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.getLogger(NioEventLoop.class.getName()).log(Level.WARNING, "Event loop task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Fail a single request after an unexpected error, keeping the loop and other requests running.
+     *
+     * @param exchange The request.
+     * @param t The cause.
+     */
+    private static void fail(NioExchange exchange, Throwable t) {
+        try {
+            exchange.fail(t);
+        } catch (RuntimeException e) {
+            Logger.getLogger(NioEventLoop.class.getName()).log(Level.WARNING, "Failed to fail request", e);
+        }
+    }
+
+    /**
+     * Fail requests with expired deadlines.
+     *
+     * @return milliseconds until the next deadline or 0 if there is none.
+     */
+    private long expireTimeouts() {
+        long now = System.nanoTime();
+        for (Timeout timeout = _timeouts.peek(); timeout != null; timeout = _timeouts.peek()) {
+            long remainingNanos = timeout._deadlineNanos - now;
+            if (remainingNanos > 0L) {
+                return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+            }
+            _timeouts.poll();
+            try {
+                timeout._exchange.onTimeout(timeout._connectTimeout);
+            } catch (RuntimeException e) {
+                fail(timeout._exchange, e);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Deadline for a request.
+     */
+    private static class Timeout implements Comparable<Timeout> {
+        private final NioExchange _exchange;
+        private final long _deadlineNanos;
+        private final boolean _connectTimeout;
+
+        Timeout(NioExchange exchange, long deadlineNanos, boolean connectTimeout) {
+            _exchange = exchange;
+            _deadlineNanos = deadlineNanos;
+            _connectTimeout = connectTimeout;
+        }
+
+        @Override
+        public int compareTo(Timeout o) {
+            return Long.signum(_deadlineNanos - o._deadlineNanos);
+        }
+    }
+}
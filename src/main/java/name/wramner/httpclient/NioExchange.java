@@ -0,0 +1,529 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * A single request driven by a {@link NioEventLoop}. All methods except the constructor must be called by the loop
+ * thread. The request goes through the same events as with {@link HttpClient}.
+ *
+ * @author Erik Wramner
+ */
+final class NioExchange {
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private final NioEventLoop _loop;
+    private final RequestContext _context;
+    private final CompletableFuture<HttpResponse> _future;
+    private final InetSocketAddress _address;
+    private final HttpRequestMethod _method;
+    private final String _url;
+    private final SSLContext _sslContext;
+    private final int _connectTimeoutMillis;
+    private final int _requestTimeoutMillis;
+    private final ByteBuffer _request;
+    private SocketChannel _channel;
+    private SelectionKey _key;
+    private SSLEngine _sslEngine;
+    private long _handshakeStartTimeMillis;
+    private long _handshakeStartTimeNanos;
+    private ByteBuffer _netIn;
+    private ByteBuffer _netOut;
+    private State _state = State.NEW;
+    private final byte[] _headerBuffer = new byte[HttpClient.RECEIVE_BUFFER_SIZE];
+    private int _headerLength;
+    private boolean _receivedFirstByte;
+    private int _httpResponseCode;
+    private List<HttpHeaderWithValue> _responseHeaders;
+    private Integer _contentLength;
+    private ByteArrayOutputStream _body;
+
+    /**
+     * Constructor.
+     *
+     * @param loop The event loop.
+     * @param context The request context.
+     * @param future The future to complete.
+     * @param address The resolved address for the host and port.
+     * @param method The request method.
+     * @param url The URL.
+     * @param sslContext The SSL context or null for no SSL.
+     * @param connectTimeoutMillis The connection timeout.
+     * @param requestTimeoutMillis The request timeout.
+     * @param request The complete request.
+     */
+    NioExchange(NioEventLoop loop, RequestContext context, CompletableFuture<HttpResponse> future,
+                    InetSocketAddress address, HttpRequestMethod method, String url, SSLContext sslContext,
+                    int connectTimeoutMillis, int requestTimeoutMillis, ByteBuffer request) {
+        _loop = loop;
+        _context = context;
+        _future = future;
+        _address = address;
+        _method = method;
+        _url = url;
+        _sslContext = sslContext;
+        _connectTimeoutMillis = connectTimeoutMillis;
+        _requestTimeoutMillis = requestTimeoutMillis;
+        _request = request;
+    }
+
+    /**
+     * Start the request by connecting to the host.
+     */
+    void start() {
+        if (_future.isDone()) {
+            _state = State.DONE;
+            return;
+        }
+        _context.recordEvent(Event.ENTER_SEND_REQUEST);
+        _context.recordRequest(_address.getHostString(), _address.getPort(), _method, _url);
+        if (_loop.isClosed()) {
+            fail(new IOException("Client closed"));
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            _loop.addTimeout(this, now + TimeUnit.MILLISECONDS.toNanos(_requestTimeoutMillis), false);
+            _context.recordEvent(Event.CONNECTING);
+            _state = State.CONNECTING;
+            _channel = SocketChannel.open();
+            _channel.configureBlocking(false);
+            _channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            _key = _channel.register(_loop.getSelector(), 0, this);
+            if (_channel.connect(_address)) {
+                onReady();
+            } else {
+                _loop.addTimeout(this, now + TimeUnit.MILLISECONDS.toNanos(_connectTimeoutMillis), true);
+                _key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Make as much progress as possible when the channel is ready.
+     */
+    void onReady() {
+        try {
+            for (;;) {
+                switch (_state) {
+                case CONNECTING:
+                    if (!_channel.finishConnect()) {
+                        return;
+                    }
+                    _context.recordEvent(Event.CONNECTED);
+                    if (_sslContext != null) {
+                        startSslHandshake();
+                        _state = State.SSL_HANDSHAKE;
+                    } else {
+                        _context.recordEvent(Event.SENDING_REQUEST);
+                        _state = State.SENDING;
+                    }
+                    break;
+                case SSL_HANDSHAKE:
+                    if (!handshake()) {
+                        return;
+                    }
+                    _context.recordEvent(Event.SSL_HANDSHAKE_COMPLETE);
+                    _context.recordSslHandshake(SslHandshakeInfo.from(_sslEngine.getSession(),
+                                    _handshakeStartTimeMillis, System.nanoTime() - _handshakeStartTimeNanos));
+                    _context.recordEvent(Event.SENDING_REQUEST);
+                    _state = State.SENDING;
+                    break;
+                case SENDING:
+                    if (!(_sslEngine != null ? sendSsl() : send())) {
+                        return;
+                    }
+                    _context.setBytesWritten(_request.position());
+                    _context.recordEventWithCounters(Event.SENT_REQUEST);
+                    _context.recordEvent(Event.READING_RESPONSE);
+                    _state = State.READING;
+                    break;
+                case READING:
+                    if (!(_sslEngine != null ? receiveSsl() : receive())) {
+                        return;
+                    }
+                    complete();
+                    return;
+                default:
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Handle an expired deadline.
+     *
+     * @param connectTimeout The flag for connect timeout.
+     */
+    void onTimeout(boolean connectTimeout) {
+        if (connectTimeout && _state == State.CONNECTING) {
+            fail(new SocketTimeoutException("Connect timed out"));
+        } else if (!connectTimeout && _state != State.DONE) {
+            fail(new SocketTimeoutException("Request timed out"));
+        }
+    }
+
+    /**
+     * Check if the request has completed.
+     *
+     * @return true if done.
+     */
+    boolean isDone() {
+        return _state == State.DONE;
+    }
+
+    /**
+     * Fail the request unless it has completed already. The future is completed even if an event recorder fails.
+     *
+     * @param t The cause.
+     */
+    void fail(Throwable t) {
+        try {
+            if (_state != State.DONE) {
+                _state = State.DONE;
+                close();
+                _context.setBytesWritten(_request.position());
+                _context.recordFailure(t);
+                _context.recordEventWithCounters(Event.EXIT_SEND_REQUEST);
+            }
+        } finally {
+            _future.completeExceptionally(t);
+        }
+    }
+
+    private void complete() {
+        _context.recordEvent(Event.BODY_COMPLETE);
+        _context.recordEventWithCounters(Event.READ_RESPONSE);
+        _state = State.DONE;
+        close();
+        _context.recordEventWithCounters(Event.EXIT_SEND_REQUEST);
+        _future.complete(new HttpResponse(_httpResponseCode, _responseHeaders, _body.toByteArray(),
+                        _context.getSslHandshakeInfo()));
+    }
+
+    private void close() {
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void startSslHandshake() throws SSLException {
+        _sslEngine = _sslContext.createSSLEngine(_address.getHostString(), _address.getPort());
+        _sslEngine.setUseClientMode(true);
+        int packetBufferSize = _sslEngine.getSession().getPacketBufferSize();
+        _netIn = ByteBuffer.allocate(packetBufferSize);
+        _netOut = ByteBuffer.allocate(packetBufferSize);
+        _netOut.flip();
+        _handshakeStartTimeMillis = System.currentTimeMillis();
+        _handshakeStartTimeNanos = System.nanoTime();
+        _sslEngine.beginHandshake();
+    }
+
+    /**
+     * Continue the SSL handshake.
+     *
+     * @return true when done, false when waiting for the channel.
+     * @throws IOException on errors.
+     */
+    private boolean handshake() throws IOException {
+        for (;;) {
+            if (!flushNetOut()) {
+                return false;
+            }
+            switch (_sslEngine.getHandshakeStatus()) {
+            case NEED_WRAP:
+                _netOut.clear();
+                checkNotClosed(_sslEngine.wrap(EMPTY_BUFFER, _netOut));
+                _netOut.flip();
+                break;
+            case NEED_UNWRAP:
+                _netIn.flip();
+                SSLEngineResult result = _sslEngine.unwrap(_netIn, _loop.getReadBuffer());
+                _netIn.compact();
+                checkNotClosed(result);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !readNetIn()) {
+                    return false;
+                }
+                break;
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            case FINISHED:
+            case NOT_HANDSHAKING:
+                return true;
+            default:
+                throw new SSLException("Unexpected handshake status " + _sslEngine.getHandshakeStatus());
+            }
+        }
+    }
+
+    /**
+     * Write the request over a plain channel.
+     *
+     * @return true when done, false when waiting for the channel.
+     * @throws IOException on errors.
+     */
+    private boolean send() throws IOException {
+        _channel.write(_request);
+        if (_request.hasRemaining()) {
+            _key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encrypt and write the request.
+     *
+     * @return true when done, false when waiting for the channel.
+     * @throws IOException on errors.
+     */
+    private boolean sendSsl() throws IOException {
+        for (;;) {
+            if (!flushNetOut()) {
+                return false;
+            }
+            if (!_request.hasRemaining()) {
+                return true;
+            }
+            _netOut.clear();
+            checkNotClosed(_sslEngine.wrap(_request, _netOut));
+            _netOut.flip();
+        }
+    }
+
+    /**
+     * Read the response from a plain channel.
+     *
+     * @return true when the response is complete, false when waiting for the channel.
+     * @throws IOException on errors.
+     */
+    private boolean receive() throws IOException {
+        for (;;) {
+            ByteBuffer buffer = _loop.getReadBuffer();
+            int read = _channel.read(buffer);
+            if (read == 0) {
+                _key.interestOps(SelectionKey.OP_READ);
+                return false;
+            }
+            _context.countRead(read);
+            if (read == -1) {
+                return endOfStream();
+            }
+            buffer.flip();
+            if (parse(buffer)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Read and decrypt the response. Data left over from the handshake is processed first. Reads are counted as
+     * decrypted data, like for the blocking client. Handshake messages after the handshake, such as key updates,
+     * may need a reply, which is sent before reading more.
+     *
+     * @return true when the response is complete, false when waiting for the channel.
+     * @throws IOException on errors.
+     */
+    private boolean receiveSsl() throws IOException {
+        for (;;) {
+            if (!flushNetOut()) {
+                return false;
+            }
+            _netIn.flip();
+            while (_netIn.hasRemaining() && _sslEngine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                ByteBuffer buffer = _loop.getReadBuffer();
+                SSLEngineResult result = _sslEngine.unwrap(_netIn, buffer);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    _netIn.compact();
+                    return endOfStream();
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    throw new SSLException("Read buffer too small");
+                }
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                if (result.bytesProduced() > 0) {
+                    _context.countRead(result.bytesProduced());
+                }
+                buffer.flip();
+                if (parse(buffer)) {
+                    _netIn.compact();
+                    return true;
+                }
+            }
+            _netIn.compact();
+            if (_sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                _netOut.clear();
+                SSLEngineResult result = _sslEngine.wrap(EMPTY_BUFFER, _netOut);
+                _netOut.flip();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return endOfStream();
+                }
+                continue;
+            }
+            int read = _channel.read(_netIn);
+            if (read == -1) {
+                _context.countRead(read);
+                return endOfStream();
+            } else if (read == 0) {
+                _key.interestOps(SelectionKey.OP_READ);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parse response data.
+     *
+     * @param data The data.
+     * @return true when the response is complete.
+     * @throws IOException on protocol errors.
+     */
+    private boolean parse(ByteBuffer data) throws IOException {
+        if (!_receivedFirstByte && data.hasRemaining()) {
+            _receivedFirstByte = true;
+            _context.recordEvent(Event.FIRST_RESPONSE_BYTE);
+        }
+        while (_responseHeaders == null) {
+            int count = Math.min(data.remaining(), _headerBuffer.length - _headerLength);
+            data.get(_headerBuffer, _headerLength, count);
+            _headerLength += count;
+            int bodyPosition = HttpClient.findBodyPosition(_headerBuffer, _headerLength);
+            if (bodyPosition == 0) {
+                if (_headerLength == _headerBuffer.length) {
+                    throw new IOException("More than " + _headerBuffer.length + " bytes read before body!");
+                }
+                return false;
+            }
+            int endOfStatusLine = HttpClient.findEndOfLine(_headerBuffer, 0, bodyPosition);
+            int httpResponseCode = HttpClient.parseHttpStatusCode(_headerBuffer, endOfStatusLine);
+            if (httpResponseCode >= 100 && httpResponseCode < 200) {
+                // Skip interim responses
+                System.arraycopy(_headerBuffer, bodyPosition, _headerBuffer, 0, _headerLength - bodyPosition);
+                _headerLength -= bodyPosition;
+            } else {
+                _httpResponseCode = httpResponseCode;
+                _responseHeaders = HttpClient.parseHeaders(_headerBuffer, endOfStatusLine + 2, bodyPosition);
+                _contentLength = HttpClient.findContentLength(_responseHeaders);
+                _context.recordEvent(Event.HEADERS_PARSED);
+                _context.recordResponse(httpResponseCode);
+                _body = new ByteArrayOutputStream();
+                _body.write(_headerBuffer, bodyPosition, _headerLength - bodyPosition);
+            }
+        }
+        _body.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        data.position(data.limit());
+        return _contentLength != null && _body.size() >= _contentLength.intValue();
+    }
+
+    /**
+     * Handle end of stream, which is fine if the response has no content length.
+     *
+     * @return true.
+     * @throws EOFException if the response is incomplete.
+     */
+    private boolean endOfStream() throws EOFException {
+        if (_responseHeaders == null) {
+            throw new EOFException("Unexpected end of response after " + _headerLength + " bytes");
+        } else if (_contentLength != null) {
+            throw new EOFException("Partial response, " + (_contentLength.intValue() - _body.size())
+                            + " bytes missing");
+        }
+        return true;
+    }
+
+    /**
+     * Write pending encrypted data.
+     *
+     * @return true if all data has been written, false when waiting for the channel.
+     * @throws IOException on errors.
+     */
+    private boolean flushNetOut() throws IOException {
+        if (_netOut.hasRemaining()) {
+            _channel.write(_netOut);
+            if (_netOut.hasRemaining()) {
+                _key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read encrypted data.
+     *
+     * @return true if data was read, false when waiting for the channel.
+     * @throws IOException on errors.
+     */
+    private boolean readNetIn() throws IOException {
+        int read = _channel.read(_netIn);
+        if (read == -1) {
+            throw new EOFException("End of file during SSL handshake");
+        } else if (read == 0) {
+            _key.interestOps(SelectionKey.OP_READ);
+            return false;
+        }
+        return true;
+    }
+
+    private void runDelegatedTasks() {
+        for (Runnable task = _sslEngine.getDelegatedTask(); task != null; task = _sslEngine.getDelegatedTask()) {
+            task.run();
+        }
+    }
+
+    private static void checkNotClosed(SSLEngineResult result) throws SSLException {
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("SSL engine closed during handshake");
+        }
+    }
+
+    /**
+     * Request states.
+     */
+    private enum State {
+        NEW, CONNECTING, SSL_HANDSHAKE, SENDING, READING, DONE
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Non-blocking HTTP client. Requests are driven by a few event loop threads using NIO selectors rather than by a thread
+ * per request, so a single client can keep a very large number of requests in flight with little memory. The protocol
+ * is the same as for {@link HttpClient}, with a new connection for every request, but 100 continue, proxies and phase
+ * timeouts are not supported; only the connect and request timeouts apply. Every request is encoded into memory before
+ * it is sent, so request bodies are limited to {@value #MAX_REQUEST_BODY_SIZE} bytes. Use {@link HttpClient} for larger
+ * bodies. The host name is resolved once, when the client is created, so that the event loops never wait for DNS.
+ * <p>
+ * Events are recorded by the event loop threads. The future completes after the last event, so the recorder can be
+ * read safely once the future has completed. Event recorders must be fast, as they delay other requests.
+ * <p>
+ * The client is thread safe. Close it when done in order to stop the event loop threads.
+ *
+ * @author Erik Wramner
+ */
+public class NioHttpClient implements Closeable {
+    /**
+     * The maximum size for request bodies.
+     */
+    public static final int MAX_REQUEST_BODY_SIZE = 64 * 1024 * 1024;
+    private static final int INITIAL_HEAD_CAPACITY = 8192;
+    private final String _hostHeaderValue;
+    private final InetSocketAddress _address;
+    private final SSLContext _sslContext;
+    private final int _connectTimeoutMillis;
+    private final int _requestTimeoutMillis;
+    private final NioEventLoop[] _eventLoops;
+    private final AtomicInteger _nextEventLoop = new AtomicInteger();
+    private final HedgingPolicy _hedgingPolicy;
+    private final PriorityRequestScheduler _priorityScheduler;
+    private final Supplier<? extends EventRecorder> _eventRecorderFactory;
+    private final HttpClientMetrics _metrics;
+
+    /**
+     * Constructor.
+     *
+     * @param host The remote host.
+     * @param port The port.
+     * @param sslContext The SSL context or null for no SSL.
+     * @param connectTimeoutMillis The connection timeout.
+     * @param requestTimeoutMillis The request timeout.
+     * @param eventLoopThreads The number of event loop threads.
+     * @param hedgingPolicy The policy for hedging GET requests or null for no hedging.
+     * @param priorityScheduler The scheduler for requests or null for no scheduling.
+     * @param eventRecorderFactory The factory for a client-level event recorder per request or null for none.
+     * @param metrics The metrics registered as an MBean for the client or null for none.
+     * @throws UnknownHostException if the host can't be resolved.
+     * @throws IOException if the selectors can't be opened.
+     */
+    NioHttpClient(String host, int port, SSLContext sslContext, int connectTimeoutMillis,
+                    int requestTimeoutMillis, int eventLoopThreads, HedgingPolicy hedgingPolicy,
+                    PriorityRequestScheduler priorityScheduler, Supplier<? extends EventRecorder> eventRecorderFactory,
+                    HttpClientMetrics metrics) throws IOException {
+        _hostHeaderValue = host + ":" + port;
+        _address = new InetSocketAddress(host, port);
+        if (_address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        _sslContext = sslContext;
+        _connectTimeoutMillis = connectTimeoutMillis;
+        _requestTimeoutMillis = requestTimeoutMillis;
+        _hedgingPolicy = hedgingPolicy;
+        _priorityScheduler = priorityScheduler;
+        _eventRecorderFactory = eventRecorderFactory;
+        _metrics = metrics;
+        _eventLoops = new NioEventLoop[eventLoopThreads];
+        try {
+            for (int i = 0; i < eventLoopThreads; i++) {
+                _eventLoops[i] = new NioEventLoop("HttpClient-nio-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param headers The custom HTTP headers if any.
+     * @return future response.
+     * @see #sendRequest(EventRecorder, HttpRequestMethod, String, HttpRequestBody, HttpHeaderWithValue...)
+     */
+    public CompletableFuture<HttpResponse> sendRequest(HttpRequestMethod method, String url, HttpRequestBody body,
+                    HttpHeaderWithValue... headers) {
+        return sendRequest(EventRecorder.NULL_RECORDER, method, url, body, headers);
+    }
+
+    /**
+     * Send a request using the provided {@link EventRecorder} for instrumentation. The request is encoded by the
+     * calling thread and then handed over to an event loop. Cancelling the future closes the connection.
+     *
+     * @param eventRecorder The event recorder for logging.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return future response.
+     */
+    public CompletableFuture<HttpResponse> sendRequest(EventRecorder eventRecorder, HttpRequestMethod method,
+                    String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        return sendRequest(RequestPriority.NORMAL, eventRecorder, method, url, body, requestHeaders);
+    }
+
+    /**
+     * Send a request with a given priority. If the client has a {@link PriorityRequestScheduler} the request waits
+     * for a free slot, otherwise the priority is ignored.
+     *
+     * @param priority The priority.
+     * @param eventRecorder The event recorder for logging.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return future response.
+     * @see #sendRequest(EventRecorder, HttpRequestMethod, String, HttpRequestBody, HttpHeaderWithValue...)
+     */
+    public CompletableFuture<HttpResponse> sendRequest(RequestPriority priority, EventRecorder eventRecorder,
+                    HttpRequestMethod method, String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        if (_priorityScheduler != null) {
+            return _priorityScheduler.schedule(priority,
+                            () -> sendUnscheduledRequest(eventRecorder, method, url, body, requestHeaders));
+        }
+        return sendUnscheduledRequest(eventRecorder, method, url, body, requestHeaders);
+    }
+
+    private CompletableFuture<HttpResponse> sendUnscheduledRequest(EventRecorder eventRecorder,
+                    HttpRequestMethod method, String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        if (_hedgingPolicy != null && method == HttpRequestMethod.GET) {
+            return HedgedRequest.send(_hedgingPolicy, eventRecorder,
+                            r -> sendSingleRequest(r, method, url, body, requestHeaders));
+        }
+        return sendSingleRequest(eventRecorder, method, url, body, requestHeaders);
+    }
+
+    private CompletableFuture<HttpResponse> sendSingleRequest(EventRecorder eventRecorder, HttpRequestMethod method,
+                    String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+        ByteBuffer request;
+        try {
+            request = encodeRequest(method, url, body, requestHeaders);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        NioEventLoop eventLoop = _eventLoops[(_nextEventLoop.getAndIncrement() & Integer.MAX_VALUE)
+                        % _eventLoops.length];
+        RequestContext context = new RequestContext(_eventRecorderFactory != null
+                        ? new CompositeEventRecorder(eventRecorder, _eventRecorderFactory.get())
+                        : eventRecorder);
+        NioExchange exchange = new NioExchange(eventLoop, context, future, _address, method, url, _sslContext,
+                        _connectTimeoutMillis, _requestTimeoutMillis, request);
+        try {
+            eventLoop.execute(exchange::start);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("Client closed", e));
+            return future;
+        }
+        future.whenComplete((response, t) -> {
+            if (t instanceof CancellationException) {
+                try {
+                    eventLoop.execute(() -> exchange.fail(t));
+                } catch (RejectedExecutionException e) {
+                    // The loop has failed all requests already
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send requests with bounded concurrency and wait for all of them to complete.
+     *
+     * @param requests The requests.
+     * @param maxConcurrency The maximum number of requests in flight.
+     * @param listener The listener for responses.
+     * @throws InterruptedException if interrupted while waiting.
+     * @see #sendAll(Iterable, int, Supplier, ResponseListener)
+     */
+    public void sendAll(Iterable<HttpRequest> requests, int maxConcurrency, ResponseListener<EventRecorder> listener)
+                    throws InterruptedException {
+        sendAll(requests, maxConcurrency, () -> EventRecorder.NULL_RECORDER, listener);
+    }
+
+    /**
+     * Send requests with bounded concurrency and wait for all of them to complete. The requests are taken from the
+     * iterable only when there is room for them, so it can generate requests lazily. Each request gets a new event
+     * recorder from the factory, which is passed to the listener together with the response. The listener is called
+     * by the event loop threads, possibly concurrently, and must not block. If the thread is interrupted no more
+     * requests are sent, but the listener is still called for requests in flight.
+     *
+     * @param requests The requests.
+     * @param maxConcurrency The maximum number of requests in flight.
+     * @param eventRecorderFactory The factory for a new event recorder per request.
+     * @param listener The listener for responses.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <R extends EventRecorder> void sendAll(Iterable<HttpRequest> requests, int maxConcurrency,
+                    Supplier<R> eventRecorderFactory, ResponseListener<? super R> listener)
+                    throws InterruptedException {
+        RequestBatch.sendAll(requests, maxConcurrency, eventRecorderFactory, listener,
+                        (eventRecorder, request) -> sendRequest(request.getPriority(), eventRecorder,
+                                        request.getMethod(), request.getUrl(), request.getBody(),
+                                        request.getHeaders()));
+    }
+
+    /**
+     * Get the metrics registered as an MBean with {@link HttpClientBuilder#withMBean(String)}.
+     *
+     * @return metrics or null if there is no MBean.
+     */
+    public HttpClientMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * Stop the event loop threads and unregister the MBean if any. Requests in progress fail.
+     */
+    @Override
+    public void close() {
+        for (NioEventLoop eventLoop : _eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.close();
+            }
+        }
+        if (_metrics != null) {
+            try {
+                _metrics.unregisterMBean();
+            } catch (JMException e) {
+                // Ignore, the MBean server has already dropped it
+            }
+        }
+    }
+
+    /**
+     * Encode the complete request with head and body.
+     *
+     * @param method The request method.
+     * @param url The URL.
+     * @param requestBody The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return buffer ready for writing.
+     * @throws IOException if the body can't be read.
+     */
+    private ByteBuffer encodeRequest(HttpRequestMethod method, String url, HttpRequestBody requestBody,
+                    HttpHeaderWithValue... requestHeaders) throws IOException {
+        byte[] bodyBytes = requestBody.getContentLength() < 0L ? requestBody.getBytes() : null;
+        long contentLength = bodyBytes != null ? bodyBytes.length : requestBody.getContentLength();
+        if (contentLength > MAX_REQUEST_BODY_SIZE) {
+            throw new IOException("The request body size " + contentLength + " exceeds the limit "
+                            + MAX_REQUEST_BODY_SIZE + " for the NIO client");
+        }
+        RequestBuffer buffer = new RequestBuffer((int) contentLength + INITIAL_HEAD_CAPACITY);
+        RequestWriter out = RequestWriter.open(buffer);
+        try {
+            HttpClient.writeRequestHead(out, _hostHeaderValue, method, url, contentLength,
+                            requestBody.getContentType(), false, requestHeaders);
+            if (bodyBytes != null) {
+                out.write(bodyBytes);
+            } else {
+                requestBody.writeTo(out);
+            }
+            out.flush();
+        } finally {
+            out.release();
+        }
+        return buffer.toByteBuffer();
+    }
+
+    /**
+     * Buffer for an encoded request that can be sent without copying.
+     */
+    private static class RequestBuffer extends ByteArrayOutputStream {
+        RequestBuffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Small lock-free pool for reusing objects that are expensive to allocate per request. The pool is shared by all
+ * threads, as a thread-local cache would not help virtual threads, which are typically created for a single request,
+ * or the NIO client, where a request moves between threads. Each call probes a few random slots, so a busy pool may
+ * hand out new objects and drop returned ones rather than making threads wait.
+ *
+ * @author Erik Wramner
+ */
+final class ObjectPool<T> {
+    private static final int POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int POOL_PROBES = 4;
+    private final AtomicReferenceArray<T> _slots = new AtomicReferenceArray<T>(POOL_SIZE);
+    private final Supplier<? extends T> _factory;
+
+    /**
+     * Constructor.
+     *
+     * @param factory The factory for new objects when the pool is empty.
+     */
+    ObjectPool(Supplier<? extends T> factory) {
+        _factory = factory;
+    }
+
+    /**
+     * Take an object from the pool, or a new one if none is available.
+     *
+     * @return object.
+     */
+    T take() {
+        T object = null;
+        int slot = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+        for (int i = 0; i < POOL_PROBES && object == null; i++) {
+            object = _slots.getAndSet((slot + i) % POOL_SIZE, null);
+        }
+        return object != null ? object : _factory.get();
+    }
+
+    /**
+     * Return an object to the pool. It is dropped if the probed slots are taken.
+     *
+     * @param object The object, which must not be used after this.
+     */
+    void put(T object) {
+        int slot = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+        for (int i = 0; i < POOL_PROBES; i++) {
+            if (_slots.compareAndSet((slot + i) % POOL_SIZE, null, object)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Load generator that starts requests at a fixed rate regardless of how fast they complete. A closed loop that waits
+ * for each response before sending the next request slows down when the server stalls and never measures the
+ * requests it failed to send, so it under-reports latency. Here every request has an intended start time. It is
+ * recorded as {@link Event#SCHEDULED} with {@link EventRecorder#recordEvent(Event, long)} before the request is
+ * handed over to the client, so the timeline shows both the latency from the intended start and from the actual
+ * start in {@link Event#ENTER_SEND_REQUEST}.
+ * <p>
+ * The client must not block the caller when sending, so {@link HttpClient} needs an executor with enough threads
+ * for the requests in flight, such as the default or virtual threads. {@link NioHttpClient} is a good fit.
+ *
+ * @author Erik Wramner
+ */
+public class OpenLoopLoadGenerator {
+    private final BiFunction<EventRecorder, HttpRequest, CompletableFuture<HttpResponse>> _sender;
+    private final double _requestsPerSecond;
+    private final int _maxRequestsInFlight;
+
+    /**
+     * Constructor.
+     *
+     * @param client The client.
+     * @param requestsPerSecond The arrival rate.
+     * @param maxRequestsInFlight The maximum number of requests in flight, further requests fail at once.
+     */
+    public OpenLoopLoadGenerator(HttpClient client, double requestsPerSecond, int maxRequestsInFlight) {
+        this((eventRecorder, request) -> client.sendRequestAsync(request.getPriority(), eventRecorder,
+                        request.getMethod(), request.getUrl(), request.getBody(), request.getHeaders()),
+                        requestsPerSecond, maxRequestsInFlight);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client The non-blocking client.
+     * @param requestsPerSecond The arrival rate.
+     * @param maxRequestsInFlight The maximum number of requests in flight, further requests fail at once.
+     */
+    public OpenLoopLoadGenerator(NioHttpClient client, double requestsPerSecond, int maxRequestsInFlight) {
+        this((eventRecorder, request) -> client.sendRequest(request.getPriority(), eventRecorder, request.getMethod(),
+                        request.getUrl(), request.getBody(), request.getHeaders()), requestsPerSecond,
+                        maxRequestsInFlight);
+    }
+
+    private OpenLoopLoadGenerator(BiFunction<EventRecorder, HttpRequest, CompletableFuture<HttpResponse>> sender,
+                    double requestsPerSecond, int maxRequestsInFlight) {
+        if (!(requestsPerSecond > 0.0)) {
+            throw new IllegalArgumentException("The rate must be positive, got " + requestsPerSecond);
+        }
+        if (maxRequestsInFlight < 1) {
+            throw new IllegalArgumentException("Max requests in flight must be at least 1, got " + maxRequestsInFlight);
+        }
+        _sender = sender;
+        _requestsPerSecond = requestsPerSecond;
+        _maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    /**
+     * Send requests at the configured rate and wait for all of them to complete. The listener is called for every
+     * request, including requests that could not be sent because too many were in flight; they fail with a
+     * {@link RejectedExecutionException}. The listener is called by the threads completing the requests, possibly
+     * concurrently. If the thread is interrupted no more requests are sent.
+     *
+     * @param requests The requests, for example {@link java.util.Collections#nCopies(int, Object)}.
+     * @param eventRecorderFactory The factory for a new event recorder per request.
+     * @param listener The listener for responses.
+     * @throws InterruptedException if interrupted.
+     */
+    public <R extends EventRecorder> void run(Iterable<HttpRequest> requests, Supplier<R> eventRecorderFactory,
+                    ResponseListener<? super R> listener) throws InterruptedException {
+        Semaphore permits = new Semaphore(_maxRequestsInFlight);
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1L) / _requestsPerSecond;
+        long startTimeNanos = System.nanoTime();
+        long count = 0L;
+        for (HttpRequest request : requests) {
+            long intendedTimeNanos = startTimeNanos + (long) (count++ * intervalNanos);
+            long delay;
+            while ((delay = intendedTimeNanos - System.nanoTime()) > 0L) {
+                LockSupport.parkNanos(delay);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            R eventRecorder = eventRecorderFactory.get();
+            eventRecorder.recordEvent(Event.SCHEDULED, intendedTimeNanos);
+            if (!permits.tryAcquire()) {
+                listener.onFailure(request, new RejectedExecutionException("Too many requests in flight"),
+                                eventRecorder);
+                continue;
+            }
+            RequestBatch.send(_sender, eventRecorder, request).whenComplete((response, t) -> {
+                try {
+                    RequestBatch.notifyListener(listener, request, response, t, eventRecorder);
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        permits.acquire(_maxRequestsInFlight);
+    }
+}
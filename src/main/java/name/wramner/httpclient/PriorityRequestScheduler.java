@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Scheduler for asynchronous requests with priorities. At most a fixed number of scheduled requests are in flight,
+ * each with its own connection, and the rest wait in a queue per {@link RequestPriority}. Some of the slots are
+ * reserved for {@link RequestPriority#HIGH} requests, so that health checks and other critical requests can start at
+ * once even when the client is saturated with bulk requests.
+ * <p>
+ * Waiting requests age: for every aging interval spent in the queue a request competes as if it had one priority
+ * class higher. This means that a steady stream of high priority requests can delay but never starve the others.
+ * Aging does not give access to the reserved slots.
+ * <p>
+ * The scheduler is thread safe and may be shared by several clients in order to bound the total number of
+ * connections.
+ *
+ * @author Erik Wramner
+ * @see HttpClientBuilder#withPriorityScheduler(PriorityRequestScheduler)
+ */
+public class PriorityRequestScheduler {
+    private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+    private static final ThreadLocal<List<ScheduledRequest>> STARTING = new ThreadLocal<List<ScheduledRequest>>();
+    private final int _maxConcurrency;
+    private final int _reservedHighPrioritySlots;
+    private final long _agingNanos;
+    private final List<ArrayDeque<ScheduledRequest>> _queues = new ArrayList<ArrayDeque<ScheduledRequest>>();
+    private int _inFlight;
+    private int _highPriorityInFlight;
+    private int _queueLength;
+
+    /**
+     * Constructor.
+     *
+     * @param maxConcurrency The maximum number of requests in flight.
+     * @param reservedHighPrioritySlots The number of slots only used by high priority requests.
+     * @param agingMillis The time a request waits before it competes as the next higher priority class.
+     */
+    public PriorityRequestScheduler(int maxConcurrency, int reservedHighPrioritySlots, int agingMillis) {
+        if (maxConcurrency < 1 || reservedHighPrioritySlots < 0 || reservedHighPrioritySlots >= maxConcurrency) {
+            throw new IllegalArgumentException("Invalid slots, need 0 <= reserved < max and max >= 1");
+        }
+        if (agingMillis < 1) {
+            throw new IllegalArgumentException("Aging interval must be positive, got " + agingMillis);
+        }
+        _maxConcurrency = maxConcurrency;
+        _reservedHighPrioritySlots = reservedHighPrioritySlots;
+        _agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            _queues.add(new ArrayDeque<ScheduledRequest>());
+        }
+    }
+
+    /**
+     * Get the number of scheduled requests in flight.
+     *
+     * @return requests in flight.
+     */
+    public synchronized int getInFlight() {
+        return _inFlight;
+    }
+
+    /**
+     * Get the number of requests waiting, including cancelled requests that have not been removed yet.
+     *
+     * @return requests waiting.
+     */
+    public synchronized int getQueueLength() {
+        return _queueLength;
+    }
+
+    /**
+     * Schedule a request. It is started by the calling thread if there is a free slot, otherwise later by the thread
+     * that completes another request. Cancelling the returned future cancels the request, whether it has been started
+     * or not.
+     *
+     * @param priority The priority.
+     * @param sender The function that starts the request asynchronously.
+     * @return future response.
+     */
+    CompletableFuture<HttpResponse> schedule(RequestPriority priority,
+                    Supplier<CompletableFuture<HttpResponse>> sender) {
+        ScheduledRequest request = new ScheduledRequest(priority, sender);
+        List<ScheduledRequest> startable;
+        synchronized (this) {
+            _queues.get(priority.ordinal()).add(request);
+            _queueLength++;
+            startable = takeStartable();
+        }
+        start(startable);
+        return request._future;
+    }
+
+    private void onComplete(ScheduledRequest request) {
+        List<ScheduledRequest> startable;
+        synchronized (this) {
+            _inFlight--;
+            if (request._priority == RequestPriority.HIGH) {
+                _highPriorityInFlight--;
+            }
+            startable = takeStartable();
+        }
+        start(startable);
+    }
+
+    /**
+     * Start requests. A request that completes at once, for example because the executor rejects it, frees its slot
+     * and starts the next request from within this method. Those requests are added to the list of the outermost
+     * call on the thread instead, so that the stack does not grow with the length of the queue.
+     *
+     * @param requests The requests.
+     */
+    private void start(List<ScheduledRequest> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        List<ScheduledRequest> starting = STARTING.get();
+        if (starting != null) {
+            starting.addAll(requests);
+            return;
+        }
+        STARTING.set(requests);
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                requests.get(i).start();
+            }
+        } finally {
+            STARTING.remove();
+        }
+    }
+
+    /**
+     * Take requests from the queues while there are free slots. Must be called with the lock held.
+     *
+     * @return requests to start, which must be done without the lock.
+     */
+    private List<ScheduledRequest> takeStartable() {
+        List<ScheduledRequest> startable = new ArrayList<ScheduledRequest>();
+        long now = System.nanoTime();
+        while (_inFlight < _maxConcurrency) {
+            // High priority requests in flight use the reserved slots first, the rest must be kept free for them
+            boolean highPriorityOnly = _inFlight + Math.max(0, _reservedHighPrioritySlots - _highPriorityInFlight)
+                            >= _maxConcurrency;
+            ArrayDeque<ScheduledRequest> best = null;
+            long bestRank = Long.MAX_VALUE;
+            for (ArrayDeque<ScheduledRequest> queue : _queues) {
+                ScheduledRequest head = pollCancelled(queue);
+                if (head != null && !(highPriorityOnly && head._priority != RequestPriority.HIGH)) {
+                    long rank = head.getRank(now);
+                    if (best == null || rank < bestRank
+                                    || rank == bestRank && head._enqueuedNanos - best.peek()._enqueuedNanos < 0L) {
+                        best = queue;
+                        bestRank = rank;
+                    }
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            ScheduledRequest request = best.poll();
+            startable.add(request);
+            _queueLength--;
+            _inFlight++;
+            if (request._priority == RequestPriority.HIGH) {
+                _highPriorityInFlight++;
+            }
+        }
+        return startable;
+    }
+
+    /**
+     * Drop cancelled requests from the head of a queue.
+     *
+     * @param queue The queue.
+     * @return first request that has not been cancelled or null if none.
+     */
+    private ScheduledRequest pollCancelled(ArrayDeque<ScheduledRequest> queue) {
+        for (ScheduledRequest head = queue.peek(); head != null; head = queue.peek()) {
+            if (!head._future.isDone()) {
+                return head;
+            }
+            queue.poll();
+            _queueLength--;
+        }
+        return null;
+    }
+
+    /**
+     * Request waiting for a slot.
+     */
+    private class ScheduledRequest {
+        private final RequestPriority _priority;
+        private final Supplier<CompletableFuture<HttpResponse>> _sender;
+        private final long _enqueuedNanos = System.nanoTime();
+        private final CompletableFuture<HttpResponse> _future = new CompletableFuture<HttpResponse>();
+
+        ScheduledRequest(RequestPriority priority, Supplier<CompletableFuture<HttpResponse>> sender) {
+            _priority = priority;
+            _sender = sender;
+        }
+
+        /**
+         * Get the effective priority class, lower is better. It starts at the ordinal and drops by one per interval.
+         *
+         * @param now The current time.
+         * @return rank.
+         */
+        long getRank(long now) {
+            return _priority.ordinal() - (now - _enqueuedNanos) / _agingNanos;
+        }
+
+        void start() {
+            CompletableFuture<HttpResponse> response;
+            try {
+                response = _sender.get();
+            } catch (RuntimeException | Error e) {
+                _future.completeExceptionally(e);
+                onComplete(this);
+                return;
+            }
+            response.whenComplete((r, t) -> {
+                try {
+                    if (t == null) {
+                        _future.complete(r);
+                    } else {
+                        _future.completeExceptionally(t);
+                    }
+                } finally {
+                    onComplete(this);
+                }
+            });
+            _future.whenComplete((r, t) -> {
+                if (t instanceof CancellationException) {
+                    response.cancel(true);
+                }
+            });
+        }
+    }
+}
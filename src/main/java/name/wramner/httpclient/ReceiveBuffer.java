@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffer for bytes received from the server but not yet consumed by the response parser. It makes it possible to read
+ * ahead, for example while waiting for 100-continue, without losing the start of the final response. This class is
+ * not thread safe.
+ *
+ * @author Erik Wramner
+ */
+final class ReceiveBuffer {
+    private final byte[] _buffer;
+    private int _length;
+
+    /**
+     * Constructor.
+     *
+     * @param size The buffer size.
+     */
+    ReceiveBuffer(int size) {
+        _buffer = new byte[size];
+    }
+
+    /**
+     * Get the underlying buffer. The first {@link #getLength()} bytes are valid.
+     *
+     * @return buffer.
+     */
+    byte[] getBytes() {
+        return _buffer;
+    }
+
+    /**
+     * Get the number of valid bytes in the buffer.
+     *
+     * @return number of bytes.
+     */
+    int getLength() {
+        return _length;
+    }
+
+    /**
+     * Check if the buffer is full.
+     *
+     * @return true if there is no room for more bytes.
+     */
+    boolean isFull() {
+        return _length == _buffer.length;
+    }
+
+    /**
+     * Read as many bytes as possible from the stream into the free part of the buffer with a single read.
+     *
+     * @param in The input stream.
+     * @return number of bytes read or -1 on end of stream.
+     * @throws IOException on errors, including timeouts.
+     */
+    int fill(InputStream in) throws IOException {
+        int read = in.read(_buffer, _length, _buffer.length - _length);
+        if (read > 0) {
+            _length += read;
+        }
+        return read;
+    }
+
+    /**
+     * Discard bytes from the start of the buffer, keeping the rest.
+     *
+     * @param count The number of bytes to discard.
+     */
+    void discard(int count) {
+        System.arraycopy(_buffer, count, _buffer, 0, _length - count);
+        _length -= count;
+    }
+}
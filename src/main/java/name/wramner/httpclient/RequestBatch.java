@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Sends requests with bounded concurrency. A permit is taken before each request is started and returned when it
+ * completes, so the requests are pulled from the source only as fast as they are completed. This makes it possible to
+ * send a very large or lazily generated sequence of requests without queueing them all.
+ *
+ * @author Erik Wramner
+ */
+final class RequestBatch {
+
+    private RequestBatch() {
+    }
+
+    /**
+     * Send all requests and wait for them to complete.
+     *
+     * @param requests The requests.
+     * @param maxConcurrency The maximum number of requests in flight.
+     * @param eventRecorderFactory The factory for a new event recorder per request.
+     * @param listener The listener for responses.
+     * @param sender The function that sends a single request asynchronously.
+     * @throws InterruptedException if interrupted while waiting, requests in flight still complete.
+     */
+    static <R extends EventRecorder> void sendAll(Iterable<HttpRequest> requests, int maxConcurrency,
+                    Supplier<R> eventRecorderFactory, ResponseListener<? super R> listener,
+                    BiFunction<EventRecorder, HttpRequest, CompletableFuture<HttpResponse>> sender)
+                    throws InterruptedException {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1, got " + maxConcurrency);
+        }
+        Semaphore permits = new Semaphore(maxConcurrency);
+        Iterator<HttpRequest> iterator = requests.iterator();
+        for (;;) {
+            permits.acquire();
+            if (!iterator.hasNext()) {
+                permits.release();
+                break;
+            }
+            HttpRequest request = iterator.next();
+            R eventRecorder = eventRecorderFactory.get();
+            send(sender, eventRecorder, request).whenComplete((response, t) -> {
+                try {
+                    notifyListener(listener, request, response, t, eventRecorder);
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        permits.acquire(maxConcurrency);
+    }
+
+    /**
+     * Send a request. If the sender throws rather than returning a future the exception is returned as a failed
+     * future, so that the caller can release the permit for the request and notify the listener as usual.
+     *
+     * @param sender The function that sends a single request asynchronously.
+     * @param eventRecorder The event recorder for the request.
+     * @param request The request.
+     * @return future response.
+     */
+    static CompletableFuture<HttpResponse> send(
+                    BiFunction<EventRecorder, HttpRequest, CompletableFuture<HttpResponse>> sender,
+                    EventRecorder eventRecorder, HttpRequest request) {
+        try {
+            return sender.apply(eventRecorder, request);
+        } catch (RuntimeException e) {
+            CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Pass the outcome of a request to a listener.
+     *
+     * @param listener The listener.
+     * @param request The request.
+     * @param response The response or null if failed.
+     * @param t The exception or null if successful.
+     * @param eventRecorder The event recorder for the request.
+     */
+    static <R extends EventRecorder> void notifyListener(ResponseListener<? super R> listener, HttpRequest request,
+                    HttpResponse response, Throwable t, R eventRecorder) {
+        if (t == null) {
+            listener.onResponse(request, response, eventRecorder);
+        } else {
+            listener.onFailure(request, t instanceof CompletionException && t.getCause() != null ? t.getCause() : t,
+                            eventRecorder);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State for a single request. It holds the event recorder and the current socket, so that the request can be aborted
+ * from another thread by closing the socket. This is also how the request timeout is enforced: a watchdog on the
+ * {@link SharedScheduler} aborts the request when the deadline passes, so the socket timeout does not have to be
+ * updated before every read. Events must only be recorded by the thread sending the request.
+ *
+ * @author Erik Wramner
+ */
+final class RequestContext {
+    private EventRecorder _eventRecorder;
+    private volatile Socket _socket;
+    private volatile Runnable _abortListener;
+    private volatile boolean _aborted;
+    private volatile boolean _timedOut;
+    private volatile RequestPhase _timedOutPhase;
+    private ScheduledFuture<?> _watchdog;
+    private ScheduledFuture<?> _phaseWatchdog;
+    private long _bytesWritten;
+    private long _bytesRead;
+    private int _readCalls;
+    private int _largestRead;
+    private SslHandshakeInfo _sslHandshakeInfo;
+
+    /**
+     * Constructor.
+     *
+     * @param eventRecorder The event recorder.
+     */
+    RequestContext(EventRecorder eventRecorder) {
+        _eventRecorder = eventRecorder;
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param event The event.
+     */
+    void recordEvent(HttpClient.Event event) {
+        _eventRecorder.recordEvent(event);
+    }
+
+    /**
+     * Record an event with the counters for the request so far.
+     *
+     * @param event The event.
+     */
+    void recordEventWithCounters(HttpClient.Event event) {
+        _eventRecorder.recordEvent(event, System.nanoTime(), _bytesWritten, _bytesRead, _readCalls, _largestRead);
+    }
+
+    /**
+     * Record what the request is for.
+     *
+     * @param host The host.
+     * @param port The port.
+     * @param method The request method.
+     * @param url The URL.
+     */
+    void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+        _eventRecorder.recordRequest(host, port, method, url);
+    }
+
+    /**
+     * Record the status code of the response.
+     *
+     * @param httpResponseCode The HTTP response code.
+     */
+    void recordResponse(int httpResponseCode) {
+        _eventRecorder.recordResponse(httpResponseCode);
+    }
+
+    /**
+     * Record details about the SSL handshake and keep them for the response.
+     *
+     * @param sslHandshakeInfo The handshake details.
+     */
+    void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+        _sslHandshakeInfo = sslHandshakeInfo;
+        _eventRecorder.recordSslHandshake(sslHandshakeInfo);
+    }
+
+    /**
+     * Get the SSL handshake details.
+     *
+     * @return handshake details or null if not using SSL.
+     */
+    SslHandshakeInfo getSslHandshakeInfo() {
+        return _sslHandshakeInfo;
+    }
+
+    /**
+     * Record the exception that made the request fail.
+     *
+     * @param cause The exception.
+     */
+    void recordFailure(Throwable cause) {
+        _eventRecorder.recordFailure(cause);
+    }
+
+    /**
+     * Set the number of bytes written for the request.
+     *
+     * @param bytesWritten The number of bytes.
+     */
+    void setBytesWritten(long bytesWritten) {
+        _bytesWritten = bytesWritten;
+    }
+
+    /**
+     * Count a read call.
+     *
+     * @param bytesRead The number of bytes read or -1 for end of stream.
+     */
+    void countRead(int bytesRead) {
+        _readCalls++;
+        if (bytesRead > 0) {
+            _bytesRead += bytesRead;
+            _largestRead = Math.max(_largestRead, bytesRead);
+        }
+    }
+
+    /**
+     * Get the event recorder.
+     *
+     * @return event recorder.
+     */
+    EventRecorder getEventRecorder() {
+        return _eventRecorder;
+    }
+
+    /**
+     * Replace the event recorder, typically with a decorator for the current one.
+     *
+     * @param eventRecorder The new event recorder.
+     */
+    void setEventRecorder(EventRecorder eventRecorder) {
+        _eventRecorder = eventRecorder;
+    }
+
+    /**
+     * Register a new socket for the request. If the request has been aborted the socket is closed at once.
+     *
+     * @param socket The socket, not necessarily connected yet.
+     * @throws SocketException if the request has been aborted.
+     */
+    void setSocket(Socket socket) throws SocketException {
+        _socket = socket;
+        if (_aborted) {
+            closeQuietly(socket);
+            throw new SocketException("Request aborted");
+        }
+    }
+
+    /**
+     * Set a listener that is called when the request is aborted, for blocking calls that closing the socket doesn't
+     * stop. If the request has been aborted the listener is called at once.
+     *
+     * @param abortListener The listener.
+     */
+    void setAbortListener(Runnable abortListener) {
+        _abortListener = abortListener;
+        if (_aborted) {
+            abortListener.run();
+        }
+    }
+
+    /**
+     * Abort the request by closing the socket. Blocking calls in the thread sending the request fail with an
+     * exception. This method can be called from any thread.
+     */
+    void abort() {
+        _aborted = true;
+        Socket socket = _socket;
+        if (socket != null) {
+            closeQuietly(socket);
+        }
+        Runnable abortListener = _abortListener;
+        if (abortListener != null) {
+            abortListener.run();
+        }
+    }
+
+    /**
+     * Start the watchdog that aborts the request at a deadline. The scheduler uses the monotonic clock, so the
+     * deadline is not affected if the wall clock is adjusted.
+     *
+     * @param deadlineNanos The deadline as given by {@link System#nanoTime()}.
+     */
+    void startWatchdog(long deadlineNanos) {
+        _watchdog = SharedScheduler.get().schedule(this::timeout, deadlineNanos - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop the watchdog, if started.
+     */
+    void stopWatchdog() {
+        if (_watchdog != null) {
+            _watchdog.cancel(false);
+            _watchdog = null;
+        }
+    }
+
+    /**
+     * Start a watchdog that aborts the request if a phase takes too long. Only one phase can be watched at a time.
+     *
+     * @param phase The phase.
+     * @param timeoutMillis The timeout for the phase, 0 for none.
+     */
+    void startPhaseWatchdog(RequestPhase phase, int timeoutMillis) {
+        if (timeoutMillis > 0) {
+            _phaseWatchdog = SharedScheduler.get().schedule(() -> expire(phase), timeoutMillis,
+                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the phase watchdog, if started.
+     */
+    void stopPhaseWatchdog() {
+        if (_phaseWatchdog != null) {
+            _phaseWatchdog.cancel(false);
+            _phaseWatchdog = null;
+        }
+    }
+
+    private void timeout() {
+        _timedOut = true;
+        abort();
+    }
+
+    private void expire(RequestPhase phase) {
+        _timedOutPhase = phase;
+        timeout();
+    }
+
+    /**
+     * Check if the request has been aborted by a watchdog.
+     *
+     * @return true if timed out.
+     */
+    boolean isTimedOut() {
+        return _timedOut;
+    }
+
+    /**
+     * Get the phase that timed out if the request was aborted by a phase watchdog.
+     *
+     * @return phase or null.
+     */
+    RequestPhase getTimedOutPhase() {
+        return _timedOutPhase;
+    }
+
+    /**
+     * Check if the request has been aborted.
+     *
+     * @return true if aborted.
+     */
+    boolean isAborted() {
+        return _aborted;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (Exception e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Phases of a request, each delimited by a start event and an end event. They are used for timeouts and for latency
+ * histograms, but not all phases have timeouts.
+ *
+ * @author Erik Wramner
+ * @see name.wramner.httpclient.exceptions.RequestPhaseTimeoutException
+ * @see HistogramEventRecorder
+ */
+public enum RequestPhase {
+    /**
+     * Opening the TCP connection to the host or proxy.
+     */
+    CONNECT(Event.CONNECTING, Event.CONNECTED_PROXY, Event.CONNECTED),
+    /**
+     * Setting up the tunnel through the proxy, including authentication.
+     */
+    PROXY_TUNNEL(Event.CONNECTED_PROXY, Event.CONNECTED),
+    /**
+     * The SSL/TLS handshake.
+     */
+    SSL_HANDSHAKE(Event.CONNECTED, Event.SSL_HANDSHAKE_COMPLETE),
+    /**
+     * Sending the request head and body, including any wait for 100 continue. There is no timeout for this phase.
+     */
+    SEND(Event.SENDING_REQUEST, Event.SENT_REQUEST),
+    /**
+     * Waiting for the first byte of the response after sending the request.
+     */
+    FIRST_BYTE(Event.SENT_REQUEST, Event.FIRST_RESPONSE_BYTE),
+    /**
+     * Reading the rest of the response. The timeout is for the longest gap between reads, not for the whole body.
+     */
+    BODY(Event.FIRST_RESPONSE_BYTE, Event.READ_RESPONSE);
+
+    private final Event _startEvent;
+    private final Event[] _endEvents;
+
+    private RequestPhase(Event startEvent, Event... endEvents) {
+        _startEvent = startEvent;
+        _endEvents = endEvents;
+    }
+
+    /**
+     * Get the event that starts the phase.
+     *
+     * @return start event.
+     */
+    public Event getStartEvent() {
+        return _startEvent;
+    }
+
+    /**
+     * Check if an event ends the phase. Some phases can end in more than one way, for example the TCP connection
+     * ends with {@link Event#CONNECTED_PROXY} when using a proxy and with {@link Event#CONNECTED} otherwise. The
+     * phase ends with the first of them.
+     *
+     * @param event The event.
+     * @return true if the event ends the phase.
+     */
+    public boolean isEndedBy(Event event) {
+        for (Event endEvent : _endEvents) {
+            if (endEvent == event) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
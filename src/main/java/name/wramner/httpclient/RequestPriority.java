@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+/**
+ * Priority classes for requests scheduled by a {@link PriorityRequestScheduler}.
+ *
+ * @author Erik Wramner
+ */
+public enum RequestPriority {
+    /**
+     * Latency-sensitive requests such as health checks. They go first and may use the reserved slots.
+     */
+    HIGH,
+    /**
+     * Ordinary requests, the default.
+     */
+    NORMAL,
+    /**
+     * Bulk requests that can wait.
+     */
+    LOW
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered output stream for sending requests. The request head is encoded directly into the buffer without going
+ * through strings and charset encoders, and the body follows in the same buffer so that small requests are sent with
+ * a single write. The 8 KB buffers are reused through an {@link ObjectPool} rather than allocated per request.
+ *
+ * @author Erik Wramner
+ */
+final class RequestWriter extends OutputStream {
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] COLON_SPACE = { ':', ' ' };
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HTTP_VERSION_CRLF = " HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[][] METHOD_BYTES = new byte[HttpRequestMethod.values().length][];
+    private static final ObjectPool<RequestWriter> POOL = new ObjectPool<RequestWriter>(RequestWriter::new);
+
+    static {
+        for (HttpRequestMethod method : HttpRequestMethod.values()) {
+            METHOD_BYTES[method.ordinal()] = (method.name() + " ").getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private final byte[] _buffer = new byte[BUFFER_SIZE];
+    private int _count;
+    private long _bytesWritten;
+    private OutputStream _out;
+
+    private RequestWriter() {
+    }
+
+    /**
+     * Get a writer from the pool, or a new one if none is available, and attach it to a stream. Call
+     * {@link #release()} when done.
+     *
+     * @param out The stream, normally the socket output stream.
+     * @return writer.
+     */
+    static RequestWriter open(OutputStream out) {
+        RequestWriter writer = POOL.take();
+        writer._out = out;
+        writer._count = 0;
+        writer._bytesWritten = 0L;
+        return writer;
+    }
+
+    /**
+     * Detach the writer from the stream, discarding any data that has not been flushed, and return it to the pool. The
+     * writer must not be used after this.
+     */
+    void release() {
+        _out = null;
+        _count = 0;
+        POOL.put(this);
+    }
+
+    /**
+     * Get the number of bytes written to the stream so far, not counting data still in the buffer.
+     *
+     * @return bytes written.
+     */
+    long getBytesWritten() {
+        return _bytesWritten;
+    }
+
+    /**
+     * Write the request line.
+     *
+     * @param method The request method.
+     * @param url The URL.
+     * @throws IOException on errors.
+     */
+    void writeRequestLine(HttpRequestMethod method, String url) throws IOException {
+        write(METHOD_BYTES[method.ordinal()]);
+        writeLatin1(url);
+        write(HTTP_VERSION_CRLF);
+    }
+
+    /**
+     * Write a header line.
+     *
+     * @param header The header.
+     * @param value The value.
+     * @throws IOException on errors.
+     */
+    void writeHeader(HttpHeader header, String value) throws IOException {
+        write(header.getNameBytes());
+        write(COLON_SPACE);
+        writeLatin1(value);
+        write(CRLF);
+    }
+
+    /**
+     * Write a header line with a numeric value.
+     *
+     * @param header The header.
+     * @param value The value, which must not be negative.
+     * @throws IOException on errors.
+     */
+    void writeHeader(HttpHeader header, long value) throws IOException {
+        write(header.getNameBytes());
+        write(COLON_SPACE);
+        writeDecimal(value);
+        write(CRLF);
+    }
+
+    /**
+     * Write the empty line that terminates the request head.
+     *
+     * @throws IOException on errors.
+     */
+    void writeEndOfHead() throws IOException {
+        write(CRLF);
+    }
+
+    /**
+     * Write a string as ISO-8859-1. Characters outside of that character set are replaced with '?' just like
+     * {@link String#getBytes(java.nio.charset.Charset)} would do.
+     *
+     * @param s The string.
+     * @throws IOException on errors.
+     */
+    void writeLatin1(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (_count == _buffer.length) {
+                flushBuffer();
+            }
+            char c = s.charAt(i);
+            _buffer[_count++] = (byte) (c <= 0xff ? c : '?');
+        }
+    }
+
+    private void writeDecimal(long value) throws IOException {
+        long divisor = 1L;
+        while (value / divisor >= 10L) {
+            divisor *= 10L;
+        }
+        for (; divisor > 0L; divisor /= 10L) {
+            write((int) ('0' + (value / divisor) % 10L));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (_count == _buffer.length) {
+            flushBuffer();
+        }
+        _buffer[_count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= _buffer.length) {
+            flushBuffer();
+            _out.write(b, off, len);
+            _bytesWritten += len;
+        } else {
+            if (len > _buffer.length - _count) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, _buffer, _count, len);
+            _count += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        _out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (_count > 0) {
+            _out.write(_buffer, 0, _count);
+            _bytesWritten += _count;
+            _count = 0;
+        }
+    }
+}
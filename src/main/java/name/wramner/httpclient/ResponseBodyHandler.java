@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Handler for streaming response bodies. The body is written to the stream as it is read from the network, so large
+ * bodies never have to fit in memory. Writes may block, which simply stops the client from reading more.
+ *
+ * @author Erik Wramner
+ * @see HttpClient#sendRequest(EventRecorder, ResponseBodyHandler, HttpRequestMethod, String, HttpRequestBody,
+ *      HttpHeaderWithValue...)
+ */
+public interface ResponseBodyHandler {
+    /**
+     * Handle the start of a response.
+     *
+     * @param httpResponseCode The HTTP response code.
+     * @param headers The response headers.
+     * @return stream for the body, closed by the client when the body is complete.
+     * @throws IOException to abort the request.
+     */
+    OutputStream onResponse(int httpResponseCode, List<HttpHeaderWithValue> headers) throws IOException;
+
+    /**
+     * Handle an aborted request, for example a timeout or a cancelled future, while the body is being written. It is
+     * called by the thread that aborts the request, so a stream that blocks in write should make the write fail. It
+     * may be called more than once. The default implementation does nothing.
+     */
+    default void onAbort() {
+    }
+}
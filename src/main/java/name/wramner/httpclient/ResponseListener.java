@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+/**
+ * Callback for requests sent in a batch. The methods are called by the threads that complete the requests, possibly
+ * concurrently, so implementations must be thread safe.
+ *
+ * @author Erik Wramner
+ * @param <R> The event recorder type.
+ * @see HttpClient#sendAll(Iterable, int, java.util.function.Supplier, ResponseListener)
+ */
+public interface ResponseListener<R extends EventRecorder> {
+    /**
+     * Handle a response. Note that the response may be an error such as 404 or 500.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @param eventRecorder The event recorder for the request.
+     */
+    void onResponse(HttpRequest request, HttpResponse response, R eventRecorder);
+
+    /**
+     * Handle a failed request, for example a connection error or timeout.
+     *
+     * @param request The request.
+     * @param cause The exception.
+     * @param eventRecorder The event recorder for the request.
+     */
+    void onFailure(HttpRequest request, Throwable cause, R eventRecorder);
+}
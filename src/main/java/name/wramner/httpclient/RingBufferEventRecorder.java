@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Event recorder that writes events into a preallocated ring buffer, so recording never allocates memory. It is meant
+ * to be reused for many requests by a single thread, typically a worker thread in a load test, while another thread
+ * drains completed timelines into an aggregating recorder such as {@link HistogramEventRecorder}, for example with an
+ * {@link EventRecorderDrainer}.
+ * <p>
+ * The events for a request are published to the drainer when {@link Event#EXIT_SEND_REQUEST} is recorded. If the
+ * buffer is full because the drainer has fallen behind, the rest of the current request is dropped rather than
+ * blocking the writer. Only one thread may record events at a time and events for different requests must not be
+ * interleaved, so the recorder can't be used with {@link NioHttpClient}. Only events, times and counters are kept, the
+ * request and response details are not.
+ *
+ * @author Erik Wramner
+ */
+public class RingBufferEventRecorder implements EventRecorder {
+    private static final int ENTRY_SIZE = 5;
+    private static final long HAS_COUNTERS = 1L << 8;
+    private static final long EVENT_MASK = 0xffL;
+    private static final Event[] EVENTS = Event.values();
+    private final long[] _entries;
+    private final int _capacity;
+    private final AtomicLong _publishedPosition = new AtomicLong();
+    private final AtomicLong _readPosition = new AtomicLong();
+    private final AtomicLong _droppedRequests = new AtomicLong();
+    private long _writePosition;
+    private long _requestStartPosition;
+    private long _cachedReadPosition;
+    private boolean _dropping;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of events the buffer can hold, rounded up to a power of two.
+     */
+    public RingBufferEventRecorder(int capacity) {
+        if (capacity < 1 || capacity > (1 << 24)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^24, got " + capacity);
+        }
+        _capacity = capacity > 1 ? Integer.highestOneBit(capacity - 1) << 1 : 1;
+        _entries = new long[_capacity * ENTRY_SIZE];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event) {
+        write(event, System.nanoTime(), 0L, 0L, 0L, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        write(event, timeNanos, 0L, 0L, 0L, 0L);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        write(event, timeNanos, HAS_COUNTERS, bytesWritten, bytesRead,
+                        ((long) readCalls << 32) | (largestRead & 0xffffffffL));
+    }
+
+    /**
+     * Discard the events recorded for the current request, if any, so that the recorder can be reused for a new
+     * request. This is only needed if a request is abandoned before {@link Event#EXIT_SEND_REQUEST}. Must be called
+     * by the writing thread.
+     */
+    public void reset() {
+        _writePosition = _requestStartPosition;
+        _dropping = false;
+    }
+
+    /**
+     * Get the number of requests that have been dropped because the buffer was full.
+     *
+     * @return dropped requests.
+     */
+    public long getDroppedRequests() {
+        return _droppedRequests.get();
+    }
+
+    /**
+     * Pass the events for all completed requests that have not been drained yet to another recorder, keeping their
+     * times and counters. This never blocks the writing thread, but only one thread may drain at a time.
+     *
+     * @param eventRecorder The target recorder.
+     * @return number of events drained.
+     */
+    public synchronized int drainTo(EventRecorder eventRecorder) {
+        long readPosition = _readPosition.get();
+        long publishedPosition = _publishedPosition.get();
+        for (long position = readPosition; position < publishedPosition; position++) {
+            int index = (int) (position & (_capacity - 1)) * ENTRY_SIZE;
+            long header = _entries[index];
+            Event event = EVENTS[(int) (header & EVENT_MASK)];
+            if ((header & HAS_COUNTERS) != 0L) {
+                eventRecorder.recordEvent(event, _entries[index + 1], _entries[index + 2], _entries[index + 3],
+                                (int) (_entries[index + 4] >>> 32), (int) _entries[index + 4]);
+            } else {
+                eventRecorder.recordEvent(event, _entries[index + 1]);
+            }
+        }
+        // Ordered write, the writer must not see the space as free before the entries have been read
+        _readPosition.lazySet(publishedPosition);
+        return (int) (publishedPosition - readPosition);
+    }
+
+    private void write(Event event, long timeNanos, long flags, long value1, long value2, long value3) {
+        if (!_dropping) {
+            if (_writePosition - _cachedReadPosition >= _capacity) {
+                _cachedReadPosition = _readPosition.get();
+            }
+            if (_writePosition - _cachedReadPosition >= _capacity) {
+                _droppedRequests.incrementAndGet();
+                _writePosition = _requestStartPosition;
+                _dropping = true;
+            } else {
+                int index = (int) (_writePosition & (_capacity - 1)) * ENTRY_SIZE;
+                _entries[index] = flags | event.ordinal();
+                _entries[index + 1] = timeNanos;
+                _entries[index + 2] = value1;
+                _entries[index + 3] = value2;
+                _entries[index + 4] = value3;
+                _writePosition++;
+            }
+        }
+        if (event == Event.EXIT_SEND_REQUEST) {
+            if (!_dropping) {
+                // Ordered write, the drainer must see the entries before the new position
+                _publishedPosition.lazySet(_writePosition);
+            }
+            _requestStartPosition = _writePosition;
+            _dropping = false;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Event recorder decorator that measures the round-trip time from {@link Event#SENDING_REQUEST} to
+ * {@link Event#READ_RESPONSE} while passing all events on.
+ *
+ * @author Erik Wramner
+ */
+final class RoundTripTimeEventRecorder implements EventRecorder {
+    private final EventRecorder _eventRecorder;
+    private long _sendingTimeNanos;
+    private long _roundTripTimeNanos = -1L;
+
+    /**
+     * Constructor.
+     *
+     * @param eventRecorder The decorated recorder.
+     */
+    RoundTripTimeEventRecorder(EventRecorder eventRecorder) {
+        _eventRecorder = eventRecorder;
+    }
+
+    @Override
+    public void recordEvent(Event event) {
+        measure(event, System.nanoTime());
+        _eventRecorder.recordEvent(event);
+    }
+
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        measure(event, timeNanos);
+        _eventRecorder.recordEvent(event, timeNanos);
+    }
+
+    @Override
+    public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        measure(event, timeNanos);
+        _eventRecorder.recordEvent(event, timeNanos, bytesWritten, bytesRead, readCalls, largestRead);
+    }
+
+    @Override
+    public void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+        _eventRecorder.recordRequest(host, port, method, url);
+    }
+
+    @Override
+    public void recordResponse(int httpResponseCode) {
+        _eventRecorder.recordResponse(httpResponseCode);
+    }
+
+    @Override
+    public void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+        _eventRecorder.recordSslHandshake(sslHandshakeInfo);
+    }
+
+    @Override
+    public void recordFailure(Throwable cause) {
+        _eventRecorder.recordFailure(cause);
+    }
+
+    /**
+     * Get the round-trip time.
+     *
+     * @return time in nanoseconds or -1 if the response has not been read.
+     */
+    long getRoundTripTimeNanos() {
+        return _roundTripTimeNanos;
+    }
+
+    private void measure(Event event, long timeNanos) {
+        if (event == Event.SENDING_REQUEST) {
+            _sendingTimeNanos = timeNanos;
+        } else if (event == Event.READ_RESPONSE) {
+            _roundTripTimeNanos = timeNanos - _sendingTimeNanos;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Event recorder decorator that only passes events on for sampled requests, so that a detailed recorder such as
+ * {@link ElapsedTimeEventRecorder} or {@link AbsoluteTimeEventRecorder} can be used in production. A new recorder is
+ * needed for each request, the {@link SamplingPolicy} is shared.
+ * <p>
+ * For tail-based policies the events are kept in a scratch timeline until {@link Event#EXIT_SEND_REQUEST} and passed
+ * on with their original times if the request is sampled, so the decorated recorder must use the times it is given.
+ * The timelines are reused between requests, so sampling does not allocate per request once the pool is warm.
+ *
+ * @author Erik Wramner
+ */
+public class SamplingEventRecorder implements EventRecorder {
+    private static final int UNDECIDED = 0;
+    private static final int SAMPLED = 1;
+    private static final int SKIPPED = 2;
+    private static final int BUFFERING = 3;
+    private final SamplingPolicy _policy;
+    private final EventRecorder _eventRecorder;
+    private int _state = UNDECIDED;
+    private Timeline _timeline;
+    private String _host;
+    private int _port;
+    private HttpRequestMethod _method;
+    private String _url;
+    private int _httpResponseCode = -1;
+    private SslHandshakeInfo _sslHandshakeInfo;
+    private Throwable _failure;
+
+    /**
+     * Constructor.
+     *
+     * @param policy The sampling policy, shared by all requests.
+     * @param eventRecorder The decorated recorder.
+     */
+    public SamplingEventRecorder(SamplingPolicy policy, EventRecorder eventRecorder) {
+        _policy = policy;
+        _eventRecorder = eventRecorder;
+    }
+
+    /**
+     * Check if the request has been sampled. For tail-based policies this is known when the request is over.
+     *
+     * @return true if the events have been passed on to the decorated recorder.
+     */
+    public boolean isSampled() {
+        return _state == SAMPLED;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event) {
+        recordEvent(event, System.nanoTime());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        if (start() == BUFFERING) {
+            _timeline.add(event, timeNanos);
+            end(event, timeNanos);
+        } else if (_state == SAMPLED) {
+            _eventRecorder.recordEvent(event, timeNanos);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        if (start() == BUFFERING) {
+            _timeline.addWithCounters(event, timeNanos, bytesWritten, bytesRead, readCalls, largestRead);
+            end(event, timeNanos);
+        } else if (_state == SAMPLED) {
+            _eventRecorder.recordEvent(event, timeNanos, bytesWritten, bytesRead, readCalls, largestRead);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+        if (_state == BUFFERING) {
+            _host = host;
+            _port = port;
+            _method = method;
+            _url = url;
+        } else if (_state == SAMPLED) {
+            _eventRecorder.recordRequest(host, port, method, url);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordResponse(int httpResponseCode) {
+        if (_state == BUFFERING) {
+            _httpResponseCode = httpResponseCode;
+        } else if (_state == SAMPLED) {
+            _eventRecorder.recordResponse(httpResponseCode);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+        if (_state == BUFFERING) {
+            _sslHandshakeInfo = sslHandshakeInfo;
+        } else if (_state == SAMPLED) {
+            _eventRecorder.recordSslHandshake(sslHandshakeInfo);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordFailure(Throwable cause) {
+        if (_state == BUFFERING) {
+            _failure = cause;
+        } else if (_state == SAMPLED) {
+            _eventRecorder.recordFailure(cause);
+        }
+    }
+
+    private int start() {
+        if (_state == UNDECIDED) {
+            if (_policy.isTailBased()) {
+                _timeline = Timeline.open();
+                _state = BUFFERING;
+            } else {
+                _state = _policy.decide(0L) ? SAMPLED : SKIPPED;
+            }
+        }
+        return _state;
+    }
+
+    private void end(Event event, long timeNanos) {
+        if (event == Event.EXIT_SEND_REQUEST) {
+            Timeline timeline = _timeline;
+            _timeline = null;
+            if (_policy.decide(timeNanos - timeline.getStartTimeNanos())) {
+                _state = SAMPLED;
+                replay(timeline);
+            } else {
+                _state = SKIPPED;
+            }
+            timeline.release();
+        }
+    }
+
+    private void replay(Timeline timeline) {
+        for (int i = 0; i < timeline._count; i++) {
+            Event event = timeline.getEvent(i);
+            long timeNanos = timeline._times[i];
+            if (event == Event.EXIT_SEND_REQUEST && _failure != null) {
+                _eventRecorder.recordFailure(_failure);
+            }
+            if (timeline._hasCounters[i]) {
+                _eventRecorder.recordEvent(event, timeNanos, timeline._bytesWritten[i], timeline._bytesRead[i],
+                                timeline._readCalls[i], timeline._largestReads[i]);
+            } else {
+                _eventRecorder.recordEvent(event, timeNanos);
+            }
+            if (event == Event.ENTER_SEND_REQUEST && _method != null) {
+                _eventRecorder.recordRequest(_host, _port, _method, _url);
+            } else if (event == Event.SSL_HANDSHAKE_COMPLETE && _sslHandshakeInfo != null) {
+                _eventRecorder.recordSslHandshake(_sslHandshakeInfo);
+            } else if (event == Event.HEADERS_PARSED && _httpResponseCode >= 0) {
+                _eventRecorder.recordResponse(_httpResponseCode);
+            }
+        }
+    }
+
+    /**
+     * Scratch timeline for tail-based sampling. Events beyond the capacity are dropped, except for the last event,
+     * which replaces the previous one if the timeline is full.
+     */
+    private static final class Timeline {
+        private static final int CAPACITY = 32;
+        private static final ObjectPool<Timeline> POOL = new ObjectPool<Timeline>(Timeline::new);
+        private static final Event[] EVENTS = Event.values();
+        private final byte[] _events = new byte[CAPACITY];
+        private final long[] _times = new long[CAPACITY];
+        private final boolean[] _hasCounters = new boolean[CAPACITY];
+        private final long[] _bytesWritten = new long[CAPACITY];
+        private final long[] _bytesRead = new long[CAPACITY];
+        private final int[] _readCalls = new int[CAPACITY];
+        private final int[] _largestReads = new int[CAPACITY];
+        private int _count;
+
+        static Timeline open() {
+            Timeline timeline = POOL.take();
+            timeline._count = 0;
+            return timeline;
+        }
+
+        void release() {
+            POOL.put(this);
+        }
+
+        void addWithCounters(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                        int largestRead) {
+            int index = add(event, timeNanos);
+            if (index >= 0) {
+                _hasCounters[index] = true;
+                _bytesWritten[index] = bytesWritten;
+                _bytesRead[index] = bytesRead;
+                _readCalls[index] = readCalls;
+                _largestReads[index] = largestRead;
+            }
+        }
+
+        int add(Event event, long timeNanos) {
+            int index;
+            if (_count < CAPACITY) {
+                index = _count++;
+            } else if (event == Event.EXIT_SEND_REQUEST) {
+                index = CAPACITY - 1;
+            } else {
+                return -1;
+            }
+            _events[index] = (byte) event.ordinal();
+            _times[index] = timeNanos;
+            _hasCounters[index] = false;
+            return index;
+        }
+
+        Event getEvent(int index) {
+            return EVENTS[_events[index]];
+        }
+
+        long getStartTimeNanos() {
+            return _times[0];
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Policy for {@link SamplingEventRecorder}, deciding which requests to record. There are three kinds:
+ * <ul>
+ * <li>probabilistic, keeping a random fraction of the requests;</li>
+ * <li>rate-limited, keeping at most a given number of requests per second;</li>
+ * <li>tail-based, keeping only requests slower than a percentile of recent requests.</li>
+ * </ul>
+ * The first two decide when a request starts, so requests that are not sampled cost almost nothing. Tail-based
+ * sampling must wait until the request is over, so the events are kept in a scratch timeline until then.
+ * <p>
+ * A policy is thread safe and keeps state, so it should be shared by all requests.
+ *
+ * @author Erik Wramner
+ */
+public abstract class SamplingPolicy {
+    private final AtomicLong _sampledRequests = new AtomicLong();
+    private final AtomicLong _skippedRequests = new AtomicLong();
+
+    SamplingPolicy() {
+    }
+
+    /**
+     * Create a policy that samples a random fraction of the requests.
+     *
+     * @param probability The probability for sampling a request, for example 0.01 for 1%.
+     * @return policy.
+     */
+    public static SamplingPolicy probabilistic(double probability) {
+        if (!(probability >= 0.0 && probability <= 1.0)) {
+            throw new IllegalArgumentException("Probability must be between 0 and 1, got " + probability);
+        }
+        return new ProbabilisticSamplingPolicy(probability);
+    }
+
+    /**
+     * Create a policy that samples at most a given number of requests per second. Up to a second's worth of samples
+     * can be taken in a burst after a quiet period.
+     *
+     * @param requestsPerSecond The maximum number of sampled requests per second.
+     * @return policy.
+     */
+    public static SamplingPolicy rateLimited(int requestsPerSecond) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("Requests per second must be positive, got " + requestsPerSecond);
+        }
+        return new RateLimitedSamplingPolicy(requestsPerSecond);
+    }
+
+    /**
+     * Create a policy that samples requests slower than a percentile of recent requests. The threshold is computed
+     * from the total times for a window of requests and used for the next window, so nothing is sampled until the
+     * first window is complete.
+     *
+     * @param percentile The percentile, for example 99.0.
+     * @return policy.
+     */
+    public static SamplingPolicy slowerThanPercentile(double percentile) {
+        if (!(percentile > 0.0 && percentile < 100.0)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, got " + percentile);
+        }
+        return new TailSamplingPolicy(percentile);
+    }
+
+    /**
+     * Get the number of requests that have been sampled.
+     *
+     * @return sampled requests.
+     */
+    public long getSampledRequests() {
+        return _sampledRequests.get();
+    }
+
+    /**
+     * Get the number of requests that have been skipped.
+     *
+     * @return skipped requests.
+     */
+    public long getSkippedRequests() {
+        return _skippedRequests.get();
+    }
+
+    /**
+     * Check if the decision must wait until the request is over.
+     *
+     * @return true for tail-based sampling.
+     */
+    abstract boolean isTailBased();
+
+    /**
+     * Decide if a request should be sampled, at the start for head-based policies or at the end for tail-based.
+     *
+     * @param totalTimeNanos The total time for the request for tail-based policies, otherwise 0.
+     * @return true to sample.
+     */
+    abstract boolean sample(long totalTimeNanos);
+
+    /**
+     * Decide if a request should be sampled and count the decision.
+     *
+     * @param totalTimeNanos The total time for the request for tail-based policies, otherwise 0.
+     * @return true to sample.
+     */
+    final boolean decide(long totalTimeNanos) {
+        boolean sampled = sample(totalTimeNanos);
+        (sampled ? _sampledRequests : _skippedRequests).incrementAndGet();
+        return sampled;
+    }
+
+    private static final class ProbabilisticSamplingPolicy extends SamplingPolicy {
+        private final double _probability;
+
+        ProbabilisticSamplingPolicy(double probability) {
+            _probability = probability;
+        }
+
+        @Override
+        boolean isTailBased() {
+            return false;
+        }
+
+        @Override
+        boolean sample(long totalTimeNanos) {
+            return ThreadLocalRandom.current().nextDouble() < _probability;
+        }
+    }
+
+    /**
+     * Rate limiter using the generic cell rate algorithm, which needs a single atomic for the theoretical arrival
+     * time of the next sample.
+     */
+    private static final class RateLimitedSamplingPolicy extends SamplingPolicy {
+        private final long _intervalNanos;
+        private final long _burstNanos;
+        private final AtomicLong _nextSampleNanos = new AtomicLong(System.nanoTime());
+
+        RateLimitedSamplingPolicy(int requestsPerSecond) {
+            _intervalNanos = TimeUnit.SECONDS.toNanos(1L) / requestsPerSecond;
+            _burstNanos = TimeUnit.SECONDS.toNanos(1L) - _intervalNanos;
+        }
+
+        @Override
+        boolean isTailBased() {
+            return false;
+        }
+
+        @Override
+        boolean sample(long totalTimeNanos) {
+            long now = System.nanoTime();
+            while (true) {
+                long next = _nextSampleNanos.get();
+                long start = next - now > 0L ? next : now;
+                if (start - now > _burstNanos) {
+                    return false;
+                }
+                if (_nextSampleNanos.compareAndSet(next, start + _intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static final class TailSamplingPolicy extends SamplingPolicy {
+        private static final int WINDOW = 1024;
+        private final double _percentile;
+        private final AtomicReference<LatencyHistogram> _histogram = new AtomicReference<LatencyHistogram>(
+                        new LatencyHistogram());
+        private final AtomicLong _requests = new AtomicLong();
+        private volatile long _thresholdNanos = Long.MAX_VALUE;
+
+        TailSamplingPolicy(double percentile) {
+            _percentile = percentile;
+        }
+
+        @Override
+        boolean isTailBased() {
+            return true;
+        }
+
+        @Override
+        boolean sample(long totalTimeNanos) {
+            _histogram.get().record(totalTimeNanos);
+            if (_requests.incrementAndGet() % WINDOW == 0L) {
+                // Swap rather than reset, so that concurrent requests go to the next window and not a half-reset one
+                LatencyHistogram window = _histogram.getAndSet(new LatencyHistogram());
+                _thresholdNanos = window.getValueAtPercentile(_percentile);
+            }
+            return totalTimeNanos > _thresholdNanos;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Timer shared by all clients for delayed actions such as hedged requests. It runs on a single daemon thread, so
+ * tasks must be short and must never block.
+ *
+ * @author Erik Wramner
+ */
+final class SharedScheduler {
+
+    private SharedScheduler() {
+    }
+
+    /**
+     * Get the scheduler, starting it on first use.
+     *
+     * @return scheduler.
+     */
+    static ScheduledExecutorService get() {
+        return SchedulerHolder.INSTANCE;
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "HttpClient-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most tasks are cancelled long before they are due, don't let them pile up
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Singleton holder for the scheduler.
+     */
+    private static interface SchedulerHolder {
+        public static final ScheduledExecutorService INSTANCE = createScheduler();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Logger for slow requests. Every request that takes longer than a threshold is logged as a single line with the
+ * method, URL, status, bytes (if reported by the client) and the time for every event, including proxy and 100
+ * continue events, as <code>key=value</code> pairs. The URL and the failure are quoted, with backslash escapes for
+ * quotes, backslashes and control characters, so a record is always a single line. For example:
+ *
+ * <pre>
+ * Slow request totalMs=1503.271 method=GET url="/orders" host=example.com:443 status=200 bytesWritten=96
+ * bytesRead=5120 ENTER_SEND_REQUEST=0.000 CONNECTING=0.004 CONNECTED=1.190 SSL_HANDSHAKE_COMPLETE=12.043 ...
+ * </pre>
+ *
+ * The value for each event is the time in milliseconds since the previous event. The total time is measured from the
+ * first event, so it includes the time since {@link Event#SCHEDULED} for scheduled requests.
+ * <p>
+ * Use {@link #newRequestRecorder()} to get a recorder for each request, for example as a client-level recorder
+ * factory. The recorders only take timestamps and the threshold check is made when the request ends. Only slow
+ * requests are queued, to be formatted and logged by a background thread, so the sink may be slow. If the logger
+ * falls behind slow requests are dropped rather than blocking the threads sending them.
+ *
+ * @author Erik Wramner
+ */
+public class SlowRequestLogger implements Closeable {
+    private static final int MAX_EVENTS = 32;
+    private static final Event[] EVENTS = Event.values();
+    private final long _thresholdNanos;
+    private final BackgroundQueue<RequestLog> _queue;
+    private final AtomicLong _droppedRequests = new AtomicLong();
+
+    /**
+     * Constructor for logging with {@link java.util.logging} at level WARNING, using a logger named after this class.
+     * The logger thread is started at once.
+     *
+     * @param thresholdMillis The time above which requests are logged.
+     * @param queueCapacity The maximum number of slow requests waiting to be logged.
+     */
+    public SlowRequestLogger(long thresholdMillis, int queueCapacity) {
+        this(thresholdMillis, queueCapacity, Logger.getLogger(SlowRequestLogger.class.getName())::warning);
+    }
+
+    /**
+     * Constructor. The logger thread is started at once.
+     *
+     * @param thresholdMillis The time above which requests are logged.
+     * @param queueCapacity The maximum number of slow requests waiting to be logged.
+     * @param sink The consumer for the log lines, called by the logger thread only.
+     */
+    public SlowRequestLogger(long thresholdMillis, int queueCapacity, Consumer<String> sink) {
+        _thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        _queue = new BackgroundQueue<RequestLog>("HttpClient-slow-request-logger", queueCapacity,
+                        requestLog -> log(sink, requestLog), null);
+    }
+
+    /**
+     * Get a recorder for a single request. Each request needs a new recorder, the recorder ignores events after
+     * {@link Event#EXIT_SEND_REQUEST}.
+     *
+     * @return new recorder.
+     */
+    public EventRecorder newRequestRecorder() {
+        return new RequestLog(this);
+    }
+
+    /**
+     * Get the number of slow requests that have been dropped because the queue was full.
+     *
+     * @return dropped requests.
+     */
+    public long getDroppedRequests() {
+        return _droppedRequests.get();
+    }
+
+    /**
+     * Log the slow requests that are waiting in the queue and stop the logger thread. Requests that complete later are
+     * counted as dropped.
+     */
+    @Override
+    public void close() {
+        _queue.close();
+    }
+
+    private void enqueue(RequestLog requestLog) {
+        if (!_queue.offer(requestLog)) {
+            _droppedRequests.incrementAndGet();
+        }
+    }
+
+    private static void log(Consumer<String> sink, RequestLog requestLog) {
+        try {
+            sink.accept(requestLog.format());
+        } catch (RuntimeException e) {
+            Logger.getLogger(SlowRequestLogger.class.getName()).log(Level.WARNING, "Failed to log request", e);
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", Double.valueOf(nanos / 1000000.0));
+    }
+
+    private static void appendQuoted(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c < ' ' || c == '\u007f') {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", Integer.valueOf(c)));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Recorder and queue entry for a single request. The events are kept in the order they were recorded.
+     */
+    private static class RequestLog implements EventRecorder {
+        private final SlowRequestLogger _logger;
+        private final byte[] _events = new byte[MAX_EVENTS];
+        private final long[] _eventTimes = new long[MAX_EVENTS];
+        private int _eventCount;
+        private long _exitTimeNanos;
+        private boolean _done;
+        private String _host;
+        private int _port;
+        private HttpRequestMethod _method;
+        private String _url;
+        private int _httpResponseCode;
+        private long _bytesWritten;
+        private long _bytesRead;
+        private boolean _countersRecorded;
+        private String _failure;
+
+        RequestLog(SlowRequestLogger logger) {
+            _logger = logger;
+        }
+
+        @Override
+        public void recordEvent(Event event) {
+            recordEvent(event, System.nanoTime());
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos) {
+            if (_done) {
+                return;
+            }
+            if (_eventCount < MAX_EVENTS) {
+                _events[_eventCount] = (byte) event.ordinal();
+                _eventTimes[_eventCount] = timeNanos;
+                _eventCount++;
+            }
+            if (event == Event.EXIT_SEND_REQUEST) {
+                _done = true;
+                _exitTimeNanos = timeNanos;
+                if (timeNanos - _eventTimes[0] > _logger._thresholdNanos) {
+                    _logger.enqueue(this);
+                }
+            }
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                        int largestRead) {
+            if (!_done) {
+                _bytesWritten = bytesWritten;
+                _bytesRead = bytesRead;
+                _countersRecorded = true;
+            }
+            recordEvent(event, timeNanos);
+        }
+
+        @Override
+        public void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+            _host = host;
+            _port = port;
+            _method = method;
+            _url = url;
+        }
+
+        @Override
+        public void recordResponse(int httpResponseCode) {
+            _httpResponseCode = httpResponseCode;
+        }
+
+        @Override
+        public void recordFailure(Throwable cause) {
+            _failure = cause.toString();
+        }
+
+        String format() {
+            StringBuilder sb = new StringBuilder("Slow request totalMs=")
+                            .append(formatMillis(_exitTimeNanos - _eventTimes[0]));
+            if (_method != null) {
+                sb.append(" method=").append(_method.name()).append(" url=");
+                appendQuoted(sb, _url);
+                sb.append(" host=").append(_host).append(':').append(_port);
+            }
+            if (_httpResponseCode > 0) {
+                sb.append(" status=").append(_httpResponseCode);
+            }
+            if (_countersRecorded) {
+                sb.append(" bytesWritten=").append(_bytesWritten).append(" bytesRead=").append(_bytesRead);
+            }
+            if (_failure != null) {
+                sb.append(" failure=");
+                appendQuoted(sb, _failure);
+            }
+            for (int i = 0; i < _eventCount; i++) {
+                sb.append(' ').append(EVENTS[_events[i]].name()).append('=')
+                                .append(formatMillis(i > 0 ? _eventTimes[i] - _eventTimes[i - 1] : 0L));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.security.cert.Certificate;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Details about a completed SSL/TLS handshake, for finding out why handshakes are slow: the negotiated protocol and
+ * cipher suite, the key exchange, the length of the certificate chain sent by the server, whether an earlier session
+ * was resumed and the time the handshake took.
+ * <p>
+ * JSSE does not expose the key exchange group or a resumption flag. The key exchange is taken from the cipher suite,
+ * which does not include it for TLS 1.3 where it is always ephemeral Diffie-Hellman. A session counts as resumed if it
+ * was created before the handshake started.
+ *
+ * @author Erik Wramner
+ */
+public class SslHandshakeInfo {
+    private final String _protocol;
+    private final String _cipherSuite;
+    private final int _peerCertificateChainLength;
+    private final boolean _sessionResumed;
+    private final long _handshakeTimeNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param protocol The protocol, for example TLSv1.3.
+     * @param cipherSuite The cipher suite.
+     * @param peerCertificateChainLength The number of certificates sent by the server.
+     * @param sessionResumed The flag for a resumed session.
+     * @param handshakeTimeNanos The time for the handshake in nanoseconds.
+     */
+    public SslHandshakeInfo(String protocol, String cipherSuite, int peerCertificateChainLength,
+                    boolean sessionResumed, long handshakeTimeNanos) {
+        _protocol = protocol;
+        _cipherSuite = cipherSuite;
+        _peerCertificateChainLength = peerCertificateChainLength;
+        _sessionResumed = sessionResumed;
+        _handshakeTimeNanos = handshakeTimeNanos;
+    }
+
+    /**
+     * Create handshake details from a session.
+     *
+     * @param session The session after the handshake.
+     * @param handshakeStartTimeMillis The wall clock time when the handshake started.
+     * @param handshakeTimeNanos The time for the handshake in nanoseconds.
+     * @return handshake details.
+     */
+    static SslHandshakeInfo from(SSLSession session, long handshakeStartTimeMillis, long handshakeTimeNanos) {
+        int peerCertificateChainLength;
+        try {
+            Certificate[] certificates = session.getPeerCertificates();
+            peerCertificateChainLength = certificates != null ? certificates.length : 0;
+        } catch (SSLPeerUnverifiedException e) {
+            peerCertificateChainLength = 0;
+        }
+        return new SslHandshakeInfo(session.getProtocol(), session.getCipherSuite(), peerCertificateChainLength,
+                        session.getCreationTime() < handshakeStartTimeMillis, handshakeTimeNanos);
+    }
+
+    /**
+     * Get the protocol.
+     *
+     * @return protocol, for example TLSv1.2.
+     */
+    public String getProtocol() {
+        return _protocol;
+    }
+
+    /**
+     * Get the cipher suite.
+     *
+     * @return cipher suite.
+     */
+    public String getCipherSuite() {
+        return _cipherSuite;
+    }
+
+    /**
+     * Get the key exchange algorithm from the cipher suite, for example ECDHE_RSA or RSA.
+     *
+     * @return key exchange or null if not part of the cipher suite, as for TLS 1.3.
+     */
+    public String getKeyExchange() {
+        int end = _cipherSuite != null ? _cipherSuite.indexOf("_WITH_") : -1;
+        if (end < 0) {
+            return null;
+        }
+        int start = _cipherSuite.indexOf('_') + 1;
+        return start > 0 && start < end ? _cipherSuite.substring(start, end) : null;
+    }
+
+    /**
+     * Get the number of certificates in the chain sent by the server.
+     *
+     * @return chain length or 0 if the server was not authenticated.
+     */
+    public int getPeerCertificateChainLength() {
+        return _peerCertificateChainLength;
+    }
+
+    /**
+     * Check if an earlier session was resumed, which saves the expensive key exchange.
+     *
+     * @return true if resumed.
+     */
+    public boolean isSessionResumed() {
+        return _sessionResumed;
+    }
+
+    /**
+     * Get the time for the handshake.
+     *
+     * @return time in nanoseconds.
+     */
+    public long getHandshakeTimeNanos() {
+        return _handshakeTimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "protocol=" + _protocol + " cipherSuite=" + _cipherSuite + " peerCertificates="
+                        + _peerCertificateChainLength + " resumed=" + _sessionResumed + " handshakeTime="
+                        + _handshakeTimeNanos / 1000L + "us";
+    }
+}
@@ -40,22 +40,48 @@ public class TrustingSSLSocketFactoryProvider {
     }
 
     /**
-     * Create a naive SSL socket factory that trusts everyone.
+     * Get a SSL context that trusts all certificates, for use with {@link NioHttpClient}.
      *
-     * @return SSL socket factory or null on errors.
+     * @return trusting SSL context.
      */
-    private static SSLSocketFactory createSSLSocketFactory() {
+    public static SSLContext getTrustingSSLContext() {
+        return SSLContextHolder.INSTANCE;
+    }
+
+    /**
+     * Create a naive SSL context that trusts everyone.
+     *
+     * @return SSL context or null on errors.
+     */
+    private static SSLContext createSSLContext() {
         TrustManager[] trustManagers = new TrustManager[] { new NaiveTrustManager() };
         SSLContext sslContext;
         try {
             sslContext = SSLContext.getInstance("TLS");
             sslContext.init(new KeyManager[0], trustManagers, new SecureRandom());
-            return sslContext.getSocketFactory();
+            return sslContext;
         } catch (GeneralSecurityException e) {
             return null;
         }
     }
 
+    /**
+     * Create a naive SSL socket factory that trusts everyone.
+     *
+     * @return SSL socket factory or null on errors.
+     */
+    private static SSLSocketFactory createSSLSocketFactory() {
+        SSLContext sslContext = getTrustingSSLContext();
+        return sslContext != null ? sslContext.getSocketFactory() : null;
+    }
+
+    /**
+     * Singleton holder for SSL context.
+     */
+    private static interface SSLContextHolder {
+        public static final SSLContext INSTANCE = createSSLContext();
+    }
+
     /**
      * Singleton holder for SSL socket factory.
      */
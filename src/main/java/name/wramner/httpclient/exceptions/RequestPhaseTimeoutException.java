@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.exceptions;
+
+import java.net.SocketTimeoutException;
+
+import name.wramner.httpclient.RequestPhase;
+
+/**
+ * Exception thrown when a phase of a request times out. It is a {@link SocketTimeoutException}, so code that handles
+ * request timeouts in general does not need to know about phases.
+ */
+public class RequestPhaseTimeoutException extends SocketTimeoutException {
+    private static final long serialVersionUID = 1L;
+    private final RequestPhase _phase;
+
+    public RequestPhaseTimeoutException(RequestPhase phase, String message) {
+        super(message);
+        _phase = phase;
+    }
+
+    /**
+     * Create an exception with a cause, typically the socket timeout that ended the phase. This is a factory method
+     * rather than a constructor, as {@link SocketTimeoutException} has no constructor that takes a cause.
+     *
+     * @param phase The phase.
+     * @param message The message.
+     * @param cause The cause.
+     * @return exception.
+     */
+    public static RequestPhaseTimeoutException withCause(RequestPhase phase, String message, Throwable cause) {
+        RequestPhaseTimeoutException e = new RequestPhaseTimeoutException(phase, message);
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Get the phase that timed out.
+     *
+     * @return phase.
+     */
+    public RequestPhase getPhase() {
+        return _phase;
+    }
+}
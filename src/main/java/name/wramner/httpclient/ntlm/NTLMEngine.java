@@ -229,18 +229,15 @@ public class NTLMEngine {
     /** Calculate a challenge block */
     private static byte[] makeRandomChallenge(final Random random) throws NTLMEngineException {
         final byte[] rval = new byte[8];
-        synchronized (random) {
-            random.nextBytes(rval);
-        }
+        // SecureRandom is thread safe, an extra monitor would only pin virtual threads
+        random.nextBytes(rval);
         return rval;
     }
 
     /** Calculate a 16-byte secondary key */
     private static byte[] makeSecondaryKey(final Random random) throws NTLMEngineException {
         final byte[] rval = new byte[16];
-        synchronized (random) {
-            random.nextBytes(rval);
-        }
+        random.nextBytes(rval);
         return rval;
     }
 
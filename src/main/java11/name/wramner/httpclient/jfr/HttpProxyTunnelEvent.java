@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for the tunnel through the proxy, including authentication.
+ *
+ * @author Erik Wramner
+ */
+@Name("name.wramner.httpclient.ProxyTunnel")
+@Label("HTTP Proxy Tunnel")
+@Description("Proxy tunnel setup, including authentication")
+final class HttpProxyTunnelEvent extends HttpEvent {
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for sending the request.
+ *
+ * @author Erik Wramner
+ */
+@Name("name.wramner.httpclient.Send")
+@Label("HTTP Send")
+@Description("Sending the request, including waiting for 100 continue")
+final class HttpSendEvent extends HttpEvent {
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for the TLS handshake.
+ *
+ * @author Erik Wramner
+ */
+@Name("name.wramner.httpclient.TlsHandshake")
+@Label("HTTP TLS Handshake")
+@Description("TLS handshake with the host")
+final class HttpTlsHandshakeEvent extends HttpEvent {
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Cipher Suite")
+    String cipherSuite;
+
+    @Label("Key Exchange")
+    String keyExchange;
+
+    @Label("Peer Certificates")
+    int peerCertificates;
+
+    @Label("Session Resumed")
+    boolean sessionResumed;
+}
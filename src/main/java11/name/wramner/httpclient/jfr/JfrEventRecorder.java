@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.jfr;
+
+import name.wramner.httpclient.EventRecorder;
+import name.wramner.httpclient.HttpClient.Event;
+import name.wramner.httpclient.HttpRequestMethod;
+import name.wramner.httpclient.SslHandshakeInfo;
+
+/**
+ * Event recorder that emits Java Flight Recorder events for the request and for each phase: connect, proxy tunnel,
+ * TLS handshake, send, 100 continue and read. The TLS handshake event includes the protocol, cipher suite and
+ * whether the session was resumed. The events appear in the "HTTP Client" category, so HTTP latency can be
+ * related to GC pauses, safepoints and socket reads in the same recording. When the request event is disabled, as it
+ * is when no recording is running, the recorder does nothing else. Phases that are in progress when a request fails
+ * are committed with the failed flag set. This class requires Java 11 or later.
+ * <p>
+ * The flight recorder measures time on its own when the events are recorded, so the event times passed to the
+ * recorder are ignored. As a consequence the durations are wrong for hedged requests, as their events are recorded
+ * when the request completes. A new recorder is needed for each request, it is not thread safe.
+ *
+ * @author Erik Wramner
+ */
+public class JfrEventRecorder implements EventRecorder {
+    private HttpRequestEvent _requestEvent;
+    private HttpConnectEvent _connectEvent;
+    private HttpProxyTunnelEvent _proxyTunnelEvent;
+    private HttpTlsHandshakeEvent _tlsHandshakeEvent;
+    private boolean _tlsHandshakeComplete;
+    private HttpSendEvent _sendEvent;
+    private HttpContinueEvent _continueEvent;
+    private HttpReadEvent _readEvent;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event) {
+        recordEvent(event, -1L, -1L, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos) {
+        recordEvent(event, -1L, -1L, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                    int largestRead) {
+        recordEvent(event, bytesWritten, bytesRead, readCalls);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+        if (_requestEvent != null) {
+            _requestEvent.host = host;
+            _requestEvent.port = port;
+            _requestEvent.method = method.name();
+            _requestEvent.url = url;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordResponse(int httpResponseCode) {
+        if (_requestEvent != null) {
+            _requestEvent.status = httpResponseCode;
+            if (_readEvent != null) {
+                _readEvent.status = httpResponseCode;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recordSslHandshake(SslHandshakeInfo sslHandshakeInfo) {
+        if (_tlsHandshakeEvent != null && _tlsHandshakeComplete) {
+            _tlsHandshakeEvent.protocol = sslHandshakeInfo.getProtocol();
+            _tlsHandshakeEvent.cipherSuite = sslHandshakeInfo.getCipherSuite();
+            _tlsHandshakeEvent.keyExchange = sslHandshakeInfo.getKeyExchange();
+            _tlsHandshakeEvent.peerCertificates = sslHandshakeInfo.getPeerCertificateChainLength();
+            _tlsHandshakeEvent.sessionResumed = sslHandshakeInfo.isSessionResumed();
+            _tlsHandshakeEvent.commit();
+            _tlsHandshakeEvent = null;
+        }
+    }
+
+    private void recordEvent(Event event, long bytesWritten, long bytesRead, int readCalls) {
+        if (event == Event.ENTER_SEND_REQUEST) {
+            HttpRequestEvent requestEvent = new HttpRequestEvent();
+            if (requestEvent.isEnabled()) {
+                requestEvent.begin();
+                _requestEvent = requestEvent;
+            }
+            return;
+        }
+        if (_requestEvent == null) {
+            return;
+        }
+        switch (event) {
+        case CONNECTING:
+            _connectEvent = begin(new HttpConnectEvent());
+            break;
+        case CONNECTED_PROXY:
+            _connectEvent = end(_connectEvent, false);
+            _proxyTunnelEvent = begin(new HttpProxyTunnelEvent());
+            break;
+        case CONNECTED:
+            _connectEvent = end(_connectEvent, false);
+            _proxyTunnelEvent = end(_proxyTunnelEvent, false);
+            // Only committed if the handshake completes or fails, plain connections go straight to sending
+            _tlsHandshakeEvent = begin(new HttpTlsHandshakeEvent());
+            _tlsHandshakeComplete = false;
+            break;
+        case SSL_HANDSHAKE_COMPLETE:
+            // Committed with the details that follow
+            if (_tlsHandshakeEvent != null) {
+                _tlsHandshakeEvent.end();
+                _tlsHandshakeComplete = true;
+            }
+            break;
+        case SENDING_REQUEST:
+            if (_tlsHandshakeEvent != null && _tlsHandshakeComplete) {
+                _tlsHandshakeEvent.commit();
+            }
+            _tlsHandshakeEvent = null;
+            _sendEvent = begin(new HttpSendEvent());
+            break;
+        case SENT_HEADERS_WAITING_FOR_100_CONTINUE:
+            _continueEvent = begin(new HttpContinueEvent());
+            break;
+        case RECEIVED_100_CONTINUE:
+            if (_continueEvent != null) {
+                _continueEvent.received = true;
+            }
+            _continueEvent = end(_continueEvent, false);
+            break;
+        case TIMEOUT_WAITING_FOR_100_CONTINUE:
+            _continueEvent = end(_continueEvent, false);
+            break;
+        case SENT_REQUEST:
+            if (_sendEvent != null) {
+                _sendEvent.bytesWritten = Math.max(0L, bytesWritten);
+            }
+            _sendEvent = end(_sendEvent, false);
+            break;
+        case READING_RESPONSE:
+            _readEvent = begin(new HttpReadEvent());
+            break;
+        case READ_RESPONSE:
+            if (_readEvent != null) {
+                _readEvent.status = _requestEvent.status;
+                _readEvent.bytesRead = Math.max(0L, bytesRead);
+                _readEvent.readCalls = Math.max(0, readCalls);
+            }
+            _readEvent = end(_readEvent, false);
+            break;
+        case EXIT_SEND_REQUEST:
+            endRequest(bytesWritten, bytesRead);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void endRequest(long bytesWritten, long bytesRead) {
+        _connectEvent = end(_connectEvent, true);
+        _proxyTunnelEvent = end(_proxyTunnelEvent, true);
+        if (_tlsHandshakeEvent != null && _tlsHandshakeComplete) {
+            _tlsHandshakeEvent.commit();
+            _tlsHandshakeEvent = null;
+        }
+        _tlsHandshakeEvent = end(_tlsHandshakeEvent, true);
+        _continueEvent = end(_continueEvent, true);
+        _sendEvent = end(_sendEvent, true);
+        _readEvent = end(_readEvent, true);
+        _requestEvent.bytesWritten = Math.max(0L, bytesWritten);
+        _requestEvent.bytesRead = Math.max(0L, bytesRead);
+        _requestEvent.failed = _requestEvent.status == 0;
+        _requestEvent.end();
+        _requestEvent.commit();
+        _requestEvent = null;
+    }
+
+    private <T extends HttpEvent> T begin(T phaseEvent) {
+        phaseEvent.host = _requestEvent.host;
+        phaseEvent.port = _requestEvent.port;
+        phaseEvent.begin();
+        return phaseEvent;
+    }
+
+    /**
+     * Commit a phase event if there is one.
+     *
+     * @param phaseEvent The event or null.
+     * @param failed The flag to mark the phase as failed.
+     * @return null, for clearing the field.
+     */
+    private <T extends HttpEvent> T end(T phaseEvent, boolean failed) {
+        if (phaseEvent != null) {
+            phaseEvent.failed = failed;
+            phaseEvent.end();
+            phaseEvent.commit();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Support for virtual threads, Java 21 and later version.
+ *
+ * @author Erik Wramner
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Check if virtual threads are supported.
+     *
+     * @return true.
+     */
+    static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Get an executor that runs each task in a new virtual thread. Virtual threads are cheap, so they are never pooled.
+     *
+     * @return executor.
+     */
+    static Executor newVirtualThreadPerTaskExecutor() {
+        ThreadFactory threadFactory = Thread.ofVirtual().name("HttpClient-virtual-", 0L).factory();
+        return r -> threadFactory.newThread(r).start();
+    }
+}
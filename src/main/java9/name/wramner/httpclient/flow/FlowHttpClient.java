@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.flow;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+import name.wramner.httpclient.EventRecorder;
+import name.wramner.httpclient.HttpClient;
+import name.wramner.httpclient.HttpHeaderWithValue;
+import name.wramner.httpclient.HttpRequestBody;
+import name.wramner.httpclient.HttpRequestMethod;
+import name.wramner.httpclient.HttpResponse;
+import name.wramner.httpclient.ResponseBodyHandler;
+
+/**
+ * Adapter for {@link HttpClient} that publishes response bodies with {@link java.util.concurrent.Flow} rather than
+ * reading them into memory. Combined with {@link PublisherHttpRequestBody} large payloads can be streamed through
+ * with a fixed memory footprint. This class requires Java 9 or later.
+ *
+ * @author Erik Wramner
+ */
+public class FlowHttpClient {
+    private final HttpClient _client;
+
+    /**
+     * Constructor.
+     *
+     * @param client The client, which sends the requests using its executor.
+     */
+    public FlowHttpClient(HttpClient client) {
+        _client = client;
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param headers The custom HTTP headers if any.
+     * @return future response.
+     * @see #sendRequest(EventRecorder, HttpRequestMethod, String, HttpRequestBody, HttpHeaderWithValue...)
+     */
+    public CompletableFuture<FlowHttpResponse> sendRequest(HttpRequestMethod method, String url,
+                    HttpRequestBody body, HttpHeaderWithValue... headers) {
+        return sendRequest(EventRecorder.NULL_RECORDER, method, url, body, headers);
+    }
+
+    /**
+     * Send a request using the provided {@link EventRecorder} for instrumentation. The future completes as soon as
+     * the status and headers have been read, the body is published as it arrives. Failures before that fail the
+     * future, later failures are signalled to the body subscriber. Cancelling the future before it completes aborts
+     * the request, later the body subscription must be cancelled instead. The last events are recorded after the body
+     * has been completed.
+     *
+     * @param eventRecorder The event recorder for logging.
+     * @param method The request method.
+     * @param url The URL, excluding scheme and host and port.
+     * @param body The request body.
+     * @param requestHeaders The custom HTTP headers if any.
+     * @return future response.
+     */
+    public CompletableFuture<FlowHttpResponse> sendRequest(EventRecorder eventRecorder, HttpRequestMethod method,
+                    String url, HttpRequestBody body, HttpHeaderWithValue... requestHeaders) {
+        CompletableFuture<FlowHttpResponse> responseFuture = new CompletableFuture<>();
+        ResponseBodyPublisher bodyPublisher = new ResponseBodyPublisher();
+        CompletableFuture<HttpResponse> requestFuture = _client.sendRequestAsync(eventRecorder,
+                        new ResponseBodyHandler() {
+                            @Override
+                            public OutputStream onResponse(int httpResponseCode, List<HttpHeaderWithValue> headers) {
+                                responseFuture.complete(new FlowHttpResponse(httpResponseCode, headers,
+                                                bodyPublisher));
+                                return bodyPublisher;
+                            }
+
+                            @Override
+                            public void onAbort() {
+                                bodyPublisher.abort();
+                            }
+                        }, method, url, body, requestHeaders);
+        requestFuture.whenComplete((response, t) -> {
+            if (t != null && !responseFuture.completeExceptionally(t)) {
+                bodyPublisher.fail(t);
+            }
+        });
+        responseFuture.whenComplete((response, t) -> {
+            if (t instanceof CancellationException) {
+                requestFuture.cancel(true);
+            }
+        });
+        return responseFuture;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.flow;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import name.wramner.httpclient.HttpHeaderWithValue;
+import name.wramner.httpclient.HttpResponse;
+
+/**
+ * Response with a body that is published as it is read. The status and headers are available at once, the body bytes
+ * in {@link HttpResponse} are always empty.
+ *
+ * @author Erik Wramner
+ */
+public class FlowHttpResponse extends HttpResponse {
+    private final Flow.Publisher<ByteBuffer> _bodyPublisher;
+
+    /**
+     * Constructor.
+     *
+     * @param httpResponseCode The HTTP response code.
+     * @param headers The response headers.
+     * @param bodyPublisher The publisher for the body.
+     */
+    public FlowHttpResponse(int httpResponseCode, List<HttpHeaderWithValue> headers,
+                    Flow.Publisher<ByteBuffer> bodyPublisher) {
+        super(httpResponseCode, headers, new byte[0]);
+        _bodyPublisher = bodyPublisher;
+    }
+
+    /**
+     * Get the publisher for the body. It accepts a single subscriber. The connection is read only as fast as the
+     * subscriber requests data, so the body must be subscribed to and consumed or cancelled, otherwise the thread
+     * reading the response waits until the request times out. The buffers are read-only views of the client's
+     * receive buffer, which is reused when {@link Flow.Subscriber#onNext(Object)} returns, so subscribers that keep
+     * the data after that must copy it.
+     *
+     * @return publisher.
+     */
+    public Flow.Publisher<ByteBuffer> getBodyPublisher() {
+        return _bodyPublisher;
+    }
+}
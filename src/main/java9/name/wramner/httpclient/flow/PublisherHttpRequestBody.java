@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.flow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+
+import name.wramner.httpclient.HttpRequestBody;
+
+/**
+ * HTTP request body that subscribes to a {@link Flow.Publisher}. Buffers are requested a few at a time and written
+ * to the connection as they arrive, so the memory needed is bounded regardless of the body size. The publisher is
+ * subscribed to each time the body is written. If the length is unknown the body is sent with chunked transfer
+ * encoding.
+ *
+ * @author Erik Wramner
+ */
+public class PublisherHttpRequestBody implements HttpRequestBody {
+    private static final int DEFAULT_PREFETCH = 4;
+    private static final int COPY_BUFFER_SIZE = 8192;
+    private final Flow.Publisher<ByteBuffer> _publisher;
+    private final long _contentLength;
+    private final int _prefetch;
+
+    /**
+     * Constructor for body with unknown length.
+     *
+     * @param publisher The publisher.
+     */
+    public PublisherHttpRequestBody(Flow.Publisher<ByteBuffer> publisher) {
+        this(publisher, -1L);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param publisher The publisher.
+     * @param contentLength The exact number of bytes the publisher produces or -1 if unknown.
+     */
+    public PublisherHttpRequestBody(Flow.Publisher<ByteBuffer> publisher, long contentLength) {
+        this(publisher, contentLength, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param publisher The publisher.
+     * @param contentLength The exact number of bytes the publisher produces or -1 if unknown.
+     * @param prefetch The maximum number of buffers requested but not yet written.
+     */
+    public PublisherHttpRequestBody(Flow.Publisher<ByteBuffer> publisher, long contentLength, int prefetch) {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("Prefetch must be at least 1, got " + prefetch);
+        }
+        _publisher = publisher;
+        _contentLength = contentLength;
+        _prefetch = prefetch;
+    }
+
+    /**
+     * Get the complete body in memory. Prefer {@link #writeTo(OutputStream)} for large bodies.
+     *
+     * @return bytes.
+     */
+    @Override
+    public byte[] getBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getContentLength() {
+        return _contentLength;
+    }
+
+    /**
+     * Subscribe to the publisher and write all buffers. The subscription is cancelled if writing fails.
+     *
+     * @param out The output stream.
+     * @throws IOException on write errors, if the publisher fails or if the length does not match.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        BlockingSubscriber subscriber = new BlockingSubscriber(_prefetch);
+        _publisher.subscribe(subscriber);
+        byte[] copyBuffer = null;
+        long totalWritten = 0L;
+        boolean completed = false;
+        try {
+            for (ByteBuffer buffer = subscriber.take(); buffer != null; buffer = subscriber.take()) {
+                int length = buffer.remaining();
+                if (_contentLength >= 0L && totalWritten + length > _contentLength) {
+                    throw new IOException("Publisher produced more than " + _contentLength + " bytes");
+                }
+                if (buffer.hasArray()) {
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                } else {
+                    if (copyBuffer == null) {
+                        copyBuffer = new byte[COPY_BUFFER_SIZE];
+                    }
+                    while (buffer.hasRemaining()) {
+                        int count = Math.min(buffer.remaining(), copyBuffer.length);
+                        buffer.get(copyBuffer, 0, count);
+                        out.write(copyBuffer, 0, count);
+                    }
+                }
+                totalWritten += length;
+                subscriber.requestNext();
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                subscriber.cancel();
+            }
+        }
+        if (_contentLength >= 0L && totalWritten != _contentLength) {
+            throw new IOException("Publisher produced " + totalWritten + " bytes, expected " + _contentLength);
+        }
+    }
+
+    /**
+     * Subscriber that hands over buffers to the writing thread. The queue never holds more than the prefetch count
+     * plus the final signal, as a new buffer is only requested when one has been written.
+     */
+    private static class BlockingSubscriber implements Flow.Subscriber<ByteBuffer> {
+        private static final Object COMPLETE = new Object();
+        private final BlockingQueue<Object> _queue;
+        private final int _prefetch;
+        private volatile Flow.Subscription _subscription;
+
+        BlockingSubscriber(int prefetch) {
+            _queue = new ArrayBlockingQueue<>(prefetch + 1);
+            _prefetch = prefetch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            _subscription = subscription;
+            subscription.request(_prefetch);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            _queue.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            _queue.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            _queue.add(COMPLETE);
+        }
+
+        /**
+         * Wait for the next buffer.
+         *
+         * @return buffer or null if complete.
+         * @throws IOException if the publisher failed or if interrupted.
+         */
+        ByteBuffer take() throws IOException {
+            Object item;
+            try {
+                item = _queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for request body");
+            }
+            if (item == COMPLETE) {
+                return null;
+            } else if (item instanceof Throwable) {
+                throw new IOException("Request body publisher failed", (Throwable) item);
+            }
+            return (ByteBuffer) item;
+        }
+
+        void requestNext() {
+            _subscription.request(1L);
+        }
+
+        void cancel() {
+            Flow.Subscription subscription = _subscription;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+}
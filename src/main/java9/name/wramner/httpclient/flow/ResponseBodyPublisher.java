@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient.flow;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publisher for a response body. The client writes the body to it as a stream, and each write blocks until the
+ * subscriber has requested more data. That stops the client from reading from the connection, so TCP flow control
+ * slows down the server. A blocked write fails when the request is aborted. The data is published without copying,
+ * as a read-only view that is only valid during {@link Flow.Subscriber#onNext(Object)}. Only a single subscriber is
+ * supported.
+ *
+ * @author Erik Wramner
+ */
+final class ResponseBodyPublisher extends OutputStream implements Flow.Publisher<ByteBuffer>, Flow.Subscription {
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _demandAvailable = _lock.newCondition();
+    private Flow.Subscriber<? super ByteBuffer> _subscriber;
+    private boolean _subscribed;
+    private long _demand;
+    private boolean _cancelled;
+    private boolean _aborted;
+    private boolean _closed;
+    private boolean _terminated;
+    private Throwable _error;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        _lock.lock();
+        try {
+            if (_subscriber != null) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("The body has already been subscribed to"));
+                return;
+            }
+            _subscriber = subscriber;
+        } finally {
+            _lock.unlock();
+        }
+        subscriber.onSubscribe(this);
+        boolean signalTermination;
+        Throwable error;
+        _lock.lock();
+        try {
+            _subscribed = true;
+            signalTermination = (_closed || _error != null) && !_terminated;
+            _terminated |= signalTermination;
+            error = _error;
+            _demandAvailable.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+        if (signalTermination) {
+            signalTermination(subscriber, error);
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        _lock.lock();
+        try {
+            if (n <= 0L) {
+                // The writing thread signals the error
+                _error = new IllegalArgumentException("Requested " + n + " items, must be positive");
+                _cancelled = true;
+            } else {
+                _demand = _demand + n < 0L ? Long.MAX_VALUE : _demand + n;
+            }
+            _demandAvailable.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        _lock.lock();
+        try {
+            _cancelled = true;
+            _terminated |= _error == null;
+            _demandAvailable.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Publish the data when the subscriber is ready for it.
+     *
+     * @param b The data.
+     * @param off The offset.
+     * @param len The length.
+     * @throws IOException if the subscription has been cancelled, if the request has been aborted or if interrupted.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        Flow.Subscriber<? super ByteBuffer> subscriber;
+        boolean cancelled;
+        Throwable error;
+        _lock.lock();
+        try {
+            while ((!_subscribed || _demand == 0L) && !_cancelled && !_aborted) {
+                _demandAvailable.await();
+            }
+            if (_aborted && !_cancelled) {
+                // The client fails the subscriber with the cause when the request fails
+                throw new IOException("Request aborted");
+            }
+            cancelled = _cancelled;
+            error = _error;
+            if (cancelled) {
+                subscriber = _terminated ? null : _subscriber;
+                _terminated = true;
+            } else {
+                if (_demand != Long.MAX_VALUE) {
+                    _demand--;
+                }
+                subscriber = _subscriber;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response body demand");
+        } finally {
+            _lock.unlock();
+        }
+        if (cancelled) {
+            if (subscriber != null) {
+                subscriber.onError(error);
+            }
+            throw new IOException("Response body subscription cancelled");
+        }
+        subscriber.onNext(ByteBuffer.wrap(b, off, len).asReadOnlyBuffer());
+    }
+
+    /**
+     * Make a blocked write fail, and any later writes, as the request has been aborted.
+     */
+    void abort() {
+        _lock.lock();
+        try {
+            _aborted = true;
+            _demandAvailable.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Signal completion, now or when subscribed.
+     */
+    @Override
+    public void close() {
+        Flow.Subscriber<? super ByteBuffer> subscriber = null;
+        Throwable error = null;
+        _lock.lock();
+        try {
+            if (!_closed) {
+                _closed = true;
+                if (_subscribed && !_terminated) {
+                    _terminated = true;
+                    subscriber = _subscriber;
+                    error = _error;
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+        if (subscriber != null) {
+            signalTermination(subscriber, error);
+        }
+    }
+
+    /**
+     * Signal an error, now or when subscribed. Ignored if the subscriber has been signalled already.
+     *
+     * @param t The error.
+     */
+    void fail(Throwable t) {
+        Flow.Subscriber<? super ByteBuffer> subscriber = null;
+        _lock.lock();
+        try {
+            if (!_terminated) {
+                _error = t;
+                if (_subscribed) {
+                    _terminated = true;
+                    subscriber = _subscriber;
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+        if (subscriber != null) {
+            subscriber.onError(t);
+        }
+    }
+
+    private static void signalTermination(Flow.Subscriber<? super ByteBuffer> subscriber, Throwable error) {
+        if (error != null) {
+            subscriber.onError(error);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import name.wramner.httpclient.AdaptiveConcurrencyLimiter.Algorithm;
+import name.wramner.httpclient.exceptions.ConcurrencyLimitExceededException;
+
+/**
+ * Test {@link AdaptiveConcurrencyLimiter}.
+ *
+ * @author Erik Wramner
+ */
+public class AdaptiveConcurrencyLimiterTest {
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    @Test
+    public void testRejectsAtOnceWithoutQueue() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(Algorithm.AIMD, 1, 1, 10, 0, 1000);
+        limiter.acquire();
+        try {
+            limiter.acquire();
+            fail("Expected the limit to be exceeded");
+        } catch (ConcurrencyLimitExceededException e) {
+            // Expected
+        }
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testQueuedRequestTimesOut() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(Algorithm.AIMD, 1, 1, 10, 1, 50);
+        limiter.acquire();
+        long startNanos = System.nanoTime();
+        try {
+            limiter.acquire();
+            fail("Expected a timeout");
+        } catch (ConcurrencyLimitExceededException e) {
+            assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(50L));
+        }
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testQueuedRequestGetsReleasedPermit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(Algorithm.AIMD, 1, 1, 10, 1, 10000);
+        limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (Exception e) {
+                // The latch is never released
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(50L, TimeUnit.MILLISECONDS));
+        limiter.releaseIgnored();
+        assertTrue(acquired.await(5L, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testAimdGrowsOnlyWhenLimited() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(Algorithm.AIMD, 10, 1, 100, 0, 1000);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.releaseSucceeded(FAST_NANOS);
+        }
+        assertEquals(10, limiter.getLimit());
+        for (int round = 0; round < 20; round++) {
+            runRound(limiter, FAST_NANOS);
+        }
+        assertTrue("Limit " + limiter.getLimit(), limiter.getLimit() > 10);
+    }
+
+    @Test
+    public void testDropsShrinkLimitToMinimum() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(Algorithm.AIMD, 10, 2, 100, 0, 1000);
+        limiter.acquire();
+        limiter.releaseDropped();
+        assertEquals(9, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.releaseDropped();
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testIgnoredReleaseKeepsLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(Algorithm.GRADIENT, 10, 1, 100, 0, 1000);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < 10; i++) {
+            limiter.releaseIgnored();
+        }
+        assertEquals(10, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testGradientFollowsRoundTripTime() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(Algorithm.GRADIENT, 10, 1, 1000, 0,
+                        1000);
+        for (int round = 0; round < 10; round++) {
+            runRound(limiter, FAST_NANOS);
+        }
+        int grownLimit = limiter.getLimit();
+        assertTrue("Limit " + grownLimit, grownLimit > 10);
+        for (int round = 0; round < 10; round++) {
+            runRound(limiter, SLOW_NANOS);
+        }
+        assertTrue("Limit " + limiter.getLimit(), limiter.getLimit() < grownLimit);
+    }
+
+    private static void runRound(AdaptiveConcurrencyLimiter limiter, long roundTripTimeNanos) throws Exception {
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < limit; i++) {
+            limiter.releaseSucceeded(roundTripTimeNanos);
+        }
+    }
+}
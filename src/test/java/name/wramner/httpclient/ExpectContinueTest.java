@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Test 100-continue handling against a raw local server that answers the expectation with 100 continue, ignores it
+ * or rejects it.
+ *
+ * @author Erik Wramner
+ */
+public class ExpectContinueTest {
+    private static final int CONTINUE_TIMEOUT_MILLIS = 200;
+    private static final int THRESHOLD = 10;
+    private static final String BODY = "a body above the threshold";
+    private ServerSocket _serverSocket;
+    private Thread _serverThread;
+    private volatile Mode _mode;
+
+    private enum Mode {
+        CONTINUE, IGNORE, REJECT, UNAUTHORIZED
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        _serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        _serverThread = new Thread(this::serve, "ExpectContinueTest-server");
+        _serverThread.setDaemon(true);
+        _serverThread.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        _serverSocket.close();
+        _serverThread.join(5000L);
+    }
+
+    @Test
+    public void testBodySentAfter100Continue() throws IOException {
+        _mode = Mode.CONTINUE;
+        HttpClient client = newClient();
+        for (int i = 0; i < 2; i++) {
+            List<Event> events = new CopyOnWriteArrayList<Event>();
+            HttpResponse response = client.sendRequest(events::add, HttpRequestMethod.POST, "/",
+                            new StringHttpRequestBody(BODY));
+            assertEquals(200, response.getHttpResponseCode());
+            assertEquals("expect=true body=" + BODY.length(), response.getBodyAsText());
+            assertTrue(events.toString(), events.contains(Event.SENT_HEADERS_WAITING_FOR_100_CONTINUE));
+            assertTrue(events.toString(), events.contains(Event.RECEIVED_100_CONTINUE));
+            assertFalse(events.toString(), events.contains(Event.TIMEOUT_WAITING_FOR_100_CONTINUE));
+            assertTrue(events.indexOf(Event.RECEIVED_100_CONTINUE) < events.indexOf(Event.SENT_REQUEST));
+        }
+    }
+
+    @Test
+    public void testBodySentAfterTimeoutWhenExpectationIgnored() throws IOException {
+        _mode = Mode.IGNORE;
+        HttpClient client = newClient();
+        List<Event> events = new CopyOnWriteArrayList<Event>();
+        long startNanos = System.nanoTime();
+        HttpResponse response = client.sendRequest(events::add, HttpRequestMethod.POST, "/",
+                        new StringHttpRequestBody(BODY));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        assertEquals(200, response.getHttpResponseCode());
+        assertEquals("expect=true body=" + BODY.length(), response.getBodyAsText());
+        assertTrue(events.toString(), events.contains(Event.TIMEOUT_WAITING_FOR_100_CONTINUE));
+        assertFalse(events.toString(), events.contains(Event.RECEIVED_100_CONTINUE));
+        assertTrue("Elapsed " + elapsedMillis + " ms", elapsedMillis >= CONTINUE_TIMEOUT_MILLIS);
+
+        // The host is now known to ignore the expectation, so the next body is sent at once
+        events.clear();
+        response = client.sendRequest(events::add, HttpRequestMethod.POST, "/", new StringHttpRequestBody(BODY));
+        assertEquals("expect=false body=" + BODY.length(), response.getBodyAsText());
+        assertFalse(events.toString(), events.contains(Event.SENT_HEADERS_WAITING_FOR_100_CONTINUE));
+    }
+
+    @Test
+    public void testBodyNotSentWhenRejected() throws IOException {
+        _mode = Mode.REJECT;
+        HttpClient client = newClient();
+        List<Event> events = new CopyOnWriteArrayList<Event>();
+        HttpResponse response = client.sendRequest(events::add, HttpRequestMethod.POST, "/",
+                        new StringHttpRequestBody(BODY));
+        assertEquals(417, response.getHttpResponseCode());
+        assertTrue(events.toString(), events.contains(Event.SENT_HEADERS_WAITING_FOR_100_CONTINUE));
+        assertFalse(events.toString(), events.contains(Event.SENT_REQUEST));
+
+        // Expectation failed, so the next request goes without it
+        _mode = Mode.IGNORE;
+        response = client.sendRequest(HttpRequestMethod.POST, "/", new StringHttpRequestBody(BODY));
+        assertEquals("expect=false body=" + BODY.length(), response.getBodyAsText());
+    }
+
+    @Test
+    public void testBodyNotSentOnFinalResponse() throws IOException {
+        _mode = Mode.UNAUTHORIZED;
+        HttpClient client = newClient();
+        List<Event> events = new CopyOnWriteArrayList<Event>();
+        HttpResponse response = client.sendRequest(events::add, HttpRequestMethod.POST, "/",
+                        new StringHttpRequestBody(BODY));
+        assertEquals(401, response.getHttpResponseCode());
+        assertFalse(events.toString(), events.contains(Event.SENT_REQUEST));
+
+        // Not a verdict on the expectation, so it is still used
+        _mode = Mode.CONTINUE;
+        response = client.sendRequest(HttpRequestMethod.POST, "/", new StringHttpRequestBody(BODY));
+        assertEquals("expect=true body=" + BODY.length(), response.getBodyAsText());
+    }
+
+    @Test
+    public void testSmallBodySentDirectly() throws IOException {
+        _mode = Mode.CONTINUE;
+        HttpResponse response = newClient().sendRequest(HttpRequestMethod.POST, "/",
+                        new StringHttpRequestBody("small"));
+        assertEquals("expect=false body=5", response.getBodyAsText());
+    }
+
+    private HttpClient newClient() {
+        return new HttpClientBuilder(InetAddress.getLoopbackAddress().getHostAddress())
+                        .withPort(_serverSocket.getLocalPort()).expect100Continue(true)
+                        .with100ContinueTimeout(CONTINUE_TIMEOUT_MILLIS).with100ContinueThreshold(THRESHOLD).build();
+    }
+
+    private void serve() {
+        try {
+            for (;;) {
+                try (Socket socket = _serverSocket.accept()) {
+                    handle(socket);
+                }
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        int contentLength = 0;
+        boolean expect = false;
+        for (String line : readHead(in).split("\r\n")) {
+            String lowerCaseLine = line.toLowerCase(Locale.ROOT);
+            if (lowerCaseLine.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            } else if (lowerCaseLine.equals("expect: 100-continue")) {
+                expect = true;
+            }
+        }
+        if (expect && _mode == Mode.REJECT) {
+            writeResponse(out, "417 Expectation Failed", "");
+            return;
+        } else if (expect && _mode == Mode.UNAUTHORIZED) {
+            writeResponse(out, "401 Unauthorized", "");
+            return;
+        } else if (expect && _mode == Mode.CONTINUE) {
+            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+        int bodyLength = 0;
+        while (bodyLength < contentLength && in.read() != -1) {
+            bodyLength++;
+        }
+        writeResponse(out, "200 OK", "expect=" + expect + " body=" + bodyLength);
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int lineBreaks = 0;
+        while (lineBreaks < 4) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("End of request head");
+            }
+            head.write(b);
+            lineBreaks = b == '\r' || b == '\n' ? lineBreaks + 1 : 0;
+        }
+        return new String(head.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void writeResponse(OutputStream out, String status, String body) throws IOException {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.US_ASCII);
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + bodyBytes.length + "\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+        out.write(bodyBytes);
+        out.flush();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Test {@link HistogramEventRecorder}.
+ *
+ * @author Erik Wramner
+ */
+public class HistogramEventRecorderTest {
+
+    @Test
+    public void testRecordsPhasesAndTotal() {
+        HistogramEventRecorder recorder = new HistogramEventRecorder();
+        EventRecorder requestRecorder = recorder.newRequestRecorder();
+        requestRecorder.recordEvent(Event.ENTER_SEND_REQUEST, 1000L);
+        requestRecorder.recordEvent(Event.CONNECTING, 1000L);
+        requestRecorder.recordEvent(Event.CONNECTED, 1010L);
+        requestRecorder.recordEvent(Event.SENDING_REQUEST, 1010L);
+        requestRecorder.recordEvent(Event.SENT_REQUEST, 1015L);
+        requestRecorder.recordEvent(Event.READING_RESPONSE, 1015L);
+        requestRecorder.recordEvent(Event.FIRST_RESPONSE_BYTE, 1025L);
+        requestRecorder.recordEvent(Event.READ_RESPONSE, 1030L);
+        requestRecorder.recordEvent(Event.EXIT_SEND_REQUEST, 1031L);
+        assertPhase(recorder, RequestPhase.CONNECT, 10L);
+        assertPhase(recorder, RequestPhase.SEND, 5L);
+        assertPhase(recorder, RequestPhase.FIRST_BYTE, 10L);
+        assertPhase(recorder, RequestPhase.BODY, 5L);
+        assertEquals(0L, recorder.getHistogram(RequestPhase.SSL_HANDSHAKE).getCount());
+        assertEquals(0L, recorder.getHistogram(RequestPhase.PROXY_TUNNEL).getCount());
+        assertEquals(1L, recorder.getTotalHistogram().getCount());
+        assertEquals(31L, recorder.getTotalHistogram().getMax());
+    }
+
+    @Test
+    public void testPhaseIsRecordedOncePerRequest() {
+        HistogramEventRecorder recorder = new HistogramEventRecorder();
+        recorder.recordEvent(Event.ENTER_SEND_REQUEST, 0L);
+        recorder.recordEvent(Event.CONNECTING, 0L);
+        recorder.recordEvent(Event.CONNECTED_PROXY, 7L);
+        recorder.recordEvent(Event.CONNECTED, 20L);
+        recorder.recordEvent(Event.EXIT_SEND_REQUEST, 25L);
+        assertPhase(recorder, RequestPhase.CONNECT, 7L);
+        assertPhase(recorder, RequestPhase.PROXY_TUNNEL, 13L);
+        recorder.recordEvent(Event.ENTER_SEND_REQUEST, 100L);
+        recorder.recordEvent(Event.CONNECTING, 100L);
+        recorder.recordEvent(Event.CONNECTED, 103L);
+        recorder.recordEvent(Event.EXIT_SEND_REQUEST, 104L);
+        assertEquals(2L, recorder.getHistogram(RequestPhase.CONNECT).getCount());
+        assertEquals(2L, recorder.getTotalHistogram().getCount());
+    }
+
+    @Test
+    public void testAddAndReset() {
+        HistogramEventRecorder first = new HistogramEventRecorder();
+        HistogramEventRecorder second = new HistogramEventRecorder();
+        second.recordEvent(Event.ENTER_SEND_REQUEST, 0L);
+        second.recordEvent(Event.EXIT_SEND_REQUEST, 9L);
+        first.add(second);
+        assertEquals(1L, first.getTotalHistogram().getCount());
+        first.reset();
+        assertEquals(0L, first.getTotalHistogram().getCount());
+        assertEquals(1L, second.getTotalHistogram().getCount());
+    }
+
+    private static void assertPhase(HistogramEventRecorder recorder, RequestPhase phase, long expectedNanos) {
+        LatencyHistogram histogram = recorder.getHistogram(phase);
+        assertEquals(phase.name(), 1L, histogram.getCount());
+        assertEquals(phase.name(), expectedNanos, histogram.getMax());
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Test {@link HttpClientMetrics} and {@link MetricsHttpServer}.
+ *
+ * @author Erik Wramner
+ */
+public class HttpClientMetricsTest {
+    private static final Pattern SAMPLE = Pattern.compile("([a-z_]+)(\\{[^}]*\\})? (-?[0-9.]+)");
+    private static final Pattern BUCKET = Pattern
+                    .compile("httpclient_request_duration_seconds_bucket\\{le=\"([^\"]+)\"\\} ([0-9]+)");
+
+    @Test
+    public void testCountsRequestsByOutcome() {
+        HttpClientMetrics metrics = new HttpClientMetrics();
+        recordRequest(metrics, 200, null, 1000L);
+        recordRequest(metrics, 204, null, 1000L);
+        recordRequest(metrics, 503, null, 1000L);
+        recordRequest(metrics, 0, new IOException(), 1000L);
+        recordRequest(metrics, 0, new CancellationException(), 1000L);
+        recordRequest(metrics, 0, null, 1000L);
+        EventRecorder inFlight = metrics.newRequestRecorder();
+        inFlight.recordEvent(Event.ENTER_SEND_REQUEST, 0L);
+
+        String text = metrics.toString();
+        assertContains(text, "httpclient_responses_total{status=\"2xx\"} 2\n");
+        assertContains(text, "httpclient_responses_total{status=\"4xx\"} 0\n");
+        assertContains(text, "httpclient_responses_total{status=\"5xx\"} 1\n");
+        assertContains(text, "httpclient_failed_requests_total 2\n");
+        assertContains(text, "httpclient_cancelled_requests_total 1\n");
+        assertContains(text, "httpclient_failures_total{type=\"java.io.IOException\"} 1\n");
+        assertContains(text, "httpclient_requests_in_flight 1\n");
+        assertContains(text, "httpclient_connections_total 6\n");
+        assertContains(text, "httpclient_sent_bytes_total 600\n");
+        assertContains(text, "httpclient_received_bytes_total 1200\n");
+        assertContains(text, "httpclient_request_duration_seconds_count 6\n");
+
+        metrics.reset();
+        text = metrics.toString();
+        assertContains(text, "httpclient_responses_total{status=\"2xx\"} 0\n");
+        assertContains(text, "httpclient_failed_requests_total 0\n");
+        assertContains(text, "httpclient_requests_in_flight 1\n");
+        assertContains(text, "httpclient_request_duration_seconds_count 0\n");
+    }
+
+    @Test
+    public void testHistogramBucketsAreCumulative() {
+        HttpClientMetrics metrics = new HttpClientMetrics();
+        recordRequest(metrics, 200, null, TimeUnit.MICROSECONDS.toNanos(200L));
+        recordRequest(metrics, 200, null, TimeUnit.MILLISECONDS.toNanos(3L));
+        recordRequest(metrics, 200, null, TimeUnit.MILLISECONDS.toNanos(40L));
+        recordRequest(metrics, 200, null, TimeUnit.SECONDS.toNanos(20L));
+
+        List<String> bounds = new ArrayList<String>();
+        List<Long> counts = new ArrayList<Long>();
+        Matcher matcher = BUCKET.matcher(metrics.toString());
+        while (matcher.find()) {
+            bounds.add(matcher.group(1));
+            counts.add(Long.valueOf(matcher.group(2)));
+        }
+        assertEquals(15, bounds.size());
+        assertEquals("+Inf", bounds.get(14));
+        for (int i = 1; i < bounds.size(); i++) {
+            assertTrue(counts.get(i).longValue() >= counts.get(i - 1).longValue());
+            if (i < bounds.size() - 1) {
+                assertTrue(Double.parseDouble(bounds.get(i)) > Double.parseDouble(bounds.get(i - 1)));
+            }
+        }
+        assertTrue(bounds.get(0), bounds.get(0).startsWith("0.0004"));
+        assertEquals(1L, counts.get(0).longValue());
+        assertEquals(2L, counts.get(bounds.indexOf(bucketAbove(0.005, bounds))).longValue());
+        assertEquals(3L, counts.get(bounds.indexOf(bucketAbove(0.05, bounds))).longValue());
+        assertEquals(3L, counts.get(13).longValue());
+        assertEquals(4L, counts.get(14).longValue());
+    }
+
+    @Test
+    public void testTextFormat() {
+        HttpClientMetrics metrics = new HttpClientMetrics();
+        recordRequest(metrics, 200, null, 1000000L);
+        recordRequest(metrics, 0, new IOException(), 1000000L);
+        Set<String> families = new HashSet<String>();
+        String text = metrics.toString();
+        assertTrue(text.endsWith("\n"));
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.startsWith("# HELP ")) {
+                String name = line.split(" ")[2];
+                assertTrue(name, families.add(name));
+                assertTrue(lines[i + 1], lines[i + 1].startsWith("# TYPE " + name + " "));
+            } else if (!line.startsWith("# TYPE ")) {
+                Matcher matcher = SAMPLE.matcher(line);
+                assertTrue(line, matcher.matches());
+                String name = matcher.group(1).replaceFirst("_(bucket|sum|count)$", "");
+                assertTrue(line, families.contains(name) || families.contains(matcher.group(1)));
+            }
+        }
+        assertTrue(families.contains("httpclient_phase_duration_seconds"));
+        assertTrue(families.contains("httpclient_request_duration_seconds"));
+        assertContains(text, "httpclient_request_duration_seconds_sum 0.002000000\n");
+    }
+
+    @Test
+    public void testServerPublishesMetrics() throws IOException {
+        HttpClientMetrics metrics = new HttpClientMetrics();
+        recordRequest(metrics, 200, null, 1000L);
+        try (MetricsHttpServer server = new MetricsHttpServer(metrics,
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            URL url = new URL("http://127.0.0.1:" + server.getPort() + "/metrics");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("text/plain; version=0.0.4; charset=utf-8", conn.getContentType());
+            assertEquals(metrics.toString(), read(conn.getInputStream()));
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("POST");
+            assertEquals(405, conn.getResponseCode());
+        }
+    }
+
+    private static void recordRequest(HttpClientMetrics metrics, int httpResponseCode, Throwable failure,
+                    long duration) {
+        EventRecorder recorder = metrics.newRequestRecorder();
+        recorder.recordEvent(Event.ENTER_SEND_REQUEST, 0L);
+        recorder.recordEvent(Event.CONNECTING, 0L);
+        if (httpResponseCode > 0) {
+            recorder.recordResponse(httpResponseCode);
+        }
+        if (failure != null) {
+            recorder.recordFailure(failure);
+        }
+        recorder.recordEvent(Event.EXIT_SEND_REQUEST, duration, 100L, 200L, 1, 200);
+    }
+
+    private static String bucketAbove(double value, List<String> bounds) {
+        for (String bound : bounds) {
+            if (Double.parseDouble(bound) > value) {
+                return bound;
+            }
+        }
+        throw new AssertionError("No bucket above " + value);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bos.write(buffer, 0, n);
+            }
+            return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertContains(String text, String expected) {
+        assertTrue("Missing " + expected + " in " + text, text.contains(expected));
+    }
+}
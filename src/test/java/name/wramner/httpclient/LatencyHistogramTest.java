@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test {@link LatencyHistogram}.
+ *
+ * @author Erik Wramner
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testSmallValuesHaveOwnBuckets() {
+        for (int value = 0; value < 32; value++) {
+            assertEquals(value, LatencyHistogram.getBucketIndex(value));
+            assertEquals(value, LatencyHistogram.getBucketUpperBound(value));
+        }
+        assertEquals(32, LatencyHistogram.getBucketIndex(32L));
+        assertEquals(33, LatencyHistogram.getBucketIndex(33L));
+    }
+
+    @Test
+    public void testBucketsAreContiguousWithBoundedError() {
+        Random random = new Random(42L);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int index = LatencyHistogram.getBucketIndex(value);
+            long upperBound = LatencyHistogram.getBucketUpperBound(index);
+            long lowerBound = index > 0 ? LatencyHistogram.getBucketUpperBound(index - 1) + 1L : 0L;
+            assertTrue(value + " in " + lowerBound + ".." + upperBound, lowerBound <= value && value <= upperBound);
+            assertTrue("Bucket too wide for " + value, upperBound - lowerBound <= Math.max(0L, lowerBound / 32L));
+        }
+    }
+
+    @Test
+    public void testLargestValueFitsInLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1L, histogram.getCount());
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketUpperBound(
+                        LatencyHistogram.getBucketIndex(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testBucketBoundAtOrBelow() {
+        for (long value : new long[] { 0L, 31L, 32L, 100L, 500000L, 1000000L, 1234567890L }) {
+            long bound = LatencyHistogram.getBucketBoundAtOrBelow(value);
+            assertTrue(bound <= value);
+            assertEquals(bound, LatencyHistogram.getBucketUpperBound(LatencyHistogram.getBucketIndex(bound)));
+            assertTrue(LatencyHistogram.getBucketIndex(value) - LatencyHistogram.getBucketIndex(bound) <= 1);
+        }
+    }
+
+    @Test
+    public void testCountsAndPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1L; value <= 1000L; value++) {
+            histogram.record(value * 1000L);
+        }
+        histogram.record(-5L);
+        assertEquals(1001L, histogram.getCount());
+        assertEquals(1000000L, histogram.getMax());
+        assertEquals(500500000L, histogram.getSum());
+        assertEquals(1L, histogram.getCountAtOrBelow(0L));
+        assertEquals(0L, histogram.getCountAtOrBelow(-1L));
+        long bound = LatencyHistogram.getBucketBoundAtOrBelow(500000L);
+        assertEquals(1L + bound / 1000L, histogram.getCountAtOrBelow(bound));
+        assertWithin(500000L, histogram.getValueAtPercentile(50.0));
+        assertWithin(990000L, histogram.getValueAtPercentile(99.0));
+        assertEquals(1000000L, histogram.getValueAtPercentile(100.0));
+        assertEquals(0L, histogram.getValueAtPercentile(0.0));
+    }
+
+    @Test
+    public void testAddAndReset() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10L);
+        second.record(2000L);
+        second.record(3000L);
+        first.add(second);
+        assertEquals(3L, first.getCount());
+        assertEquals(5010L, first.getSum());
+        assertEquals(3000L, first.getMax());
+        assertEquals(2L, second.getCount());
+        first.reset();
+        assertEquals(0L, first.getCount());
+        assertEquals(0L, first.getMax());
+        assertEquals(0L, first.getValueAtPercentile(99.0));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0L; value < 100000000L; value = value * 3L + 1L) {
+            histogram.record(value);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        histogram.writeTo(new DataOutputStream(bos));
+        LatencyHistogram copy = LatencyHistogram.readFrom(new DataInputStream(new ByteArrayInputStream(
+                        bos.toByteArray())));
+        assertEquals(histogram.getCount(), copy.getCount());
+        assertEquals(histogram.getSum(), copy.getSum());
+        assertEquals(histogram.getMax(), copy.getMax());
+        for (double percentile : new double[] { 10.0, 50.0, 90.0, 100.0 }) {
+            assertEquals(histogram.getValueAtPercentile(percentile), copy.getValueAtPercentile(percentile));
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + ", got " + actual, Math.abs(actual - expected) <= expected / 32L);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/**
+ * Test {@link PriorityRequestScheduler}.
+ *
+ * @author Erik Wramner
+ */
+public class PriorityRequestSchedulerTest {
+    private static final HttpResponse OK = new HttpResponse(200, Collections.<HttpHeaderWithValue> emptyList(),
+                    new byte[0]);
+
+    @Test
+    public void testLimitsRequestsInFlight() {
+        PriorityRequestScheduler scheduler = new PriorityRequestScheduler(2, 0, 1000);
+        List<CompletableFuture<HttpResponse>> responses = new ArrayList<CompletableFuture<HttpResponse>>();
+        List<CompletableFuture<HttpResponse>> results = new ArrayList<CompletableFuture<HttpResponse>>();
+        for (int i = 0; i < 5; i++) {
+            results.add(scheduler.schedule(RequestPriority.NORMAL, () -> {
+                CompletableFuture<HttpResponse> response = new CompletableFuture<HttpResponse>();
+                responses.add(response);
+                return response;
+            }));
+        }
+        assertEquals(2, responses.size());
+        assertEquals(2, scheduler.getInFlight());
+        assertEquals(3, scheduler.getQueueLength());
+        responses.get(0).complete(OK);
+        assertTrue(results.get(0).isDone());
+        assertEquals(3, responses.size());
+        assertEquals(2, scheduler.getInFlight());
+        assertEquals(2, scheduler.getQueueLength());
+    }
+
+    @Test
+    public void testHighPriorityUsesReservedSlot() {
+        PriorityRequestScheduler scheduler = new PriorityRequestScheduler(2, 1, 1000);
+        List<RequestPriority> started = new ArrayList<RequestPriority>();
+        for (int i = 0; i < 2; i++) {
+            scheduler.schedule(RequestPriority.LOW, () -> {
+                started.add(RequestPriority.LOW);
+                return new CompletableFuture<HttpResponse>();
+            });
+        }
+        scheduler.schedule(RequestPriority.HIGH, () -> {
+            started.add(RequestPriority.HIGH);
+            return new CompletableFuture<HttpResponse>();
+        });
+        assertEquals(2, started.size());
+        assertEquals(RequestPriority.LOW, started.get(0));
+        assertEquals(RequestPriority.HIGH, started.get(1));
+        assertEquals(1, scheduler.getQueueLength());
+    }
+
+    @Test
+    public void testManyImmediateCompletionsDoNotOverflowStack() {
+        PriorityRequestScheduler scheduler = new PriorityRequestScheduler(1, 0, 1000);
+        CompletableFuture<HttpResponse> first = new CompletableFuture<HttpResponse>();
+        scheduler.schedule(RequestPriority.NORMAL, () -> first);
+        List<CompletableFuture<HttpResponse>> results = new ArrayList<CompletableFuture<HttpResponse>>();
+        for (int i = 0; i < 100000; i++) {
+            CompletableFuture<HttpResponse> failed = new CompletableFuture<HttpResponse>();
+            failed.completeExceptionally(new IOException("Rejected"));
+            results.add(scheduler.schedule(RequestPriority.NORMAL, () -> failed));
+        }
+        assertEquals(100000, scheduler.getQueueLength());
+        first.complete(OK);
+        for (CompletableFuture<HttpResponse> result : results) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+        assertEquals(0, scheduler.getInFlight());
+        assertEquals(0, scheduler.getQueueLength());
+    }
+
+    @Test
+    public void testCancelledRequestIsNotStarted() {
+        PriorityRequestScheduler scheduler = new PriorityRequestScheduler(1, 0, 1000);
+        CompletableFuture<HttpResponse> first = new CompletableFuture<HttpResponse>();
+        scheduler.schedule(RequestPriority.NORMAL, () -> first);
+        boolean[] started = new boolean[1];
+        CompletableFuture<HttpResponse> cancelled = scheduler.schedule(RequestPriority.NORMAL, () -> {
+            started[0] = true;
+            return new CompletableFuture<HttpResponse>();
+        });
+        cancelled.cancel(true);
+        first.complete(OK);
+        assertFalse(started[0]);
+        assertEquals(0, scheduler.getInFlight());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Test {@link RingBufferEventRecorder} and {@link EventRecorderDrainer}.
+ *
+ * @author Erik Wramner
+ */
+public class RingBufferEventRecorderTest {
+
+    @Test
+    public void testWrapsAroundKeepingTimesAndCounters() {
+        RingBufferEventRecorder recorder = new RingBufferEventRecorder(8);
+        ListEventRecorder target = new ListEventRecorder();
+        for (int request = 0; request < 100; request++) {
+            recordRequest(recorder, request * 100L);
+            assertEquals(3, recorder.drainTo(target));
+        }
+        assertEquals(300, target._entries.size());
+        for (int request = 0; request < 100; request++) {
+            long time = request * 100L;
+            assertEquals("ENTER_SEND_REQUEST@" + time, target._entries.get(request * 3));
+            assertEquals("SENT_REQUEST@" + (time + 1L) + " " + time + "/" + (time + 2L) + "/3/" + (time + 4L),
+                            target._entries.get(request * 3 + 1));
+            assertEquals("EXIT_SEND_REQUEST@" + (time + 5L), target._entries.get(request * 3 + 2));
+        }
+        assertEquals(0L, recorder.getDroppedRequests());
+    }
+
+    @Test
+    public void testDropsRequestWhenFull() {
+        // Rounded up to 8 events, room for two requests
+        RingBufferEventRecorder recorder = new RingBufferEventRecorder(5);
+        recordRequest(recorder, 0L);
+        recordRequest(recorder, 100L);
+        recordRequest(recorder, 200L);
+        assertEquals(1L, recorder.getDroppedRequests());
+        ListEventRecorder target = new ListEventRecorder();
+        assertEquals(6, recorder.drainTo(target));
+        assertEquals("ENTER_SEND_REQUEST@0", target._entries.get(0));
+        assertEquals("ENTER_SEND_REQUEST@100", target._entries.get(3));
+        recordRequest(recorder, 300L);
+        assertEquals(3, recorder.drainTo(target));
+        assertEquals("EXIT_SEND_REQUEST@305", target._entries.get(8));
+        assertEquals(1L, recorder.getDroppedRequests());
+    }
+
+    @Test
+    public void testOnlyCompletedRequestsAreDrained() {
+        RingBufferEventRecorder recorder = new RingBufferEventRecorder(16);
+        ListEventRecorder target = new ListEventRecorder();
+        recorder.recordEvent(Event.ENTER_SEND_REQUEST, 0L);
+        assertEquals(0, recorder.drainTo(target));
+        recorder.reset();
+        recordRequest(recorder, 100L);
+        assertEquals(3, recorder.drainTo(target));
+        assertEquals("ENTER_SEND_REQUEST@100", target._entries.get(0));
+    }
+
+    @Test
+    public void testDrainerDrainsOnClose() {
+        ListEventRecorder target = new ListEventRecorder();
+        EventRecorderDrainer drainer = EventRecorderDrainer.start(target, 60000L);
+        RingBufferEventRecorder first = drainer.newRecorder(8);
+        RingBufferEventRecorder second = new RingBufferEventRecorder(8);
+        drainer.add(second);
+        recordRequest(first, 0L);
+        recordRequest(second, 100L);
+        assertEquals(6, drainer.drain());
+        recordRequest(first, 200L);
+        drainer.remove(first);
+        assertEquals(9, target._entries.size());
+        recordRequest(second, 300L);
+        drainer.close();
+        assertEquals(12, target._entries.size());
+    }
+
+    private static void recordRequest(EventRecorder recorder, long time) {
+        recorder.recordEvent(Event.ENTER_SEND_REQUEST, time);
+        recorder.recordEvent(Event.SENT_REQUEST, time + 1L, time, time + 2L, 3, (int) time + 4);
+        recorder.recordEvent(Event.EXIT_SEND_REQUEST, time + 5L);
+    }
+
+    /**
+     * Recorder that keeps the events as text.
+     */
+    private static class ListEventRecorder implements EventRecorder {
+        private final List<String> _entries = new ArrayList<String>();
+
+        @Override
+        public void recordEvent(Event event) {
+            throw new AssertionError("Events must be drained with their times");
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos) {
+            _entries.add(event + "@" + timeNanos);
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                        int largestRead) {
+            _entries.add(event + "@" + timeNanos + " " + bytesWritten + "/" + bytesRead + "/" + readCalls + "/"
+                            + largestRead);
+        }
+    }
+}
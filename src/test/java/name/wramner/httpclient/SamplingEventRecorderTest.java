@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import name.wramner.httpclient.HttpClient.Event;
+
+/**
+ * Test {@link SamplingEventRecorder} and {@link SamplingPolicy}.
+ *
+ * @author Erik Wramner
+ */
+public class SamplingEventRecorderTest {
+
+    @Test
+    public void testProbabilisticExtremes() {
+        SamplingPolicy never = SamplingPolicy.probabilistic(0.0);
+        SamplingPolicy always = SamplingPolicy.probabilistic(1.0);
+        for (int i = 0; i < 100; i++) {
+            ListEventRecorder skipped = new ListEventRecorder();
+            SamplingEventRecorder recorder = new SamplingEventRecorder(never, skipped);
+            recordRequest(recorder, 0L, 100L);
+            assertFalse(recorder.isSampled());
+            assertTrue(skipped._entries.isEmpty());
+
+            ListEventRecorder sampled = new ListEventRecorder();
+            recorder = new SamplingEventRecorder(always, sampled);
+            recordRequest(recorder, 0L, 100L);
+            assertTrue(recorder.isSampled());
+            assertEquals(7, sampled._entries.size());
+        }
+        assertEquals(0L, never.getSampledRequests());
+        assertEquals(100L, never.getSkippedRequests());
+        assertEquals(100L, always.getSampledRequests());
+        assertEquals(0L, always.getSkippedRequests());
+    }
+
+    @Test
+    public void testProbabilisticFraction() {
+        SamplingPolicy policy = SamplingPolicy.probabilistic(0.25);
+        for (int i = 0; i < 10000; i++) {
+            new SamplingEventRecorder(policy, new ListEventRecorder()).recordEvent(Event.ENTER_SEND_REQUEST, 0L);
+        }
+        long sampled = policy.getSampledRequests();
+        assertEquals(10000L, sampled + policy.getSkippedRequests());
+        assertTrue("Sampled " + sampled, sampled > 2000L && sampled < 3000L);
+    }
+
+    @Test
+    public void testRateLimitedAllowsOneSecondBurst() {
+        SamplingPolicy policy = SamplingPolicy.rateLimited(10);
+        for (int i = 0; i < 1000; i++) {
+            new SamplingEventRecorder(policy, new ListEventRecorder()).recordEvent(Event.ENTER_SEND_REQUEST, 0L);
+        }
+        long sampled = policy.getSampledRequests();
+        assertEquals(1000L, sampled + policy.getSkippedRequests());
+        assertTrue("Sampled " + sampled, sampled >= 10L && sampled <= 11L);
+    }
+
+    @Test
+    public void testTailBasedSamplesSlowRequestsAfterFirstWindow() {
+        SamplingPolicy policy = SamplingPolicy.slowerThanPercentile(90.0);
+        for (int i = 1; i < 1024; i++) {
+            ListEventRecorder target = new ListEventRecorder();
+            SamplingEventRecorder recorder = new SamplingEventRecorder(policy, target);
+            recordRequest(recorder, 0L, i * 1000L);
+            assertFalse(recorder.isSampled());
+            assertTrue(target._entries.isEmpty());
+        }
+        recordRequest(new SamplingEventRecorder(policy, new ListEventRecorder()), 0L, 1024000L);
+        assertEquals(1L, policy.getSampledRequests());
+
+        ListEventRecorder fast = new ListEventRecorder();
+        SamplingEventRecorder recorder = new SamplingEventRecorder(policy, fast);
+        recordRequest(recorder, 0L, 500000L);
+        assertFalse(recorder.isSampled());
+        assertTrue(fast._entries.isEmpty());
+
+        ListEventRecorder slow = new ListEventRecorder();
+        recorder = new SamplingEventRecorder(policy, slow);
+        recordRequest(recorder, 5000L, 10000000L);
+        assertTrue(recorder.isSampled());
+        assertEquals(Arrays.asList("ENTER_SEND_REQUEST@5000", "request GET localhost:8080 /",
+                        "SENT_REQUEST@5001 10/0/0/0", "HEADERS_PARSED@5002", "response 200",
+                        "failure java.io.IOException", "EXIT_SEND_REQUEST@10005000"), slow._entries);
+        assertEquals(2L, policy.getSampledRequests());
+        assertEquals(1024L, policy.getSkippedRequests());
+    }
+
+    @Test
+    public void testTailBasedKeepsLastEventWhenTimelineIsFull() {
+        SamplingPolicy policy = SamplingPolicy.slowerThanPercentile(50.0);
+        for (int i = 0; i < 1024; i++) {
+            recordRequest(new SamplingEventRecorder(policy, new ListEventRecorder()), 0L, 1000L);
+        }
+        ListEventRecorder target = new ListEventRecorder();
+        SamplingEventRecorder recorder = new SamplingEventRecorder(policy, target);
+        for (int i = 0; i < 100; i++) {
+            recorder.recordEvent(Event.READ_RESPONSE, i);
+        }
+        recorder.recordEvent(Event.EXIT_SEND_REQUEST, 1000000L);
+        assertTrue(recorder.isSampled());
+        assertEquals(32, target._entries.size());
+        assertEquals("READ_RESPONSE@30", target._entries.get(30));
+        assertEquals("EXIT_SEND_REQUEST@1000000", target._entries.get(31));
+    }
+
+    private static void recordRequest(EventRecorder recorder, long startTime, long duration) {
+        recorder.recordEvent(Event.ENTER_SEND_REQUEST, startTime);
+        recorder.recordRequest("localhost", 8080, HttpRequestMethod.GET, "/");
+        recorder.recordEvent(Event.SENT_REQUEST, startTime + 1L, 10L, 0L, 0, 0);
+        recorder.recordEvent(Event.HEADERS_PARSED, startTime + 2L);
+        recorder.recordResponse(200);
+        recorder.recordFailure(new IOException());
+        recorder.recordEvent(Event.EXIT_SEND_REQUEST, startTime + duration);
+    }
+
+    /**
+     * Recorder that keeps the events and request details as text.
+     */
+    private static class ListEventRecorder implements EventRecorder {
+        private final List<String> _entries = new ArrayList<String>();
+
+        @Override
+        public void recordEvent(Event event) {
+            throw new AssertionError("Events must be passed on with their times");
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos) {
+            _entries.add(event + "@" + timeNanos);
+        }
+
+        @Override
+        public void recordEvent(Event event, long timeNanos, long bytesWritten, long bytesRead, int readCalls,
+                        int largestRead) {
+            _entries.add(event + "@" + timeNanos + " " + bytesWritten + "/" + bytesRead + "/" + readCalls + "/"
+                            + largestRead);
+        }
+
+        @Override
+        public void recordRequest(String host, int port, HttpRequestMethod method, String url) {
+            _entries.add("request " + method + " " + host + ":" + port + " " + url);
+        }
+
+        @Override
+        public void recordResponse(int httpResponseCode) {
+            _entries.add("response " + httpResponseCode);
+        }
+
+        @Override
+        public void recordFailure(Throwable cause) {
+            _entries.add("failure " + cause.getClass().getName());
+        }
+    }
+}
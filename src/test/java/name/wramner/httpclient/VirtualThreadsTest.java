@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Erik Wramner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package name.wramner.httpclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Send many concurrent asynchronous requests to a slow local server, once with the default executor and once with a
+ * virtual thread per request. The requests must run on the expected kind of thread and must run concurrently. The
+ * virtual thread test only runs on Java 21 or later against the multi-release jar, as the classes directory has the
+ * Java 8 version of {@link VirtualThreads}.
+ *
+ * @author Erik Wramner
+ */
+public class VirtualThreadsTest {
+    private static final int REQUESTS = 500;
+    private static final int SERVER_DELAY_MILLIS = 50;
+    // Far less than sending the requests one at a time, which would take REQUESTS * SERVER_DELAY_MILLIS
+    private static final long MAX_ELAPSED_MILLIS = REQUESTS * SERVER_DELAY_MILLIS / 5;
+    private static final int MAX_DEFAULT_EXECUTOR_THREADS = 256;
+    private static final byte[] RESPONSE_BODY = "OK".getBytes(StandardCharsets.US_ASCII);
+    private HttpServer _server;
+    private ExecutorService _serverExecutor;
+
+    @Before
+    public void startServer() throws IOException {
+        _serverExecutor = Executors.newCachedThreadPool();
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), REQUESTS);
+        _server.createContext("/", this::handle);
+        _server.setExecutor(_serverExecutor);
+        _server.start();
+    }
+
+    @After
+    public void stopServer() {
+        _server.stop(0);
+        _serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception {
+        Set<Thread> threads = sendConcurrentRequests(newClientBuilder());
+        assertTrue("Too many threads: " + threads.size(), threads.size() <= MAX_DEFAULT_EXECUTOR_THREADS);
+        for (Thread thread : threads) {
+            assertTrue(thread.getName(), thread.getName().startsWith("HttpClient-async"));
+            assertTrue(thread.isDaemon());
+            assertFalse(isVirtual(thread));
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        assumeTrue("Virtual threads require Java 21 and the multi-release jar", VirtualThreads.isSupported());
+        Set<Thread> threads = sendConcurrentRequests(newClientBuilder().withVirtualThreads(true));
+        assertEquals(REQUESTS, threads.size());
+        for (Thread thread : threads) {
+            assertTrue(thread.getName(), thread.getName().startsWith("HttpClient-virtual-"));
+            assertTrue(isVirtual(thread));
+        }
+    }
+
+    private HttpClientBuilder newClientBuilder() {
+        return new HttpClientBuilder(InetAddress.getLoopbackAddress().getHostAddress())
+                        .withPort(_server.getAddress().getPort());
+    }
+
+    /**
+     * Send the requests and check that they complete in time.
+     *
+     * @param builder The client builder.
+     * @return the threads that sent the requests.
+     * @throws Exception on errors.
+     */
+    private Set<Thread> sendConcurrentRequests(HttpClientBuilder builder) throws Exception {
+        HttpClient client = builder.build();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        EventRecorder threadRecorder = event -> {
+            if (event == HttpClient.Event.ENTER_SEND_REQUEST) {
+                threads.add(Thread.currentThread());
+            }
+        };
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<HttpResponse>> futures = new ArrayList<CompletableFuture<HttpResponse>>();
+        for (int i = 0; i < REQUESTS; i++) {
+            futures.add(client.sendRequestAsync(threadRecorder, HttpRequestMethod.GET, "/", HttpRequestBody.EMPTY));
+        }
+        for (CompletableFuture<HttpResponse> future : futures) {
+            HttpResponse response = future.get(30L, TimeUnit.SECONDS);
+            assertEquals(200, response.getHttpResponseCode());
+            assertEquals("OK", response.getBodyAsText());
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        assertTrue("Requests took " + elapsedMillis + " ms", elapsedMillis < MAX_ELAPSED_MILLIS);
+        return threads;
+    }
+
+    private static boolean isVirtual(Thread thread) throws ReflectiveOperationException {
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            // No virtual threads before Java 21
+            return false;
+        }
+        return ((Boolean) isVirtual.invoke(thread)).booleanValue();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(SERVER_DELAY_MILLIS);
+            exchange.sendResponseHeaders(200, RESPONSE_BODY.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE_BODY);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}